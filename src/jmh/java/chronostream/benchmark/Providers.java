@@ -0,0 +1,28 @@
+package chronostream.benchmark;
+
+import chronostream.Config;
+import chronostream.common.crypto.CryptoProvider;
+
+/**
+ * Creates the CryptoProviders the benchmarks run against, the same way App does.
+ */
+final class Providers {
+  private Providers() {
+  }
+
+  /**
+   * @param name BouncyCastle or JCE (see dev.yaml) or the class name of any other JCA provider.
+   */
+  static CryptoProvider create(String name) throws Exception {
+    switch (name) {
+      case "BouncyCastle":
+        return new CryptoProvider(Config.CryptoProvider.create(name, "BKS",
+            "org.bouncycastle.jce.provider.BouncyCastleProvider", "", "", true));
+      case "JCE":
+        return new CryptoProvider(Config.CryptoProvider.create(name, "JCEKS",
+            "com.sun.crypto.provider.SunJCE", "", "", false));
+      default:
+        return new CryptoProvider(Config.CryptoProvider.create(name, "", name, "", "", false));
+    }
+  }
+}
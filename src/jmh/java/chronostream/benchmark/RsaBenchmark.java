@@ -0,0 +1,78 @@
+package chronostream.benchmark;
+
+import chronostream.common.crypto.CryptoPrimitive;
+import chronostream.common.crypto.CryptoProvider;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RSA, through the same CryptoProvider methods PerfJobConfig calls. Kept apart from
+ * SymmetricBenchmark because RSA key sizes don't overlap with AES/HMAC ones.
+ *
+ * Note: CryptoProvider doesn't do RSA with SunJCE (it returns its input), so JCE isn't listed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RsaBenchmark {
+  @Param({"BouncyCastle"})
+  public String provider;
+
+  @Param({"RSA_ENC", "RSA_DEC"})
+  public String primitive;
+
+  @Param({"2048", "4096"})
+  public int keySize;
+
+  @Param({"16", "64"})
+  public int payloadSize;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private CryptoProvider cryptoProvider;
+  private CryptoPrimitive cryptoPrimitive;
+  private Object key;
+  private byte[] input;
+  private byte[] out;
+
+  @Setup
+  public void setup() throws Exception {
+    cryptoProvider = Providers.create(provider);
+    cryptoPrimitive = CryptoPrimitive.valueOf(primitive);
+    key = cryptoProvider.generateKey(cryptoPrimitive, keySize);
+
+    input = new byte[payloadSize];
+    new Random().nextBytes(input);
+    if (cryptoPrimitive == CryptoPrimitive.RSA_DEC) {
+      input = cryptoProvider.doRsaEncryption(key, input);
+    }
+    out = new byte[keySize / 8 + 1];
+  }
+
+  @Benchmark
+  public int run() throws Exception {
+    switch (cryptoPrimitive) {
+      case RSA_ENC:
+        return cryptoProvider.doRsaEncryption(key, input, 0, input.length, out, 0, cached);
+      case RSA_DEC:
+        return cryptoProvider.doRsaDecryption(key, input, 0, input.length, out, 0, cached);
+      default:
+        throw new IllegalArgumentException(primitive);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package chronostream.benchmark;
+
+import chronostream.common.crypto.CryptoPrimitive;
+import chronostream.common.crypto.CryptoProvider;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AES and HKDF, through the same CryptoProvider methods PerfJobConfig calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SymmetricBenchmark {
+  @Param({"BouncyCastle", "JCE"})
+  public String provider;
+
+  @Param({"AES_CBC_ENC", "AES_CBC_DEC", "HKDF"})
+  public String primitive;
+
+  @Param({"128", "256"})
+  public int keySize;
+
+  @Param({"16", "1024"})
+  public int payloadSize;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private CryptoProvider cryptoProvider;
+  private CryptoPrimitive cryptoPrimitive;
+  private Object key;
+  private byte[] iv;
+  private byte[] input;
+  private byte[] out;
+
+  @Setup
+  public void setup() throws Exception {
+    cryptoProvider = Providers.create(provider);
+    cryptoPrimitive = CryptoPrimitive.valueOf(primitive);
+    key = cryptoProvider.generateKey(cryptoPrimitive, keySize);
+
+    Random random = new Random();
+    iv = new byte[16];
+    random.nextBytes(iv);
+    input = new byte[payloadSize];
+    random.nextBytes(input);
+    if (cryptoPrimitive == CryptoPrimitive.AES_CBC_DEC) {
+      input = cryptoProvider.doAesCbcEncryption(key, input, iv);
+    }
+    out = new byte[payloadSize + 32];
+  }
+
+  @Benchmark
+  public int run() throws Exception {
+    switch (cryptoPrimitive) {
+      case AES_CBC_ENC:
+        return cryptoProvider.doAesCbcEncryption(key, input, 0, input.length, iv, out, 0, cached);
+      case AES_CBC_DEC:
+        return cryptoProvider.doAesCbcDecryption(key, input, 0, input.length, iv, out, 0, cached);
+      case HKDF:
+        return cryptoProvider.doHKDF(key, input, 0, input.length, out, 0, cached);
+      default:
+        throw new IllegalArgumentException(primitive);
+    }
+  }
+}
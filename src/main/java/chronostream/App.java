@@ -1,8 +1,13 @@
 package chronostream;
 
+import chronostream.common.core.FlightRecording;
+import chronostream.common.core.TimerCalibration;
+import chronostream.common.crypto.CryptoMetrics;
 import chronostream.common.crypto.CryptoProvider;
+import chronostream.common.crypto.ProviderScheduler;
 import chronostream.correctness.CorrectnessJob;
 import chronostream.perf.PerfJob;
+import chronostream.perf.PerfJobStore;
 import chronostream.resources.Dev;
 import chronostream.resources.Jobs;
 import com.google.common.collect.Lists;
@@ -11,6 +16,7 @@ import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import java.util.List;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 public class App extends Application<Config> {
 
@@ -26,6 +32,7 @@ public class App extends Application<Config> {
   @Override
   public void initialize(final Bootstrap<Config> bootstrap) {
     bootstrap.addBundle(new AssetsBundle("/assets", "/assets/", "index.html"));
+    bootstrap.addCommand(new CompareCommand());
   }
 
   @Override
@@ -43,13 +50,43 @@ public class App extends Application<Config> {
       throw new RuntimeException(e);
     }
 
-    PerfJob perfJob = new PerfJob(config.perfTest, providers);
+    // Perf samples are taken with System.nanoTime(), measure what it costs on this host.
+    TimerCalibration timerCalibration = TimerCalibration.measure();
+    System.out.println(timerCalibration);
+
+    PerfJobStore store = null;
+    if (config.storage != null) {
+      store = new PerfJobStore(config.storage);
+      Thread storeWriter = new Thread(store);
+      storeWriter.setName("perfJob-store");
+      storeWriter.setDaemon(true);
+      storeWriter.start();
+    }
+
+    FlightRecording flightRecording = null;
+    if (config.jfr != null) {
+      flightRecording = new FlightRecording(config.jfr);
+      if (config.jfr.recordOnStart()) {
+        flightRecording.start();
+      }
+    }
+
+    // Per operation timers, error meters and in-flight gauges, on the admin port.
+    CryptoMetrics metrics = new CryptoMetrics(environment.metrics());
+
+    // Keeps correctness traffic out of the way of perf steps.
+    ProviderScheduler scheduler = new ProviderScheduler(config.scheduler, providers);
+
+    PerfJob perfJob = new PerfJob(config.perfTest, providers, timerCalibration, store, metrics,
+        scheduler);
     new Thread(perfJob).start();
 
-    CorrectnessJob correctnessJob = new CorrectnessJob(config.correctnessTest, providers);
+    CorrectnessJob correctnessJob = new CorrectnessJob(config.correctnessTest, providers, metrics,
+        scheduler);
     new Thread(correctnessJob).start();
 
+    environment.jersey().register(SseFeature.class);
     environment.jersey().register(new Dev());
-    environment.jersey().register(new Jobs(perfJob, correctnessJob));
+    environment.jersey().register(new Jobs(perfJob, correctnessJob, flightRecording, scheduler));
   }
 }
@@ -0,0 +1,61 @@
+package chronostream;
+
+import chronostream.perf.PerfJobComparison;
+import chronostream.perf.PerfJobStore;
+import io.dropwizard.cli.Cli;
+import io.dropwizard.cli.Command;
+import io.dropwizard.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+/**
+ * Compares two stored perf runs without starting the service, e.g. from a CI job:
+ *
+ *   java -jar chronostream.jar compare --threshold 5 12 13
+ *
+ * Prints one line per matching step and exits with a non-zero status if any of them regressed.
+ */
+public class CompareCommand extends Command {
+  public CompareCommand() {
+    super("compare", "Compares two stored perf runs, fails if the second one regressed");
+  }
+
+  @Override
+  public void configure(Subparser subparser) {
+    subparser.addArgument("--url")
+        .setDefault("jdbc:h2:./chronostream;AUTO_SERVER=TRUE")
+        .help("JDBC url of the database (storage.url)");
+    subparser.addArgument("--threshold")
+        .type(Double.class)
+        .setDefault(5.0)
+        .help("smallest change, in %, which counts as a regression");
+    subparser.addArgument("baseline").type(Long.class).help("id of the baseline run");
+    subparser.addArgument("candidate").type(Long.class).help("id of the run to check");
+  }
+
+  @Override
+  public void run(Bootstrap<?> bootstrap, Namespace namespace) throws Exception {
+    PerfJobStore store = new PerfJobStore(Config.Storage.create(namespace.getString("url"), false));
+    PerfJobComparison.Response r = new PerfJobComparison(store).compare(
+        namespace.getLong("baseline"), namespace.getLong("candidate"),
+        namespace.getDouble("threshold"));
+    for (PerfJobComparison.Delta delta : r.steps) {
+      System.out.println(delta);
+    }
+    if (r.steps.isEmpty()) {
+      throw new IllegalStateException(String.format(
+          "runs %d and %d have no step in common", r.baseline, r.candidate));
+    }
+    if (r.regressions > 0) {
+      throw new IllegalStateException(String.format("%d of %d steps regressed by more than %.1f%%",
+          r.regressions, r.steps.size(), r.threshold));
+    }
+    System.out.println(String.format("no regression in %d steps", r.steps.size()));
+  }
+
+  @Override
+  public void onError(Cli cli, Namespace namespace, Throwable e) {
+    // No stack trace, the message is the report.
+    cli.getStdErr().println(e.getMessage());
+  }
+}
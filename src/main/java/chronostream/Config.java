@@ -1,11 +1,18 @@
 package chronostream;
 
+import chronostream.common.crypto.BufferMode;
 import chronostream.common.crypto.CryptoPrimitive;
+import chronostream.common.crypto.ProviderScheduler;
+import chronostream.common.crypto.ServiceTimeDistribution;
+import chronostream.perf.ArrivalDistribution;
+import chronostream.perf.ExecutorModel;
+import chronostream.perf.SweepMode;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
 import io.dropwizard.Configuration;
 import java.util.List;
+import javax.annotation.Nullable;
 
 public class Config extends Configuration {
   // Info about providers
@@ -17,6 +24,15 @@ public class Config extends Configuration {
   // Info about correctness tests
   public CorrectnessTest correctnessTest;
 
+  // Where to persist perf results, optional
+  public Storage storage;
+
+  // JFR recordings of the crypto operations, optional
+  public Jfr jfr;
+
+  // How the perf and correctness jobs share the providers, optional
+  public Scheduler scheduler = Scheduler.create(0, 0, null, 0);
+
   @AutoValue
   abstract static public class CryptoProvider {
     public abstract String name();
@@ -25,15 +41,24 @@ public class Config extends Configuration {
     public abstract String password();
     public abstract String keyStore();
     public abstract boolean allowsExport();
+    // only used by chronostream.common.crypto.SimulatedHsmProvider, optional
+    @Nullable public abstract Simulation simulation();
 
-    @JsonCreator @SuppressWarnings("unused")
-    static CryptoProvider create(@JsonProperty("name") String name,
+    public static CryptoProvider create(String name, String storeType, String provider,
+        String password, String keyStore, boolean allowsExport) {
+      return create(name, storeType, provider, password, keyStore, allowsExport, null);
+    }
+
+    @JsonCreator
+    public static CryptoProvider create(@JsonProperty("name") String name,
         @JsonProperty("storeType") String storeType,
         @JsonProperty("provider") String provider,
         @JsonProperty("password") String password,
         @JsonProperty("keyStore") String keyStore,
-        @JsonProperty("allowsExport") boolean allowsExport) {
-      return new AutoValue_Config_CryptoProvider(name, storeType, provider, password, keyStore, allowsExport);
+        @JsonProperty("allowsExport") boolean allowsExport,
+        @JsonProperty("simulation") Simulation simulation) {
+      return new AutoValue_Config_CryptoProvider(name, storeType, provider, password, keyStore,
+          allowsExport, simulation);
     }
 
     public char[] pass() {
@@ -41,17 +66,198 @@ public class Config extends Configuration {
     }
   }
 
+  @AutoValue
+  abstract static public class Simulation {
+    // provider doing the actual crypto, class or installed provider name, defaults to BouncyCastle
+    public abstract String delegate();
+    public abstract int sessions(); // operations running at once, others queue up, 0 for unlimited
+    public abstract String serviceTime(); // CONSTANT, UNIFORM, EXPONENTIAL or LOGNORMAL
+    public abstract int serviceTimeMicros(); // mean
+    public abstract int serviceTimeStddevMicros(); // ignored by CONSTANT and EXPONENTIAL
+    public abstract double stallProbability(); // per operation
+    public abstract int stallMs(); // every session is held up this long when a stall happens
+    public abstract double errorProbability(); // per operation
+
+    @JsonCreator
+    public static Simulation create(@JsonProperty("delegate") String delegate,
+        @JsonProperty("sessions") int sessions,
+        @JsonProperty("serviceTime") String serviceTime,
+        @JsonProperty("serviceTimeMicros") int serviceTimeMicros,
+        @JsonProperty("serviceTimeStddevMicros") int serviceTimeStddevMicros,
+        @JsonProperty("stallProbability") double stallProbability,
+        @JsonProperty("stallMs") int stallMs,
+        @JsonProperty("errorProbability") double errorProbability) {
+      if (delegate == null) {
+        delegate = "org.bouncycastle.jce.provider.BouncyCastleProvider";
+      }
+      if (serviceTime == null) {
+        serviceTime = ServiceTimeDistribution.CONSTANT.name();
+      }
+      return new AutoValue_Config_Simulation(delegate, sessions, serviceTime, serviceTimeMicros,
+          serviceTimeStddevMicros, stallProbability, stallMs, errorProbability);
+    }
+
+    public ServiceTimeDistribution getServiceTime() {
+      return ServiceTimeDistribution.valueOf(serviceTime());
+    }
+  }
+
   @AutoValue
   abstract static public class PerfTest {
     public abstract int defaultThreads();
     public abstract int defaultTotal();
+    public abstract int maxThreads(); // the sweep goes from 1 to maxThreads
+    public abstract int threadsIncrement();
+    public abstract String executor(); // PLATFORM or VIRTUAL threads
+    public abstract boolean recordRawSamples(); // keep every start/end time, not just histograms
+    public abstract int histogramPrecision(); // significant digits, between 1 and 3
+    public abstract int targetRate(); // ops/sec for open-loop tests, 0 for a closed loop
+    public abstract String arrival(); // UNIFORM or POISSON, only used for open-loop tests
+    public abstract String sweep(); // LINEAR or ADAPTIVE
+    public abstract int saturationGain(); // in %, adaptive sweeps stop below this throughput gain
+    public abstract int p99SloMicros(); // adaptive sweeps look for the p99 crossover, 0 to disable
+    public abstract int stepDurationMs(); // measure each step for this long, 0 to run defaultTotal ops
+    public abstract int warmupMs(); // samples of the first warmupMs of each step are excluded
+    public abstract boolean steadyState(); // detect when to start and stop measuring
+    public abstract int retainedSteps(); // steps kept with raw samples and per-thread histograms
+    public abstract int retainedHistograms(); // older steps kept as merged histograms
+    public abstract int retainedSamplesMb(); // heap budget of the retained raw samples, 0 for none
+    public abstract int retainedSummaries(); // even older steps kept as a summary, then forgotten
     public abstract List<Test> tests();
 
     @JsonCreator @SuppressWarnings("unused")
     static PerfTest create(@JsonProperty("defaultThreads") int defaultThreads,
         @JsonProperty("defaultTotal") int defaultTotal,
+        @JsonProperty("maxThreads") int maxThreads,
+        @JsonProperty("threadsIncrement") int threadsIncrement,
+        @JsonProperty("executor") String executor,
+        @JsonProperty("recordRawSamples") boolean recordRawSamples,
+        @JsonProperty("histogramPrecision") int histogramPrecision,
+        @JsonProperty("targetRate") int targetRate,
+        @JsonProperty("arrival") String arrival,
+        @JsonProperty("sweep") String sweep,
+        @JsonProperty("saturationGain") int saturationGain,
+        @JsonProperty("p99SloMicros") int p99SloMicros,
+        @JsonProperty("stepDurationMs") int stepDurationMs,
+        @JsonProperty("warmupMs") int warmupMs,
+        @JsonProperty("steadyState") boolean steadyState,
+        @JsonProperty("retainedSteps") int retainedSteps,
+        @JsonProperty("retainedHistograms") int retainedHistograms,
+        @JsonProperty("retainedSamplesMb") int retainedSamplesMb,
+        @JsonProperty("retainedSummaries") int retainedSummaries,
         @JsonProperty("tests") List<Test> tests) {
-      return new AutoValue_Config_PerfTest(defaultThreads, defaultTotal, tests);
+      if (maxThreads == 0) {
+        maxThreads = 49;
+      }
+      if (threadsIncrement == 0) {
+        threadsIncrement = 1;
+      }
+      if (executor == null) {
+        executor = ExecutorModel.PLATFORM.name();
+      }
+      if (histogramPrecision == 0) {
+        histogramPrecision = 3;
+      }
+      // Every worker thread has a few histograms per step: at 3 digits they take ~270KB each, at 5
+      // digits ~27MB, which maxThreads threads can't afford.
+      if (histogramPrecision < 1 || histogramPrecision > 3) {
+        throw new IllegalArgumentException("histogramPrecision must be between 1 and 3");
+      }
+      if (arrival == null) {
+        arrival = ArrivalDistribution.UNIFORM.name();
+      }
+      if (sweep == null) {
+        sweep = SweepMode.LINEAR.name();
+      }
+      if (saturationGain == 0) {
+        saturationGain = 5;
+      }
+      if (retainedSteps == 0) {
+        retainedSteps = 5;
+      }
+      if (retainedHistograms == 0) {
+        retainedHistograms = 50;
+      }
+      if (retainedSummaries == 0) {
+        retainedSummaries = 10000;
+      }
+      return new AutoValue_Config_PerfTest(defaultThreads, defaultTotal, maxThreads,
+          threadsIncrement, executor, recordRawSamples, histogramPrecision, targetRate, arrival,
+          sweep, saturationGain, p99SloMicros, stepDurationMs, warmupMs, steadyState,
+          retainedSteps, retainedHistograms, retainedSamplesMb, retainedSummaries, tests);
+    }
+
+    public ExecutorModel getExecutor() {
+      return ExecutorModel.valueOf(executor());
+    }
+
+    public boolean isOpenLoop() {
+      return targetRate() > 0;
+    }
+
+    public boolean isTimeBoxed() {
+      return stepDurationMs() > 0;
+    }
+
+    public ArrivalDistribution getArrival() {
+      return ArrivalDistribution.valueOf(arrival());
+    }
+
+    public SweepMode getSweep() {
+      return SweepMode.valueOf(sweep());
+    }
+  }
+
+  @AutoValue
+  abstract static public class Storage {
+    public abstract String url(); // JDBC url of an H2 database, e.g. jdbc:h2:./chronostream
+    public abstract boolean rawSamples(); // also store every sample, not just step summaries
+
+    @JsonCreator @SuppressWarnings("unused")
+    static Storage create(@JsonProperty("url") String url,
+        @JsonProperty("rawSamples") boolean rawSamples) {
+      return new AutoValue_Config_Storage(url, rawSamples);
+    }
+  }
+
+  @AutoValue
+  abstract static public class Jfr {
+    public abstract int thresholdMicros(); // only record crypto operations slower than this
+    public abstract boolean recordOnStart(); // start recording with the jobs, else see /jobs/jfr
+    public abstract int maxSizeMb(); // older events are dropped beyond this, defaults to 100
+
+    @JsonCreator @SuppressWarnings("unused")
+    static Jfr create(@JsonProperty("thresholdMicros") int thresholdMicros,
+        @JsonProperty("recordOnStart") boolean recordOnStart,
+        @JsonProperty("maxSizeMb") int maxSizeMb) {
+      if (maxSizeMb == 0) {
+        maxSizeMb = 100;
+      }
+      return new AutoValue_Config_Jfr(thresholdMicros, recordOnStart, maxSizeMb);
+    }
+  }
+
+  @AutoValue
+  abstract static public class Scheduler {
+    public abstract int correctnessOpsPerSec(); // per provider, 0 for unlimited
+    public abstract int correctnessConcurrency(); // per provider, 0 for unlimited
+    public abstract String correctnessDuringPerf(); // PAUSE, THROTTLE or IGNORE
+    public abstract int throttledOpsPerSec(); // per provider, when THROTTLE-ing
+
+    @JsonCreator @SuppressWarnings("unused")
+    static Scheduler create(@JsonProperty("correctnessOpsPerSec") int correctnessOpsPerSec,
+        @JsonProperty("correctnessConcurrency") int correctnessConcurrency,
+        @JsonProperty("correctnessDuringPerf") String correctnessDuringPerf,
+        @JsonProperty("throttledOpsPerSec") int throttledOpsPerSec) {
+      if (correctnessDuringPerf == null) {
+        correctnessDuringPerf = ProviderScheduler.DuringPerf.PAUSE.name();
+      }
+      return new AutoValue_Config_Scheduler(correctnessOpsPerSec, correctnessConcurrency,
+          correctnessDuringPerf, throttledOpsPerSec);
+    }
+
+    public ProviderScheduler.DuringPerf getCorrectnessDuringPerf() {
+      return ProviderScheduler.DuringPerf.valueOf(correctnessDuringPerf());
     }
   }
 
@@ -59,13 +265,19 @@ public class Config extends Configuration {
   abstract static public class CorrectnessTest {
     abstract public int threads();
     abstract public int sleep(); // in ms
+    // concurrent operations per provider when running a provider matrix, defaults to 2
+    abstract public int maxPerProvider();
     public abstract List<Test> tests();
 
     @JsonCreator @SuppressWarnings("unused")
     static CorrectnessTest create(@JsonProperty("threads") int threads,
         @JsonProperty("sleep") int sleep,
+        @JsonProperty("maxPerProvider") int maxPerProvider,
         @JsonProperty("tests") List<Test> tests) {
-      return new AutoValue_Config_CorrectnessTest(threads, sleep, tests);
+      if (maxPerProvider == 0) {
+        maxPerProvider = 2;
+      }
+      return new AutoValue_Config_CorrectnessTest(threads, sleep, maxPerProvider, tests);
     }
   }
 
@@ -76,18 +288,30 @@ public class Config extends Configuration {
     public abstract int keySize();
     public abstract int minDataSize();
     public abstract int maxDataSize();
+    public abstract boolean cacheInstances(); // re-use per-thread Cipher/Mac instances
+    public abstract String bufferMode(); // HEAP_ARRAY, HEAP_BUFFER or DIRECT_BUFFER (AES perf tests)
 
     @JsonCreator @SuppressWarnings("unused")
     static Test create(@JsonProperty("name") String name,
         @JsonProperty("primitive") String primitive,
         @JsonProperty("keySize") int keySize,
         @JsonProperty("minDataSize") int minDataSize,
-        @JsonProperty("maxDataSize") int maxDataSize) {
-      return new AutoValue_Config_Test(name, primitive, keySize, minDataSize, maxDataSize);
+        @JsonProperty("maxDataSize") int maxDataSize,
+        @JsonProperty("cacheInstances") boolean cacheInstances,
+        @JsonProperty("bufferMode") String bufferMode) {
+      if (bufferMode == null) {
+        bufferMode = BufferMode.HEAP_ARRAY.name();
+      }
+      return new AutoValue_Config_Test(name, primitive, keySize, minDataSize, maxDataSize,
+          cacheInstances, bufferMode);
     }
 
     public CryptoPrimitive getPrimitive() {
       return CryptoPrimitive.valueOf(primitive());
     }
+
+    public BufferMode getBufferMode() {
+      return BufferMode.valueOf(bufferMode());
+    }
   }
 }
@@ -0,0 +1,41 @@
+package chronostream.common.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the number of bytes the current thread has allocated so far, using HotSpot's
+ * com.sun.management.ThreadMXBean extension.
+ */
+public final class AllocationCounter {
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+
+  static {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean b = null;
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      b = (com.sun.management.ThreadMXBean) bean;
+      if (b.isThreadAllocatedMemorySupported() && !b.isThreadAllocatedMemoryEnabled()) {
+        b.setThreadAllocatedMemoryEnabled(true);
+      }
+      if (!b.isThreadAllocatedMemorySupported()) {
+        b = null;
+      }
+    }
+    THREAD_MX_BEAN = b;
+  }
+
+  private AllocationCounter() {
+  }
+
+  /**
+   * @return bytes allocated by the current thread, or -1 if the JVM (or the kind of thread, e.g.
+   * virtual threads) doesn't support it.
+   */
+  public static long currentThreadAllocatedBytes() {
+    if (THREAD_MX_BEAN == null) {
+      return -1;
+    }
+    return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,111 @@
+package chronostream.common.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes comma separated lines of longs to a file through a buffered channel.
+ *
+ * Numbers are formatted straight into the buffer, so writing a line does not allocate. Not
+ * thread safe.
+ */
+public final class CsvWriter implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.US_ASCII);
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final byte[] digits = new byte[20];
+  private boolean firstValue = true;
+
+  public CsvWriter(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Writes a line as is (typically the header).
+   */
+  public void line(String line) throws IOException {
+    put(line.getBytes(StandardCharsets.US_ASCII));
+    endLine();
+  }
+
+  /**
+   * Appends pre-encoded bytes to the current line, typically columns which are the same for every
+   * line. The caller is responsible for the trailing separator, if any.
+   */
+  public CsvWriter raw(byte[] bytes) throws IOException {
+    put(bytes);
+    return this;
+  }
+
+  public CsvWriter value(long v) throws IOException {
+    if (!firstValue) {
+      put(SEPARATOR);
+    }
+    firstValue = false;
+
+    ensure(digits.length + 1);
+    if (v == Long.MIN_VALUE) {
+      // can't be negated, not worth optimizing.
+      put(Long.toString(v).getBytes(StandardCharsets.US_ASCII));
+      return this;
+    }
+    if (v < 0) {
+      buffer.put((byte) '-');
+      v = -v;
+    }
+    int i = digits.length;
+    do {
+      digits[--i] = (byte) ('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+    buffer.put(digits, i, digits.length - i);
+    return this;
+  }
+
+  public void endLine() throws IOException {
+    ensure(1);
+    buffer.put((byte) '\n');
+    firstValue = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void put(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ensure(1);
+      int n = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, n);
+      offset += n;
+    }
+  }
+
+  private void ensure(int n) throws IOException {
+    if (buffer.remaining() < n) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
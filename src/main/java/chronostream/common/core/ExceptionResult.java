@@ -2,33 +2,36 @@ package chronostream.common.core;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.Writer;
 import java.util.Objects;
 
+/**
+ * The first exception of an operation, with its stack trace rendered once, when it is recorded,
+ * since results are polled much more often than operations fail.
+ */
 public final class ExceptionResult {
-  private Exception exception;
-
-  public ExceptionResult() {
-    exception = null;
-  }
+  private volatile String exception = "";
 
   public void setException(Exception e) {
     Objects.requireNonNull(e);
 
-    if (exception == null) {
-      // for now, we only record the first exception.
-      exception = e;
+    // for now, we only record the first exception. Workers can fail every operation (e.g. an HSM
+    // out of sessions): once it is set, they don't even take the lock.
+    if (!exception.isEmpty()) {
+      return;
+    }
+    synchronized (this) {
+      if (exception.isEmpty()) {
+        StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        exception = writer.toString();
+      }
     }
   }
 
+  /**
+   * The rendered stack trace, empty if there was no exception.
+   */
   public String getException() {
-    if (exception == null) {
-      return "";
-    } else {
-      Writer writer = new StringWriter();
-      PrintWriter printWriter = new PrintWriter(writer);
-      exception.printStackTrace(printWriter);
-      return writer.toString();
-    }
+    return exception;
   }
 }
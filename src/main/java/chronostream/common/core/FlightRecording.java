@@ -0,0 +1,84 @@
+package chronostream.common.core;
+
+import chronostream.Config;
+import chronostream.common.crypto.CryptoEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Starts, stops and dumps a JFR recording of the crypto operations (see CryptoEvent) along with
+ * JFR's "profile" settings: lock contention, I/O, GC, allocations, etc.
+ *
+ * Only crypto operations slower than the configured threshold are recorded, which keeps the
+ * recording small (and cheap) under heavy load. At most one recording is kept: starting a new one
+ * discards the previous one.
+ */
+public class FlightRecording {
+  private final Config.Jfr config;
+  private Recording recording;
+
+  public FlightRecording(Config.Jfr config) {
+    this.config = config;
+  }
+
+  public synchronized Status start() throws IOException, ParseException {
+    if (recording != null) {
+      recording.close();
+    }
+    recording = new Recording(Configuration.getConfiguration("profile"));
+    recording.setName("chronostream");
+    recording.setToDisk(true);
+    recording.setMaxSize(config.maxSizeMb() * 1024L * 1024L);
+    recording.enable(CryptoEvent.class)
+        .withThreshold(Duration.ofNanos(config.thresholdMicros() * 1000L));
+    recording.start();
+    return getStatus();
+  }
+
+  public synchronized Status stop() {
+    if (recording != null && recording.getState() == RecordingState.RUNNING) {
+      recording.stop();
+    }
+    return getStatus();
+  }
+
+  /**
+   * Writes what the recording has so far (running or stopped) to a new temporary file, which the
+   * caller must delete.
+   */
+  public synchronized Path dump() throws IOException {
+    if (recording == null) {
+      throw new IllegalStateException("nothing was recorded");
+    }
+    Path path = Files.createTempFile("chronostream-", ".jfr");
+    recording.dump(path);
+    return path;
+  }
+
+  public synchronized Status getStatus() {
+    Status s = new Status();
+    s.thresholdMicros = config.thresholdMicros();
+    if (recording != null) {
+      s.state = recording.getState().name();
+      s.startTime = recording.getStartTime();
+      s.stopTime = recording.getStopTime();
+      s.size = recording.getSize();
+    }
+    return s;
+  }
+
+  public static class Status {
+    public String state; // null if nothing was recorded, else NEW, RUNNING, STOPPED or CLOSED
+    public Instant startTime;
+    public Instant stopTime;
+    public long size; // in bytes, once stopped
+    public long thresholdMicros;
+  }
+}
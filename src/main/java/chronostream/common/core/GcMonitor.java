@@ -0,0 +1,213 @@
+package chronostream.common.core;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Keeps track of the JVM's garbage collections, from GarbageCollectorMXBean notifications, on
+ * the System.nanoTime() timeline used by perf samples. Also reads the total time spent in
+ * safepoints, when the JVM lets us.
+ *
+ * GcInfo times are in ms since the JVM started, but HotSpot doesn't start that clock at the same
+ * time as the uptime (they are ~30ms apart). Notifications arrive shortly after each collection,
+ * on a JMX thread, so the offset is corrected by the smallest gap seen so far between the computed
+ * end of a collection and its notification, when events are read. Events are placed within a
+ * millisecond or two, and pauses shorter than 1ms are widened to 1ms: a sample is never wrongly
+ * cleared of a pause.
+ *
+ * Concurrent cycles (e.g. ZGC or Shenandoah cycles, G1 concurrent marking) are kept but not
+ * counted as pauses.
+ */
+public final class GcMonitor {
+  private static final int RETAINED = 4096;
+
+  private final long nanoOrigin;
+  private final long uptimeOrigin;
+  private final Event[] ring = new Event[RETAINED];
+  private long next;
+  // smallest (notification time - computed end time) seen so far, in ns.
+  private long skew = Long.MAX_VALUE;
+  private final Method safepointTime;
+  private final Method safepointCount;
+  private final Object hotspotRuntime;
+
+  private GcMonitor() {
+    uptimeOrigin = ManagementFactory.getRuntimeMXBean().getUptime();
+    nanoOrigin = System.nanoTime();
+
+    // HotSpot only exposes safepoint stats internally. Needs
+    // --add-exports java.management/sun.management=ALL-UNNAMED on Java 9+.
+    Object runtime = null;
+    Method time = null;
+    Method count = null;
+    try {
+      Class<?> helper = Class.forName("sun.management.ManagementFactoryHelper");
+      runtime = helper.getMethod("getHotspotRuntimeMBean").invoke(null);
+      Class<?> bean = Class.forName("sun.management.HotspotRuntimeMBean");
+      time = bean.getMethod("getTotalSafepointTime");
+      count = bean.getMethod("getSafepointCount");
+      time.invoke(runtime);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      runtime = null;
+    }
+    hotspotRuntime = runtime;
+    safepointTime = time;
+    safepointCount = count;
+  }
+
+  /**
+   * Starts listening to every collector of this JVM.
+   */
+  public static GcMonitor start() {
+    GcMonitor monitor = new GcMonitor();
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+          if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+              notification.getType())) {
+            monitor.add(GarbageCollectionNotificationInfo.from(
+                (CompositeData) notification.getUserData()));
+          }
+        }, null, null);
+      }
+    }
+    return monitor;
+  }
+
+  private void add(GarbageCollectionNotificationInfo info) {
+    long notified = System.nanoTime();
+    GcInfo gc = info.getGcInfo();
+    Event e = new Event();
+    e.collector = info.getGcName();
+    e.action = info.getGcAction();
+    e.cause = info.getGcCause();
+    e.durationMs = gc.getDuration();
+    // Uncorrected, see get().
+    e.startTime = nanoOrigin + TimeUnit.MILLISECONDS.toNanos(gc.getStartTime() - uptimeOrigin);
+    e.endTime = e.startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(e.durationMs, 1));
+    long end = e.startTime + TimeUnit.MILLISECONDS.toNanos(e.durationMs);
+    e.pause = !e.collector.contains("Cycles") && !e.collector.contains("Concurrent")
+        && !e.action.contains("cycle");
+    synchronized (this) {
+      skew = Math.min(skew, notified - end);
+      e.seq = next;
+      ring[(int) (next % RETAINED)] = e;
+      next++;
+    }
+  }
+
+  /**
+   * Pauses which overlap [from, to] (System.nanoTime()), oldest first. Only the last RETAINED
+   * collections are remembered.
+   */
+  public synchronized List<Event> getPauses(long from, long to) {
+    List<Event> r = new ArrayList<>();
+    for (long seq = Math.max(next - RETAINED, 0); seq < next; seq++) {
+      Event e = get(seq);
+      if (e.pause && e.startTime <= to && e.endTime >= from) {
+        r.add(e);
+      }
+    }
+    // Collectors notify independently, keep the timeline ordered.
+    r.sort(Comparator.comparingLong(e -> e.startTime));
+    return r;
+  }
+
+  /**
+   * Pauses with a sequence number of at least seq, oldest first.
+   */
+  public synchronized List<Event> getPausesSince(long seq) {
+    List<Event> r = new ArrayList<>();
+    for (long s = Math.max(seq, Math.max(next - RETAINED, 0)); s < next; s++) {
+      Event e = get(s);
+      if (e.pause) {
+        r.add(e);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Copy of an event, on the corrected timeline.
+   */
+  private Event get(long seq) {
+    Event raw = ring[(int) (seq % RETAINED)];
+    Event e = new Event();
+    e.seq = raw.seq;
+    e.collector = raw.collector;
+    e.action = raw.action;
+    e.cause = raw.cause;
+    e.durationMs = raw.durationMs;
+    e.pause = raw.pause;
+    e.startTime = raw.startTime + skew;
+    e.endTime = raw.endTime + skew;
+    return e;
+  }
+
+  /**
+   * Sequence number of the next event.
+   */
+  public synchronized long getNextSeq() {
+    return next;
+  }
+
+  /**
+   * Total time spent in safepoints since the JVM started, in ms, or -1 if unavailable.
+   */
+  public long getSafepointTimeMs() {
+    return invoke(safepointTime);
+  }
+
+  /**
+   * Number of safepoints since the JVM started, or -1 if unavailable.
+   */
+  public long getSafepointCount() {
+    return invoke(safepointCount);
+  }
+
+  private long invoke(Method method) {
+    if (hotspotRuntime == null) {
+      return -1;
+    }
+    try {
+      return (Long) method.invoke(hotspotRuntime);
+    } catch (ReflectiveOperationException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * True if [start, end] overlaps one of the pauses, which must be sorted by start time.
+   */
+  public static boolean overlaps(List<Event> pauses, long start, long end) {
+    for (Event e : pauses) {
+      if (e.startTime > end) {
+        return false;
+      }
+      if (e.endTime >= start) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static class Event {
+    public long seq;
+    public String collector; // e.g. "G1 Young Generation"
+    public String action; // e.g. "end of minor GC"
+    public String cause; // e.g. "G1 Evacuation Pause"
+    public long startTime; // System.nanoTime(), in ns
+    public long endTime; // System.nanoTime(), in ns
+    public long durationMs;
+    public boolean pause; // false for concurrent cycles
+  }
+}
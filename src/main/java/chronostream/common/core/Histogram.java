@@ -0,0 +1,251 @@
+package chronostream.common.core;
+
+import java.util.Arrays;
+
+/**
+ * Log-bucketed histogram of non-negative long values, in the spirit of HdrHistogram.
+ *
+ * Values are grouped in buckets whose width grows with the magnitude of the value, so that every
+ * recorded value is kept with {@code significantDigits} decimal digits of precision while the
+ * counts array stays small (a few thousand longs for 2 digits up to an hour in ns).
+ *
+ * A histogram has a single writer. Other threads can call {@link #add(Histogram)} or
+ * {@link #copy()} at any time to take an (approximate) snapshot; the writer is never blocked.
+ */
+public final class Histogram {
+  private final long highestTrackableValue;
+  private final int significantDigits;
+  private final int subBucketHalfCountMagnitude;
+  private final int subBucketHalfCount;
+  private final int subBucketCount;
+  private final long subBucketMask;
+  private final int leadingZeroCountBase;
+  private final long[] counts;
+
+  private volatile long totalCount;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  public Histogram(long highestTrackableValue, int significantDigits) {
+    if (significantDigits < 1 || significantDigits > 5) {
+      throw new IllegalArgumentException("significantDigits must be between 1 and 5");
+    }
+    if (highestTrackableValue < 2) {
+      throw new IllegalArgumentException("highestTrackableValue must be at least 2");
+    }
+    this.highestTrackableValue = highestTrackableValue;
+    this.significantDigits = significantDigits;
+
+    // We want every value below largestValueWithSingleUnitResolution to land in its own slot.
+    long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    int subBucketCountMagnitude =
+        (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+    subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    subBucketCount = 1 << subBucketCountMagnitude;
+    subBucketHalfCount = subBucketCount / 2;
+    subBucketMask = subBucketCount - 1;
+    leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+    long smallestUntrackableValue = subBucketCount;
+    int bucketsNeeded = 1;
+    while (smallestUntrackableValue <= highestTrackableValue) {
+      if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+        bucketsNeeded++;
+        break;
+      }
+      smallestUntrackableValue <<= 1;
+      bucketsNeeded++;
+    }
+    counts = new long[(bucketsNeeded + 1) * subBucketHalfCount];
+  }
+
+  public long getHighestTrackableValue() {
+    return highestTrackableValue;
+  }
+
+  public int getSignificantDigits() {
+    return significantDigits;
+  }
+
+  /**
+   * Records a value. Negative values are recorded as 0 and values above the highest trackable
+   * value are recorded as the highest trackable value.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    } else if (value > highestTrackableValue) {
+      value = highestTrackableValue;
+    }
+    counts[countsIndex(value)]++;
+    sum += value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+    // Single writer: the volatile write publishes the count/sum/min/max updates above.
+    totalCount = totalCount + 1;
+  }
+
+  /**
+   * Adds the counts of another histogram with the same layout to this one.
+   */
+  public void add(Histogram other) {
+    if (other.counts.length != counts.length || other.subBucketCount != subBucketCount) {
+      throw new IllegalArgumentException("histograms must have the same precision and range");
+    }
+    long otherTotal = other.totalCount;
+    if (otherTotal == 0) {
+      return;
+    }
+    long added = 0;
+    for (int i = 0; i < counts.length; i++) {
+      long c = other.counts[i];
+      counts[i] += c;
+      added += c;
+    }
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    totalCount = totalCount + added;
+  }
+
+  /**
+   * Removes the counts of an earlier snapshot of the same histogram, leaving what was recorded
+   * in between (an interval histogram). Min and max are recomputed from the remaining counts, so
+   * they are only accurate to the histogram's precision.
+   */
+  public void subtract(Histogram earlier) {
+    if (earlier.counts.length != counts.length || earlier.subBucketCount != subBucketCount) {
+      throw new IllegalArgumentException("histograms must have the same precision and range");
+    }
+    long removed = 0;
+    int lowest = -1;
+    int highest = -1;
+    for (int i = 0; i < counts.length; i++) {
+      long c = Math.min(earlier.counts[i], counts[i]);
+      counts[i] -= c;
+      removed += c;
+      if (counts[i] > 0) {
+        if (lowest < 0) {
+          lowest = i;
+        }
+        highest = i;
+      }
+    }
+    sum = Math.max(sum - earlier.sum, 0);
+    if (lowest < 0) {
+      min = Long.MAX_VALUE;
+      max = 0;
+    } else {
+      min = Math.max(valueFromIndex(lowest), min);
+      max = Math.min(highestEquivalentValue(valueFromIndex(highest)), max);
+    }
+    totalCount = totalCount - removed;
+  }
+
+  public Histogram copy() {
+    Histogram h = new Histogram(highestTrackableValue, significantDigits);
+    h.add(this);
+    return h;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+    totalCount = 0;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMin() {
+    return totalCount == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    long n = totalCount;
+    return n == 0 ? 0 : (double) sum / n;
+  }
+
+  /**
+   * Returns the highest value (within the histogram's precision) below which the given
+   * percentage of recorded values fall.
+   *
+   * @param percentile between 0 and 100
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = totalCount;
+    if (n == 0) {
+      return 0;
+    }
+    percentile = Math.min(Math.max(percentile, 0), 100);
+    long countAtPercentile = Math.max(1, (long) (percentile / 100 * n + 0.5));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= countAtPercentile) {
+        return Math.min(highestEquivalentValue(valueFromIndex(i)), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Number of slots in the counts array. Use with {@link #getCountAtIndex(int)} and
+   * {@link #getValueAtIndex(int)} to walk the distribution.
+   */
+  public int getIndexCount() {
+    return counts.length;
+  }
+
+  public long getCountAtIndex(int index) {
+    return counts[index];
+  }
+
+  /**
+   * Highest value which is recorded at the given index.
+   */
+  public long getValueAtIndex(int index) {
+    return highestEquivalentValue(valueFromIndex(index));
+  }
+
+  private int bucketIndex(long value) {
+    return leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+  }
+
+  private int countsIndex(long value) {
+    int bucketIndex = bucketIndex(value);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+    return bucketBaseIndex + subBucketIndex - subBucketHalfCount;
+  }
+
+  private long valueFromIndex(int index) {
+    int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    return (long) subBucketIndex << bucketIndex;
+  }
+
+  private long highestEquivalentValue(long value) {
+    int bucketIndex = bucketIndex(value);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    long lowest = (long) subBucketIndex << bucketIndex;
+    long range = 1L << ((subBucketIndex >= subBucketCount) ? bucketIndex + 1 : bucketIndex);
+    return lowest + range - 1;
+  }
+}
@@ -0,0 +1,191 @@
+package chronostream.common.core;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Dropwizard Reservoir backed by log-bucketed Histograms, so its memory doesn't depend on the
+ * rate of updates.
+ *
+ * Like PerfJobRecorder, every thread records into its own histograms (single writer, no lock, no
+ * shared write) and getSnapshot() merges them. A thread keeps two histograms of WINDOW_SECONDS
+ * each, the current one and the previous one, so a snapshot covers the last 30 to 60 seconds.
+ * A new thread takes over the recorder of a thread which died, if there is one: memory is
+ * bounded by the number of live threads (~70KB each at 2 significant digits), virtual ones too.
+ */
+public final class HistogramReservoir implements Reservoir {
+  private static final long WINDOW_SECONDS = 30;
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(WINDOW_SECONDS);
+  // values in a snapshot's getValues(), see Snapshot.
+  private static final int SNAPSHOT_VALUES = 1000;
+
+  private final long highestTrackableValue;
+  private final int significantDigits;
+  private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Recorder> current = ThreadLocal.withInitial(this::claim);
+
+  public HistogramReservoir(long highestTrackableValue, int significantDigits) {
+    this.highestTrackableValue = highestTrackableValue;
+    this.significantDigits = significantDigits;
+  }
+
+  @Override
+  public void update(long value) {
+    current.get().record(value, System.nanoTime() / WINDOW_NANOS);
+  }
+
+  @Override
+  public int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    Histogram merged = new Histogram(highestTrackableValue, significantDigits);
+    long epoch = System.nanoTime() / WINDOW_NANOS;
+    for (Recorder recorder : recorders) {
+      recorder.addTo(merged, epoch);
+    }
+    return new HistogramSnapshot(merged);
+  }
+
+  /**
+   * Called once per thread, on its first update.
+   */
+  private Recorder claim() {
+    Thread thread = Thread.currentThread();
+    for (Recorder recorder : recorders) {
+      Thread owner = recorder.owner.get();
+      // Once isAlive() is false, the owner's writes are visible to us.
+      if (!owner.isAlive() && recorder.owner.compareAndSet(owner, thread)) {
+        return recorder;
+      }
+    }
+    Recorder recorder = new Recorder(thread);
+    recorders.add(recorder);
+    return recorder;
+  }
+
+  /**
+   * Only written by its owner thread.
+   */
+  private final class Recorder {
+    private final AtomicReference<Thread> owner;
+    private final Histogram[] windows = {
+        new Histogram(highestTrackableValue, significantDigits),
+        new Histogram(highestTrackableValue, significantDigits)};
+    // epoch of each window, set after the window is reset.
+    private final AtomicLongArray epochs = new AtomicLongArray(new long[] {-1, -1});
+
+    Recorder(Thread owner) {
+      this.owner = new AtomicReference<>(owner);
+    }
+
+    void record(long value, long epoch) {
+      int slot = (int) (epoch & 1);
+      if (epochs.get(slot) != epoch) {
+        windows[slot].reset();
+        epochs.set(slot, epoch);
+      }
+      windows[slot].record(value);
+    }
+
+    /**
+     * Approximate, like any read of a Histogram which is being written: a window which is reset
+     * meanwhile may be partly counted.
+     */
+    void addTo(Histogram merged, long epoch) {
+      for (int slot = 0; slot < 2; slot++) {
+        if (epochs.get(slot) >= epoch - 1) {
+          merged.add(windows[slot]);
+        }
+      }
+    }
+  }
+
+  /**
+   * getValues() returns SNAPSHOT_VALUES values at evenly spaced quantiles rather than every
+   * value, which a histogram doesn't keep.
+   */
+  private static final class HistogramSnapshot extends Snapshot {
+    private final Histogram histogram;
+
+    HistogramSnapshot(Histogram histogram) {
+      this.histogram = histogram;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      return histogram.getValueAtPercentile(quantile * 100);
+    }
+
+    @Override
+    public long[] getValues() {
+      if (histogram.getTotalCount() == 0) {
+        return new long[0];
+      }
+      long[] values = new long[SNAPSHOT_VALUES];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = histogram.getValueAtPercentile(100.0 * (i + 1) / values.length);
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+      return histogram.getMax();
+    }
+
+    @Override
+    public double getMean() {
+      return histogram.getMean();
+    }
+
+    @Override
+    public long getMin() {
+      return histogram.getMin();
+    }
+
+    @Override
+    public double getStdDev() {
+      long n = histogram.getTotalCount();
+      if (n < 2) {
+        return 0;
+      }
+      double mean = histogram.getMean();
+      double squares = 0;
+      for (int i = 0; i < histogram.getIndexCount(); i++) {
+        long count = histogram.getCountAtIndex(i);
+        if (count > 0) {
+          double d = histogram.getValueAtIndex(i) - mean;
+          squares += d * d * count;
+        }
+      }
+      return Math.sqrt(squares / (n - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out =
+          new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (long value : getValues()) {
+          out.printf("%d%n", value);
+        }
+      }
+    }
+  }
+}
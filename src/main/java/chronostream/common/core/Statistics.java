@@ -0,0 +1,194 @@
+package chronostream.common.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The few statistical tests used to compare perf runs. All of them are non-parametric or rely on
+ * large samples: latencies are anything but normally distributed.
+ */
+public final class Statistics {
+  private Statistics() {
+  }
+
+  /**
+   * Value at the given percentile (0-100) of a sorted array, nearest rank.
+   */
+  public static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+  }
+
+  /**
+   * Two-sided p-value of the Mann-Whitney U test (normal approximation, with tie correction):
+   * the probability of seeing samples this different if both come from the same distribution.
+   */
+  public static double mannWhitney(long[] a, long[] b) {
+    int n1 = a.length;
+    int n2 = b.length;
+    if (n1 == 0 || n2 == 0) {
+      return 1;
+    }
+    // Rank the pooled samples by merging both sorted samples, a group of equal values gets its
+    // mean rank.
+    long[] sa = a.clone();
+    long[] sb = b.clone();
+    Arrays.sort(sa);
+    Arrays.sort(sb);
+    double rankSumA = 0;
+    double ties = 0;
+    int i = 0;
+    int j = 0;
+    while (i < n1 || j < n2) {
+      long value = j == n2 || (i < n1 && sa[i] < sb[j]) ? sa[i] : sb[j];
+      double inA = 0;
+      while (i < n1 && sa[i] == value) {
+        inA++;
+        i++;
+      }
+      double inB = 0;
+      while (j < n2 && sb[j] == value) {
+        inB++;
+        j++;
+      }
+      // i + j values are ranked so far, this group's ranks are i + j - t + 1 to i + j.
+      double t = inA + inB;
+      rankSumA += inA * (i + j - (t - 1) / 2);
+      ties += t * t * t - t;
+    }
+
+    double u = rankSumA - (double) n1 * (n1 + 1) / 2;
+    double n = n1 + n2;
+    double mean = (double) n1 * n2 / 2;
+    double variance = (double) n1 * n2 / 12 * ((n + 1) - ties / (n * (n - 1)));
+    if (variance <= 0) {
+      return 1;
+    }
+    double z = (Math.abs(u - mean) - 0.5) / Math.sqrt(variance);
+    return Math.min(1, 2 * (1 - normalCdf(Math.max(z, 0))));
+  }
+
+  /**
+   * Percentile bootstrap confidence interval of percentile(b) - percentile(a).
+   *
+   * @param confidence e.g. 0.95
+   * @return {low, high}
+   */
+  public static double[] bootstrapPercentileDelta(long[] a, long[] b, double percentile,
+      double confidence, int resamples, Random random) {
+    if (a.length == 0 || b.length == 0) {
+      return new double[] {0, 0};
+    }
+    double[] deltas = new double[resamples];
+    long[] ra = new long[a.length];
+    long[] rb = new long[b.length];
+    for (int r = 0; r < resamples; r++) {
+      resample(a, ra, random);
+      resample(b, rb, random);
+      deltas[r] = percentile(rb, percentile) - percentile(ra, percentile);
+    }
+    Arrays.sort(deltas);
+    double alpha = (1 - confidence) / 2;
+    return new double[] {
+        deltas[(int) Math.floor(alpha * (resamples - 1))],
+        deltas[(int) Math.ceil((1 - alpha) * (resamples - 1))]};
+  }
+
+  /**
+   * Welch confidence interval of mean(b) - mean(a), with a normal approximation (fine for the
+   * dozens of windows we compare).
+   *
+   * @return {low, high}, {-Infinity, +Infinity} if a or b has less than 2 values
+   */
+  public static double[] meanDelta(double[] a, double[] b, double confidence) {
+    if (a.length < 2 || b.length < 2) {
+      return new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+    }
+    double delta = mean(b) - mean(a);
+    double se = Math.sqrt(variance(a) / a.length + variance(b) / b.length);
+    double z = normalQuantile(1 - (1 - confidence) / 2);
+    return new double[] {delta - z * se, delta + z * se};
+  }
+
+  public static double mean(double[] values) {
+    double sum = 0;
+    for (double v : values) {
+      sum += v;
+    }
+    return sum / values.length;
+  }
+
+  /**
+   * Sample variance.
+   */
+  public static double variance(double[] values) {
+    double mean = mean(values);
+    double sum = 0;
+    for (double v : values) {
+      sum += (v - mean) * (v - mean);
+    }
+    return sum / (values.length - 1);
+  }
+
+  /**
+   * Uniform random subset of at most max values, in random order. Returns values if it is small
+   * enough.
+   */
+  public static long[] subsample(long[] values, int max, Random random) {
+    if (values.length <= max) {
+      return values;
+    }
+    long[] copy = values.clone();
+    // Partial Fisher-Yates shuffle.
+    for (int i = 0; i < max; i++) {
+      int j = i + random.nextInt(copy.length - i);
+      long t = copy[i];
+      copy[i] = copy[j];
+      copy[j] = t;
+    }
+    return Arrays.copyOf(copy, max);
+  }
+
+  /**
+   * Fills out (sorted) with values drawn with replacement from values.
+   */
+  private static void resample(long[] values, long[] out, Random random) {
+    for (int i = 0; i < out.length; i++) {
+      out[i] = values[random.nextInt(values.length)];
+    }
+    Arrays.sort(out);
+  }
+
+  /**
+   * Standard normal CDF (Abramowitz and Stegun 26.2.17, error below 7.5e-8).
+   */
+  static double normalCdf(double z) {
+    if (z < 0) {
+      return 1 - normalCdf(-z);
+    }
+    double t = 1 / (1 + 0.2316419 * z);
+    double poly = t * (0.319381530 + t * (-0.356563782 + t * (1.781477937
+        + t * (-1.821255978 + t * 1.330274429))));
+    return 1 - Math.exp(-z * z / 2) / Math.sqrt(2 * Math.PI) * poly;
+  }
+
+  /**
+   * Inverse of normalCdf, by bisection (error below 2e-6 for p in [0.025, 0.975]).
+   */
+  static double normalQuantile(double p) {
+    double lo = -10;
+    double hi = 10;
+    for (int i = 0; i < 100; i++) {
+      double mid = (lo + hi) / 2;
+      if (normalCdf(mid) < p) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return (lo + hi) / 2;
+  }
+}
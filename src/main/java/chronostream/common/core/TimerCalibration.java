@@ -0,0 +1,55 @@
+package chronostream.common.core;
+
+import static java.lang.String.format;
+
+/**
+ * Measures the cost and granularity of System.nanoTime() on this host.
+ *
+ * Every perf sample is bracketed by two nanoTime() calls, so latencies below a few times the
+ * overhead or granularity reported here should not be taken at face value.
+ */
+public final class TimerCalibration {
+  private static final int WARMUP = 1000000;
+  private static final int ROUNDS = 10000000;
+
+  public final long overhead;    // average cost of a nanoTime() call, in ns
+  public final long granularity; // smallest non-zero difference between two reads, in ns
+  public final double zeroDeltaRatio; // fraction of back to back reads which return the same value
+
+  private TimerCalibration(long overhead, long granularity, double zeroDeltaRatio) {
+    this.overhead = overhead;
+    this.granularity = granularity;
+    this.zeroDeltaRatio = zeroDeltaRatio;
+  }
+
+  public static TimerCalibration measure() {
+    // Let the JIT compile the loops before we measure anything.
+    run(WARMUP);
+    return run(ROUNDS);
+  }
+
+  private static TimerCalibration run(int rounds) {
+    long granularity = Long.MAX_VALUE;
+    long zeros = 0;
+    long start = System.nanoTime();
+    long previous = start;
+    for (int i = 0; i < rounds; i++) {
+      long now = System.nanoTime();
+      long delta = now - previous;
+      if (delta == 0) {
+        zeros++;
+      } else if (delta < granularity) {
+        granularity = delta;
+      }
+      previous = now;
+    }
+    long overhead = (previous - start) / rounds;
+    return new TimerCalibration(overhead, granularity, (double) zeros / rounds);
+  }
+
+  @Override
+  public String toString() {
+    return format("nanoTime overhead: %d ns, granularity: %d ns, identical reads: %.2f%%",
+        overhead, granularity, zeroDeltaRatio * 100);
+  }
+}
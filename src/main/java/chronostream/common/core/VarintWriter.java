@@ -0,0 +1,87 @@
+package chronostream.common.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes unsigned LEB128 varints (7 bits per byte, least significant group first, high bit set on
+ * every byte but the last) to an OutputStream. Signed values are zigzag encoded first, so small
+ * negative numbers stay short.
+ *
+ * Bytes go through a fixed buffer, writing a value does not allocate. Not thread safe.
+ */
+public final class VarintWriter {
+  private static final int BUFFER_SIZE = 1 << 13;
+
+  private final OutputStream out;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+
+  public VarintWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Number of bytes varint(v) takes.
+   */
+  public static int size(long v) {
+    int n = 1;
+    while ((v & ~0x7FL) != 0) {
+      v >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  public static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  public VarintWriter writeByte(int b) throws IOException {
+    ensure(1);
+    buffer[position++] = (byte) b;
+    return this;
+  }
+
+  /**
+   * Writes a big-endian 32 bit int, used for frame lengths.
+   */
+  public VarintWriter writeInt(int v) throws IOException {
+    ensure(4);
+    buffer[position++] = (byte) (v >>> 24);
+    buffer[position++] = (byte) (v >>> 16);
+    buffer[position++] = (byte) (v >>> 8);
+    buffer[position++] = (byte) v;
+    return this;
+  }
+
+  /**
+   * v is treated as unsigned, negative values take 10 bytes: use zigzag().
+   */
+  public VarintWriter varint(long v) throws IOException {
+    ensure(10);
+    while ((v & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buffer[position++] = (byte) v;
+    return this;
+  }
+
+  public VarintWriter signedVarint(long v) throws IOException {
+    return varint(zigzag(v));
+  }
+
+  public void flush() throws IOException {
+    out.write(buffer, 0, position);
+    position = 0;
+    out.flush();
+  }
+
+  private void ensure(int n) throws IOException {
+    if (BUFFER_SIZE - position < n) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+}
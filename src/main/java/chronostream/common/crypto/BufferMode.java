@@ -0,0 +1,34 @@
+package chronostream.common.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How the input and output of an operation are held in memory.
+ *
+ * Some providers (BouncyCastle, PKCS#11 bridges) have different code paths for byte[] and for
+ * ByteBuffers, and for heap vs direct ByteBuffers.
+ */
+public enum BufferMode {
+  HEAP_ARRAY("heap byte[]"),
+  HEAP_BUFFER("heap ByteBuffer"),
+  DIRECT_BUFFER("direct ByteBuffer");
+
+  public String name;
+
+  BufferMode(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Allocates a buffer of the given capacity, only valid for the ByteBuffer modes.
+   */
+  public ByteBuffer allocate(int capacity) {
+    switch (this) {
+      case HEAP_BUFFER:
+        return ByteBuffer.allocate(capacity);
+      case DIRECT_BUFFER:
+        return ByteBuffer.allocateDirect(capacity);
+    }
+    throw new IllegalStateException(String.format("%s doesn't use ByteBuffers", name));
+  }
+}
@@ -0,0 +1,62 @@
+package chronostream.common.crypto;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a single crypto operation, so that a recording shows them next to lock
+ * contention, I/O and GC in Mission Control.
+ *
+ * Disabled unless a recording enables it (see FlightRecording). While disabled, begin() and
+ * record() do nothing and the JIT removes the allocation of the event, so a steady-state
+ * operation still doesn't allocate.
+ *
+ * Usage: create and begin() right before the operation, record() right after it.
+ */
+@Name("chronostream.CryptoOperation")
+@Label("Crypto Operation")
+@Category("Chronostream")
+@Description("A crypto operation run by a perf or correctness job")
+@Enabled(false)
+@StackTrace(false)
+public class CryptoEvent extends Event {
+  @Label("Job")
+  @Description("perf or correctness")
+  String job;
+
+  @Label("Provider")
+  String provider;
+
+  @Label("Primitive")
+  String primitive;
+
+  @Label("Key Size")
+  int keySize;
+
+  @Label("Payload Size")
+  @DataAmount
+  int payloadSize;
+
+  /**
+   * Ends the event and commits it if the recording wants it, i.e. if it is enabled and took
+   * longer than the recording's threshold.
+   */
+  public void record(String job, CryptoProvider provider, CryptoPrimitive primitive, int keySize,
+      int payloadSize) {
+    end();
+    if (shouldCommit()) {
+      this.job = job;
+      this.provider = provider.getName();
+      this.primitive = primitive.name();
+      this.keySize = keySize;
+      this.payloadSize = payloadSize;
+      commit();
+    }
+  }
+}
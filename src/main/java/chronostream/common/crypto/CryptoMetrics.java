@@ -0,0 +1,84 @@
+package chronostream.common.crypto;
+
+import chronostream.common.core.HistogramReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dropwizard metrics of the crypto operations, served on the admin port (and by any configured
+ * reporter), so that chronostream can feed dashboards as a long-lived canary:
+ * - chronostream.crypto.<job>.<provider>.<primitive>.<keySize>: a timer per kind of operation,
+ * - chronostream.crypto.<provider>.errors: operations which threw,
+ * - chronostream.crypto.<provider>.inFlight: operations currently running.
+ *
+ * Timers keep the last 30 to 60 seconds of latencies in a HistogramReservoir: per thread, so perf
+ * workers don't share a monitor or a cache line, and bounded, whatever the rate of operations.
+ * Look up an Operation once, outside of the measured loop.
+ */
+public class CryptoMetrics {
+  private static final String PREFIX = "chronostream.crypto";
+  // latencies above this are recorded as this, in ns.
+  private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(10);
+
+  private final MetricRegistry registry;
+  private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+  private final Map<String, Meter> errors = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> inFlight = new ConcurrentHashMap<>();
+
+  public CryptoMetrics(MetricRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * @param job perf or correctness, their latencies don't mean the same thing
+   */
+  public Operation operation(String job, CryptoProvider provider, CryptoPrimitive primitive,
+      int keySize) {
+    String name = MetricRegistry.name(PREFIX, job, provider.getName(), primitive.name(),
+        Integer.toString(keySize));
+    return operations.computeIfAbsent(name, n -> new Operation(
+        registry.register(n, new Timer(new HistogramReservoir(HIGHEST_LATENCY, 2))),
+        errors.computeIfAbsent(provider.getName(),
+            p -> registry.meter(MetricRegistry.name(PREFIX, p, "errors"))),
+        inFlight.computeIfAbsent(provider.getName(), p -> {
+          LongAdder running = new LongAdder();
+          registry.register(MetricRegistry.name(PREFIX, p, "inFlight"), (Gauge<Long>) running::sum);
+          return running;
+        })));
+  }
+
+  /**
+   * Call start() right before an operation, then either success() or failure().
+   */
+  public static class Operation {
+    private final Timer timer;
+    private final Meter errors;
+    private final LongAdder inFlight;
+
+    private Operation(Timer timer, Meter errors, LongAdder inFlight) {
+      this.timer = timer;
+      this.errors = errors;
+      this.inFlight = inFlight;
+    }
+
+    public void start() {
+      inFlight.increment();
+    }
+
+    public void success(long nanos) {
+      inFlight.decrement();
+      timer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void failure() {
+      inFlight.decrement();
+      errors.mark();
+    }
+  }
+}
@@ -1,8 +1,11 @@
 package chronostream.common.crypto;
 
 import chronostream.Config;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
@@ -13,22 +16,44 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
 import static java.lang.String.format;
 
+/**
+ * Runs the crypto primitives on a given JCA provider.
+ *
+ * Every operation comes in two flavors: by default, Cipher and Mac instances are looked up for
+ * each call. With cached set, each thread re-uses its own instances (see InstanceCache).
+ */
 public class CryptoProvider {
+  private static final String AES_CBC = "AES/CBC/PKCS5Padding";
+  private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA1AndMGF1Padding";
+  private static final String HMAC_SHA256 = "HmacSHA256";
+
   private String name;
   private Provider provider;
   private Hkdf hkdf;
+  private InstanceCache cache;
   private boolean allowsExport;
 
   public CryptoProvider(Config.CryptoProvider config) throws Exception {
     System.out.println(format("Initializing: %s", config));
 
-    provider = (Provider) (Class.forName(config.provider()).newInstance());
+    try {
+      provider = (Provider) (Class.forName(config.provider()).newInstance());
+    } catch (IllegalAccessException e) {
+      provider = installedProvider(config.provider());
+      if (provider == null) {
+        throw e;
+      }
+    }
+    if (provider instanceof SimulatedHsmProvider) {
+      ((SimulatedHsmProvider) provider).setSimulation(config.simulation());
+    }
     Security.addProvider(provider);
 
     if (provider.getClass().getName().equals("com.safenetinc.luna.provider.LunaProvider")) {
@@ -47,11 +72,25 @@ public class CryptoProvider {
         format("Provider: %s, maxAllowedKeyLength: %d", config.name(), maxAllowedKeyLength));
 
     hkdf = new Hkdf(provider);
+    cache = new InstanceCache(provider);
 
     name = config.name();
     allowsExport = config.allowsExport();
   }
 
+  /**
+   * The installed provider of the given class, if any. Since Java 16, some of them (e.g. SunJCE)
+   * can't be instantiated by reflection, their packages aren't open.
+   */
+  private static Provider installedProvider(String className) {
+    for (Provider p : Security.getProviders()) {
+      if (p.getClass().getName().equals(className)) {
+        return p;
+      }
+    }
+    return null;
+  }
+
   public boolean allowsExport() {
     return allowsExport;
   }
@@ -96,43 +135,220 @@ public class CryptoProvider {
   // HmacSha256
 
   public byte[] doHKDF(Object key, byte[] bytes) throws Exception {
+    return doHKDF(key, bytes, false);
+  }
+
+  public byte[] doHKDF(Object key, byte[] bytes, boolean cached) throws Exception {
+    if (cached) {
+      return hkdf.expand(cache.mac(HMAC_SHA256, (SecretKey)key), bytes, 16);
+    }
     return hkdf.expand((SecretKey)key, bytes, 16);
   }
 
+  /**
+   * Derives 16 bytes into out, see doAesCbcEncryption for the buffer conventions.
+   */
+  public int doHKDF(Object key, byte[] in, int inOffset, int inLength, byte[] out, int outOffset,
+      boolean cached) throws Exception {
+    Mac mac = cached ? cache.mac(HMAC_SHA256, (SecretKey)key) : hkdf.initMac((SecretKey)key);
+    return hkdf.expand(mac, in, inOffset, inLength, out, outOffset, 16);
+  }
+
   // AES CBC
 
   public byte[] doAesCbcEncryption(Object key, byte[] bytes, byte[] iv) throws Exception {
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", provider);
+    return doAesCbcEncryption(key, bytes, iv, false);
+  }
+
+  public byte[] doAesCbcEncryption(Object key, byte[] bytes, byte[] iv, boolean cached)
+      throws Exception {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.ENCRYPT_MODE, (SecretKey)key, iv, bytes);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
     cipher.init(Cipher.ENCRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
     return cipher.doFinal(bytes);
   }
 
+  /**
+   * Encrypts in[inOffset..inOffset+inLength) into out, starting at outOffset, and returns the number
+   * of bytes written. In cached mode, a steady-state call doesn't allocate on our side (providers
+   * may still allocate internally).
+   */
+  public int doAesCbcEncryption(Object key, byte[] in, int inOffset, int inLength, byte[] iv,
+      byte[] out, int outOffset, boolean cached) throws Exception {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.ENCRYPT_MODE, (SecretKey)key, iv, in, inOffset, inLength, out,
+          outOffset);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
+    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
+    return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+  }
+
+  /**
+   * Encrypts the remaining bytes of in into out, using Cipher.doFinal(ByteBuffer, ByteBuffer). Both
+   * buffers can be heap or direct. Returns the number of bytes written.
+   */
+  public int doAesCbcEncryption(Object key, ByteBuffer in, byte[] iv, ByteBuffer out,
+      boolean cached) throws Exception {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.ENCRYPT_MODE, (SecretKey)key, iv, in, out);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
+    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
+    return cipher.doFinal(in, out);
+  }
+
   public byte[] doAesCbcDecryption(Object key, byte[] bytes, byte[] iv) throws IllegalBlockSizeException,
       BadPaddingException, InvalidKeyException, InvalidAlgorithmParameterException,
       NoSuchAlgorithmException, NoSuchPaddingException{
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", provider);
+    return doAesCbcDecryption(key, bytes, iv, false);
+  }
+
+  public byte[] doAesCbcDecryption(Object key, byte[] bytes, byte[] iv, boolean cached)
+      throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.DECRYPT_MODE, (SecretKey)key, iv, bytes);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
     cipher.init(Cipher.DECRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
     return cipher.doFinal(bytes);
   }
 
+  public int doAesCbcDecryption(Object key, byte[] in, int inOffset, int inLength, byte[] iv,
+      byte[] out, int outOffset, boolean cached) throws Exception {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.DECRYPT_MODE, (SecretKey)key, iv, in, inOffset, inLength, out,
+          outOffset);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
+    cipher.init(Cipher.DECRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
+    return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+  }
+
+  public int doAesCbcDecryption(Object key, ByteBuffer in, byte[] iv, ByteBuffer out,
+      boolean cached) throws Exception {
+    if (cached) {
+      return doFinal(AES_CBC, Cipher.DECRYPT_MODE, (SecretKey)key, iv, in, out);
+    }
+    Cipher cipher = Cipher.getInstance(AES_CBC, provider);
+    cipher.init(Cipher.DECRYPT_MODE, (SecretKey)key, new IvParameterSpec(iv));
+    return cipher.doFinal(in, out);
+  }
+
   // RSA
 
   public byte[] doRsaEncryption(Object keyPair, byte[] bytes) throws Exception {
+    return doRsaEncryption(keyPair, bytes, false);
+  }
+
+  public byte[] doRsaEncryption(Object keyPair, byte[] bytes, boolean cached) throws Exception {
     if (provider.getClass().getName().equals("com.sun.crypto.provider.SunJCE")) {
       return bytes;
     }
-    Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding", provider);
+    if (cached) {
+      return doFinal(RSA_OAEP, Cipher.ENCRYPT_MODE, ((KeyPair)keyPair).getPublic(), null, bytes);
+    }
+    Cipher cipher = Cipher.getInstance(RSA_OAEP, provider);
     cipher.init(Cipher.ENCRYPT_MODE, ((KeyPair)keyPair).getPublic());
     return cipher.doFinal(bytes);
   }
 
+  public int doRsaEncryption(Object keyPair, byte[] in, int inOffset, int inLength, byte[] out,
+      int outOffset, boolean cached) throws Exception {
+    if (provider.getClass().getName().equals("com.sun.crypto.provider.SunJCE")) {
+      System.arraycopy(in, inOffset, out, outOffset, inLength);
+      return inLength;
+    }
+    if (cached) {
+      return doFinal(RSA_OAEP, Cipher.ENCRYPT_MODE, ((KeyPair)keyPair).getPublic(), null, in,
+          inOffset, inLength, out, outOffset);
+    }
+    Cipher cipher = Cipher.getInstance(RSA_OAEP, provider);
+    cipher.init(Cipher.ENCRYPT_MODE, ((KeyPair)keyPair).getPublic());
+    return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+  }
+
   public byte[] doRsaDecryption(Object keyPair, byte[] bytes) throws IllegalBlockSizeException,
       BadPaddingException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
+    return doRsaDecryption(keyPair, bytes, false);
+  }
+
+  public byte[] doRsaDecryption(Object keyPair, byte[] bytes, boolean cached)
+      throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+      NoSuchAlgorithmException, NoSuchPaddingException {
     if (provider.getClass().getName().equals("com.sun.crypto.provider.SunJCE")) {
       return bytes;
     }
-    Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding", provider);
+    if (cached) {
+      try {
+        return doFinal(RSA_OAEP, Cipher.DECRYPT_MODE, ((KeyPair)keyPair).getPrivate(), null, bytes);
+      } catch (InvalidAlgorithmParameterException e) {
+        throw new InvalidKeyException(e);
+      }
+    }
+    Cipher cipher = Cipher.getInstance(RSA_OAEP, provider);
     cipher.init(Cipher.DECRYPT_MODE, ((KeyPair)keyPair).getPrivate());
     return cipher.doFinal(bytes);
   }
+
+  public int doRsaDecryption(Object keyPair, byte[] in, int inOffset, int inLength, byte[] out,
+      int outOffset, boolean cached) throws Exception {
+    if (provider.getClass().getName().equals("com.sun.crypto.provider.SunJCE")) {
+      System.arraycopy(in, inOffset, out, outOffset, inLength);
+      return inLength;
+    }
+    if (cached) {
+      return doFinal(RSA_OAEP, Cipher.DECRYPT_MODE, ((KeyPair)keyPair).getPrivate(), null, in,
+          inOffset, inLength, out, outOffset);
+    }
+    Cipher cipher = Cipher.getInstance(RSA_OAEP, provider);
+    cipher.init(Cipher.DECRYPT_MODE, ((KeyPair)keyPair).getPrivate());
+    return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+  }
+
+  private int doFinal(String transformation, int mode, Key key, byte[] iv, byte[] in,
+      int inOffset, int inLength, byte[] out, int outOffset) throws GeneralSecurityException {
+    try {
+      return cache.cipher(transformation, mode, key, iv).doFinal(in, inOffset, inLength, out,
+          outOffset);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      cache.invalidate(transformation, mode);
+      throw e;
+    }
+  }
+
+  private int doFinal(String transformation, int mode, Key key, byte[] iv, ByteBuffer in,
+      ByteBuffer out) throws GeneralSecurityException {
+    try {
+      return cache.cipher(transformation, mode, key, iv).doFinal(in, out);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      cache.invalidate(transformation, mode);
+      throw e;
+    }
+  }
+
+  /**
+   * Runs doFinal on this thread's cached Cipher. A Cipher which fails is dropped from the cache,
+   * since we don't know which state it's in.
+   */
+  private byte[] doFinal(String transformation, int mode, Key key, byte[] iv, byte[] bytes)
+      throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+    try {
+      return cache.cipher(transformation, mode, key, iv).doFinal(bytes);
+    } catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException
+        | InvalidAlgorithmParameterException | NoSuchAlgorithmException | NoSuchPaddingException e) {
+      cache.invalidate(transformation, mode);
+      throw e;
+    } catch (GeneralSecurityException e) {
+      cache.invalidate(transformation, mode);
+      throw new InvalidKeyException(e);
+    } catch (RuntimeException e) {
+      cache.invalidate(transformation, mode);
+      throw e;
+    }
+  }
 }
@@ -7,6 +7,7 @@ import java.security.Provider;
 import javax.annotation.Nullable;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 
 import static java.util.Objects.requireNonNull;
 
@@ -33,6 +34,7 @@ import static java.util.Objects.requireNonNull;
  */
 public class Hkdf {
   private final Provider provider;
+  private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[32]);
 
   public Hkdf(Provider provider) {
     this.provider = provider;
@@ -48,6 +50,20 @@ public class Hkdf {
    */
   public byte[] expand(SecretKey key, @Nullable byte[] info, int outputLength) {
     requireNonNull(key, "key must not be null");
+    return expand(initMac(key), info, outputLength);
+  }
+
+  /**
+   * HKDF-Expand(PRK, info, L) -&gt; OKM, using a Mac which has already been initialized with the
+   * PRK. Lets callers re-use Mac instances instead of looking one up for every call.
+   *
+   * @param mac a HmacSHA256 Mac initialized with the pseudorandom key
+   * @param info context and application specific information (can be empty)
+   * @param outputLength length of output keying material in bytes (&lt;= 255*HashLen)
+   * @return output keying material
+   */
+  public byte[] expand(Mac mac, @Nullable byte[] info, int outputLength) {
+    requireNonNull(mac, "mac must not be null");
     if (outputLength < 1) {
       throw new IllegalArgumentException("outputLength must be positive");
     }
@@ -81,7 +97,6 @@ public class Hkdf {
     byte[] hashRound = new byte[0];
 
     ByteBuffer generatedBytes = ByteBuffer.allocate(Math.multiplyExact(n, hashLen));
-    Mac mac = initMac(key);
     for (int roundNum = 1; roundNum <= n; roundNum++) {
       mac.reset();
       mac.update(hashRound);
@@ -97,7 +112,53 @@ public class Hkdf {
     return result;
   }
 
-  private Mac initMac(SecretKey key) {
+  /**
+   * HKDF-Expand(PRK, info, L) -&gt; OKM, written into a caller supplied array. Apart from a per-thread
+   * scratch block, nothing is allocated.
+   *
+   * @param mac a HmacSHA256 Mac initialized with the pseudorandom key
+   * @param info context and application specific information
+   * @param infoOffset offset of the information in info
+   * @param infoLength length of the information
+   * @param out receives the output keying material
+   * @param outOffset where to write in out
+   * @param outputLength length of output keying material in bytes (&lt;= 255*HashLen)
+   * @return outputLength
+   */
+  public int expand(Mac mac, byte[] info, int infoOffset, int infoLength, byte[] out,
+      int outOffset, int outputLength) {
+    requireNonNull(mac, "mac must not be null");
+    if (outputLength < 1) {
+      throw new IllegalArgumentException("outputLength must be positive");
+    }
+    int hashLen = 32;
+    if (outputLength > 255 * hashLen) {
+      throw new IllegalArgumentException("outputLength must be less than or equal to 255*HashLen");
+    }
+
+    // Same algorithm as above. T(i) is kept in the scratch block.
+    byte[] hashRound = scratch.get();
+    int written = 0;
+    for (int roundNum = 1; written < outputLength; roundNum++) {
+      mac.reset();
+      if (roundNum > 1) {
+        mac.update(hashRound, 0, hashLen);
+      }
+      mac.update(info, infoOffset, infoLength);
+      mac.update((byte) roundNum);
+      try {
+        mac.doFinal(hashRound, 0);
+      } catch (ShortBufferException e) {
+        throw new IllegalArgumentException(e);
+      }
+      int n = Math.min(hashLen, outputLength - written);
+      System.arraycopy(hashRound, 0, out, outOffset + written, n);
+      written += n;
+    }
+    return outputLength;
+  }
+
+  Mac initMac(SecretKey key) {
     Mac mac;
     try {
       mac = Mac.getInstance("HmacSHA256", provider);
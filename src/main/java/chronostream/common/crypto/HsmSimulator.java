@@ -0,0 +1,139 @@
+package chronostream.common.crypto;
+
+import chronostream.Config;
+import java.security.ProviderException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The device side of SimulatedHsmProvider: a fixed number of sessions, a service time per
+ * operation, stalls and errors.
+ *
+ * An operation holds a session from begin() to end(), operations which don't get one queue up in
+ * arrival order. The service time covers the delegate's work: complete() only waits for what is
+ * left of it. A stall holds up every operation in service until it is over, queued ones wait
+ * behind them. Waits park the thread, like a call to a network HSM would.
+ */
+class HsmSimulator {
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+      LockSupport.parkNanos(nanos);
+    }
+  };
+
+  private final Clock clock;
+  private final Semaphore sessions; // null for unlimited
+  private final ServiceTimeDistribution serviceTime;
+  private final double meanNanos;
+  private final double stddevNanos;
+  private final double mu; // of the log, for LOGNORMAL
+  private final double sigma;
+  private final double stallProbability;
+  private final long stallNanos;
+  private final double errorProbability;
+  // clock.nanoTime() until which the device is stalled.
+  private final AtomicLong stalledUntil;
+
+  HsmSimulator(Config.Simulation config) {
+    this(config, SYSTEM_CLOCK);
+  }
+
+  HsmSimulator(Config.Simulation config, Clock clock) {
+    this.clock = clock;
+    stalledUntil = new AtomicLong(clock.nanoTime());
+    sessions = config.sessions() > 0 ? new Semaphore(config.sessions(), true) : null;
+    serviceTime = config.getServiceTime();
+    meanNanos = TimeUnit.MICROSECONDS.toNanos(config.serviceTimeMicros());
+    stddevNanos = TimeUnit.MICROSECONDS.toNanos(config.serviceTimeStddevMicros());
+    double variance = meanNanos == 0 ? 0
+        : Math.log1p(stddevNanos * stddevNanos / (meanNanos * meanNanos));
+    sigma = Math.sqrt(variance);
+    mu = Math.log(meanNanos) - variance / 2;
+    stallProbability = config.stallProbability();
+    stallNanos = TimeUnit.MILLISECONDS.toNanos(config.stallMs());
+    errorProbability = config.errorProbability();
+  }
+
+  /**
+   * Waits for a session and returns the clock.nanoTime() at which the operation is done. Must be
+   * followed by end(), whatever happens.
+   */
+  long begin() {
+    if (sessions != null) {
+      try {
+        sessions.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ProviderException("interrupted while waiting for a session");
+      }
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long now = clock.nanoTime();
+    if (stallNanos > 0 && random.nextDouble() < stallProbability) {
+      stalledUntil.accumulateAndGet(now + stallNanos, Math::max);
+    }
+    return now + sample(random);
+  }
+
+  /**
+   * Waits until the operation is done (or the device isn't stalled anymore) and injects errors.
+   * Call it once the delegate has succeeded.
+   */
+  void complete(long doneAt) {
+    long until = doneAt;
+    long now = clock.nanoTime();
+    // a stall which starts while we wait holds us up too.
+    while (now < (until = Math.max(until, stalledUntil.get()))) {
+      clock.parkNanos(until - now);
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      now = clock.nanoTime();
+    }
+    if (errorProbability > 0 && ThreadLocalRandom.current().nextDouble() < errorProbability) {
+      throw new ProviderException("simulated HSM error");
+    }
+  }
+
+  void end() {
+    if (sessions != null) {
+      sessions.release();
+    }
+  }
+
+  private long sample(ThreadLocalRandom random) {
+    if (meanNanos == 0) {
+      return 0;
+    }
+    switch (serviceTime) {
+      case CONSTANT:
+        return (long) meanNanos;
+      case UNIFORM:
+        double halfWidth = stddevNanos * Math.sqrt(3);
+        return (long) Math.max(meanNanos + (random.nextDouble() * 2 - 1) * halfWidth, 0);
+      case EXPONENTIAL:
+        return (long) (-meanNanos * Math.log(1 - random.nextDouble()));
+      case LOGNORMAL:
+        return (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+    throw new RuntimeException("unreachable");
+  }
+
+  /**
+   * Time source and waits, SYSTEM_CLOCK unless tests simulate the time.
+   */
+  interface Clock {
+    long nanoTime();
+
+    void parkNanos(long nanos);
+  }
+}
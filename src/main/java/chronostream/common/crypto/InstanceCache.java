@@ -0,0 +1,103 @@
+package chronostream.common.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Per-thread cache of Cipher and Mac instances.
+ *
+ * Cipher.getInstance and Mac.getInstance go through the provider's (synchronized) service lookup
+ * and allocate a new engine every time. Instead, each thread keeps one instance per transformation
+ * and mode. An instance is re-initialized only when the key or the iv changes: after doFinal,
+ * Cipher and Mac objects go back to the state they were in right after init.
+ */
+final class InstanceCache {
+  private final Provider provider;
+  private final ThreadLocal<Map<String, CachedCipher[]>> ciphers =
+      ThreadLocal.withInitial(HashMap::new);
+  private final ThreadLocal<Map<String, CachedMac>> macs = ThreadLocal.withInitial(HashMap::new);
+
+  InstanceCache(Provider provider) {
+    this.provider = provider;
+  }
+
+  /**
+   * Returns a Cipher, initialized for the given mode, key and (optional) iv.
+   */
+  Cipher cipher(String transformation, int mode, Key key, byte[] iv)
+      throws GeneralSecurityException {
+    CachedCipher[] byMode = ciphers.get().computeIfAbsent(transformation, t -> new CachedCipher[5]);
+    CachedCipher c = byMode[mode];
+    if (c == null) {
+      c = new CachedCipher(Cipher.getInstance(transformation, provider));
+      byMode[mode] = c;
+    }
+    if (c.key != key || !Arrays.equals(c.iv, iv)) {
+      // Forget the previous key first, in case init fails.
+      c.key = null;
+      if (iv == null) {
+        c.cipher.init(mode, key);
+      } else {
+        c.cipher.init(mode, key, new IvParameterSpec(iv));
+      }
+      c.key = key;
+      c.iv = iv == null ? null : iv.clone();
+    }
+    return c.cipher;
+  }
+
+  /**
+   * Drops a Cipher whose state is unknown, e.g. because doFinal threw.
+   */
+  void invalidate(String transformation, int mode) {
+    CachedCipher[] byMode = ciphers.get().get(transformation);
+    if (byMode != null) {
+      byMode[mode] = null;
+    }
+  }
+
+  /**
+   * Returns a Mac initialized with the given key.
+   */
+  Mac mac(String algorithm, Key key) throws GeneralSecurityException {
+    CachedMac m = macs.get().get(algorithm);
+    if (m == null) {
+      m = new CachedMac(Mac.getInstance(algorithm, provider));
+      macs.get().put(algorithm, m);
+    }
+    if (m.key != key) {
+      m.key = null;
+      m.mac.init(key);
+      m.key = key;
+    } else {
+      m.mac.reset();
+    }
+    return m.mac;
+  }
+
+  private static class CachedCipher {
+    final Cipher cipher;
+    Key key;
+    byte[] iv;
+
+    CachedCipher(Cipher cipher) {
+      this.cipher = cipher;
+    }
+  }
+
+  private static class CachedMac {
+    final Mac mac;
+    Key key;
+
+    CachedMac(Mac mac) {
+      this.mac = mac;
+    }
+  }
+}
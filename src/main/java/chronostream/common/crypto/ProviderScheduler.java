@@ -0,0 +1,271 @@
+package chronostream.common.crypto;
+
+import chronostream.Config;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shares the providers between the perf and correctness jobs: each (job, provider) pair is a lane
+ * with an ops/sec and a concurrency budget, 0 meaning unlimited. Operations acquire a slot in
+ * their lane before running and release it after.
+ *
+ * While a perf step runs, correctness traffic is paused, throttled to throttledOpsPerSec or left
+ * alone, depending on correctnessDuringPerf (throttling to 0 pauses): sharing an HSM (or the CPU)
+ * with it would distort the step's results. A paused step only starts measuring once the
+ * correctness operations already running are done.
+ *
+ * Perf lanes are unlimited by default and then cost a volatile read per operation, outside of the
+ * measured time.
+ */
+public class ProviderScheduler {
+  private final Map<String, Lane> lanes = new HashMap<>(); // filled once, by the constructor
+  private volatile DuringPerf duringPerf;
+  private volatile int throttledOpsPerSec;
+  private volatile boolean perfRunning;
+
+  public ProviderScheduler(Config.Scheduler config, List<CryptoProvider> providers) {
+    this.duringPerf = config.getCorrectnessDuringPerf();
+    this.throttledOpsPerSec = config.throttledOpsPerSec();
+    for (CryptoProvider provider : providers) {
+      lanes.put(key(JobType.PERF, provider.getName()),
+          new Lane(JobType.PERF, provider.getName(), 0, 0));
+      lanes.put(key(JobType.CORRECTNESS, provider.getName()),
+          new Lane(JobType.CORRECTNESS, provider.getName(), config.correctnessOpsPerSec(),
+              config.correctnessConcurrency()));
+    }
+  }
+
+  public Lane lane(JobType job, CryptoProvider provider) {
+    return lane(job, provider.getName());
+  }
+
+  private Lane lane(JobType job, String provider) {
+    Lane lane = lanes.get(key(job, provider));
+    if (lane == null) {
+      throw new IllegalArgumentException("unknown provider: " + provider);
+    }
+    return lane;
+  }
+
+  private static String key(JobType job, String provider) {
+    return job.name() + "/" + provider;
+  }
+
+  /**
+   * Called by PerfJob around each step.
+   */
+  public void setPerfRunning(boolean running) {
+    synchronized (this) {
+      perfRunning = running;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Called by PerfJob after setPerfRunning(true): waits until no correctness operation runs, if
+   * correctness traffic is paused.
+   */
+  public void awaitCorrectnessDrained() throws InterruptedException {
+    for (Lane lane : lanes.values()) {
+      if (lane.job == JobType.CORRECTNESS) {
+        synchronized (lane) {
+          while (lane.running > 0 && isCorrectnessPaused()) {
+            lane.wait();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Changes a lane's budgets, null leaves a budget as it is.
+   */
+  public void setBudget(JobType job, String provider, Integer opsPerSec, Integer concurrency) {
+    Lane lane = lane(job, provider);
+    if (opsPerSec != null) {
+      lane.opsPerSec = Math.max(opsPerSec, 0);
+    }
+    if (concurrency != null) {
+      lane.setConcurrency(Math.max(concurrency, 0));
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Changes what happens to correctness traffic during perf steps, null leaves a setting as it is.
+   */
+  public void setDuringPerf(DuringPerf duringPerf, Integer throttledOpsPerSec) {
+    if (duringPerf != null) {
+      this.duringPerf = duringPerf;
+    }
+    if (throttledOpsPerSec != null) {
+      this.throttledOpsPerSec = Math.max(throttledOpsPerSec, 0);
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  public Response getResponse() {
+    Response r = new Response();
+    r.perfRunning = perfRunning;
+    r.correctnessDuringPerf = duringPerf.name();
+    r.throttledOpsPerSec = throttledOpsPerSec;
+    r.lanes = new ArrayList<>();
+    for (Lane lane : lanes.values()) {
+      r.lanes.add(lane.getResponse());
+    }
+    r.lanes.sort((a, b) -> (a.job + a.provider).compareTo(b.job + b.provider));
+    return r;
+  }
+
+  /**
+   * Waits while correctness traffic is paused.
+   */
+  private synchronized void awaitCorrectness() throws InterruptedException {
+    while (isCorrectnessPaused()) {
+      wait();
+    }
+  }
+
+  private boolean isCorrectnessPaused() {
+    return perfRunning && (duringPerf == DuringPerf.PAUSE
+        || (duringPerf == DuringPerf.THROTTLE && throttledOpsPerSec == 0));
+  }
+
+  /**
+   * Rate of a correctness lane, given the perf step state.
+   */
+  private int correctnessOpsPerSec(Lane lane) {
+    if (perfRunning && duringPerf == DuringPerf.THROTTLE) {
+      return lane.opsPerSec == 0 ? throttledOpsPerSec
+          : Math.min(lane.opsPerSec, throttledOpsPerSec);
+    }
+    return lane.opsPerSec;
+  }
+
+  public enum JobType {
+    PERF,
+    CORRECTNESS
+  }
+
+  public enum DuringPerf {
+    // no correctness operation starts while a perf step runs.
+    PAUSE,
+    // correctness lanes are limited to throttledOpsPerSec (per provider).
+    THROTTLE,
+    // correctness traffic goes on, the perf results may suffer.
+    IGNORE
+  }
+
+  public class Lane {
+    private final JobType job;
+    private final String provider;
+    private volatile int opsPerSec;
+    private volatile int concurrency;
+    // System.nanoTime() at which the next operation may start, for the ops/sec budget.
+    private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+    private int running; // guarded by this
+    private final LongAdder acquired = new LongAdder();
+
+    private Lane(JobType job, String provider, int opsPerSec, int concurrency) {
+      this.job = job;
+      this.provider = provider;
+      this.opsPerSec = opsPerSec;
+      this.concurrency = concurrency;
+    }
+
+    /**
+     * Waits until an operation may start. Must be followed by release(), whatever happens.
+     */
+    public void acquire() throws InterruptedException {
+      while (true) {
+        if (job == JobType.CORRECTNESS) {
+          awaitCorrectness();
+        }
+        synchronized (this) {
+          while (concurrency > 0 && running >= concurrency) {
+            wait();
+          }
+          running++;
+          // a step may have started while we waited for the slot, give it back until it's over.
+          // Either this sees perfRunning, or awaitCorrectnessDrained() sees running.
+          if (job == JobType.PERF || !isCorrectnessPaused()) {
+            break;
+          }
+          running--;
+          notifyAll();
+        }
+      }
+      int rate = job == JobType.CORRECTNESS ? correctnessOpsPerSec(this) : opsPerSec;
+      if (rate > 0) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long now = System.nanoTime();
+        // Reserve the next slot, an idle lane doesn't bank up a burst.
+        long slot = nextSlot.getAndAccumulate(now, (next, n) -> Math.max(next, n) + interval);
+        slot = Math.max(slot, now);
+        while (now < slot) {
+          LockSupport.parkNanos(slot - now);
+          if (Thread.interrupted()) {
+            release();
+            throw new InterruptedException();
+          }
+          now = System.nanoTime();
+        }
+      }
+      acquired.increment();
+    }
+
+    /**
+     * Perf lanes skip acquire() and release() when this is false. Check it once per operation.
+     */
+    public boolean isLimited() {
+      return opsPerSec > 0 || concurrency > 0;
+    }
+
+    public synchronized void release() {
+      running--;
+      notifyAll();
+    }
+
+    private synchronized void setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+      notifyAll();
+    }
+
+    private synchronized LaneResponse getResponse() {
+      LaneResponse r = new LaneResponse();
+      r.job = job.name();
+      r.provider = provider;
+      r.opsPerSec = opsPerSec;
+      r.concurrency = concurrency;
+      r.running = running;
+      r.acquired = acquired.sum();
+      return r;
+    }
+  }
+
+  public static class LaneResponse {
+    public String job;
+    public String provider;
+    public int opsPerSec; // 0 for unlimited
+    public int concurrency; // 0 for unlimited
+    public int running;
+    public long acquired; // operations started through this lane, unlimited perf lanes excluded
+  }
+
+  public static class Response {
+    public boolean perfRunning;
+    public String correctnessDuringPerf;
+    public int throttledOpsPerSec;
+    public List<LaneResponse> lanes;
+  }
+}
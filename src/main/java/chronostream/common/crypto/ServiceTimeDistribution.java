@@ -0,0 +1,21 @@
+package chronostream.common.crypto;
+
+/**
+ * How long SimulatedHsmProvider takes to serve an operation, given a mean and a standard deviation.
+ */
+public enum ServiceTimeDistribution {
+  // always the mean.
+  CONSTANT("constant"),
+  // spread evenly around the mean, over +/- stddev * sqrt(3).
+  UNIFORM("uniform"),
+  // memoryless, the standard deviation is the mean.
+  EXPONENTIAL("exponential"),
+  // long right tail, the usual shape of device latencies.
+  LOGNORMAL("lognormal");
+
+  public String name;
+
+  ServiceTimeDistribution(String name) {
+    this.name = name;
+  }
+}
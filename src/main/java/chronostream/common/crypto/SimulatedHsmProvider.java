@@ -0,0 +1,378 @@
+package chronostream.common.crypto;
+
+import chronostream.Config;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyPairGeneratorSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.interfaces.RSAKey;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.annotation.Nullable;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * A JCA provider which behaves like an HSM, to exercise the perf job's scaling logic (thread
+ * sweeps, session contention, tail latency) without one. Use it like any other provider:
+ *
+ *   provider: "chronostream.common.crypto.SimulatedHsmProvider"
+ *   simulation:
+ *     sessions: 10
+ *     serviceTime: LOGNORMAL
+ *     ...
+ *
+ * The crypto itself is done by a delegate provider (BouncyCastle by default), so the outputs are
+ * real and the correctness job can check them against other providers. Each Cipher and Mac
+ * doFinal() then goes through an HsmSimulator, see Config.Simulation for the knobs. Key
+ * generation isn't simulated.
+ *
+ * Only the algorithms CryptoProvider uses are registered. The ones the delegate lacks (e.g. RSA
+ * key pairs with SunJCE) come from the other installed providers.
+ */
+public class SimulatedHsmProvider extends Provider {
+  private volatile Provider delegate;
+  private volatile HsmSimulator simulator;
+
+  public SimulatedHsmProvider() throws Exception {
+    super("SimulatedHSM", "1.0", "chronostream's simulated HSM");
+    setSimulation(null);
+
+    putService(new SimulatedService("Cipher", "AES"));
+    putService(new SimulatedService("Cipher", "RSA"));
+    putService(new SimulatedService("Mac", "HmacSHA256"));
+    putService(new SimulatedService("Mac", "HmacSHA1"));
+    putService(new SimulatedService("KeyGenerator", "AES"));
+    putService(new SimulatedService("KeyGenerator", "HmacSHA256"));
+    putService(new SimulatedService("KeyGenerator", "HmacSHA1"));
+    putService(new SimulatedService("KeyPairGenerator", "RSA"));
+  }
+
+  /**
+   * Called by CryptoProvider, before any operation. Without a simulation section, the delegate
+   * runs with no added latency.
+   */
+  void setSimulation(@Nullable Config.Simulation config) throws Exception {
+    if (config == null) {
+      config = Config.Simulation.create(null, 0, null, 0, 0, 0, 0, 0);
+    }
+    // installed providers by name, since e.g. SunJCE's class isn't exported.
+    Provider installed = Security.getProvider(config.delegate());
+    delegate = installed != null ? installed
+        : (Provider) Class.forName(config.delegate()).getDeclaredConstructor().newInstance();
+    simulator = new HsmSimulator(config);
+  }
+
+  /**
+   * The provider which implements algorithm: the delegate or else, the first installed provider
+   * which isn't simulated.
+   */
+  private Provider delegateFor(String type, String algorithm) throws NoSuchAlgorithmException {
+    if (delegate.getService(type, algorithm) != null) {
+      return delegate;
+    }
+    for (Provider provider : Security.getProviders()) {
+      if (!(provider instanceof SimulatedHsmProvider)
+          && provider.getService(type, algorithm) != null) {
+        return provider;
+      }
+    }
+    throw new NoSuchAlgorithmException(String.format("no provider for %s.%s", type, algorithm));
+  }
+
+  private final class SimulatedService extends Service {
+    SimulatedService(String type, String algorithm) {
+      super(SimulatedHsmProvider.this, type, algorithm,
+          SimulatedHsmProvider.class.getName() + "$" + type, null, null);
+    }
+
+    @Override
+    public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+      Provider provider = delegateFor(getType(), getAlgorithm());
+      switch (getType()) {
+        case "Cipher":
+          return new SimulatedCipher(getAlgorithm(), provider, simulator);
+        case "Mac":
+          return new SimulatedMac(Mac.getInstance(getAlgorithm(), provider), simulator);
+        case "KeyGenerator":
+          return new DelegatingKeyGenerator(KeyGenerator.getInstance(getAlgorithm(), provider));
+        case "KeyPairGenerator":
+          return new DelegatingKeyPairGenerator(
+              KeyPairGenerator.getInstance(getAlgorithm(), provider));
+      }
+      throw new NoSuchAlgorithmException(getType());
+    }
+  }
+
+  /**
+   * The delegate's Cipher is created once the mode and padding are known, on first use.
+   */
+  private static final class SimulatedCipher extends CipherSpi {
+    private final String algorithm;
+    private final Provider provider;
+    private final HsmSimulator simulator;
+    private String mode;
+    private String padding;
+    private Cipher cipher;
+
+    SimulatedCipher(String algorithm, Provider provider, HsmSimulator simulator) {
+      this.algorithm = algorithm;
+      this.provider = provider;
+      this.simulator = simulator;
+    }
+
+    private Cipher cipher() {
+      if (cipher == null) {
+        String transformation = algorithm + (mode == null ? "" : "/" + mode)
+            + (padding == null ? "" : "/" + padding);
+        try {
+          cipher = Cipher.getInstance(transformation, provider);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+          throw new ProviderException(e);
+        }
+      }
+      return cipher;
+    }
+
+    @Override
+    protected void engineSetMode(String mode) {
+      this.mode = mode;
+    }
+
+    @Override
+    protected void engineSetPadding(String padding) {
+      this.padding = padding;
+    }
+
+    @Override
+    protected int engineGetBlockSize() {
+      return cipher().getBlockSize();
+    }
+
+    @Override
+    protected int engineGetOutputSize(int inputLen) {
+      return cipher().getOutputSize(inputLen);
+    }
+
+    @Override
+    protected byte[] engineGetIV() {
+      return cipher().getIV();
+    }
+
+    @Override
+    protected AlgorithmParameters engineGetParameters() {
+      return cipher().getParameters();
+    }
+
+    @Override
+    protected int engineGetKeySize(Key key) throws InvalidKeyException {
+      if (key instanceof RSAKey) {
+        return ((RSAKey) key).getModulus().bitLength();
+      }
+      if (key instanceof SecretKey && key.getEncoded() != null) {
+        return key.getEncoded().length * 8;
+      }
+      throw new InvalidKeyException("unsupported key: " + key.getClass().getName());
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+      cipher().init(opmode, key, random);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params,
+        SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+      cipher().init(opmode, key, params, random);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+        throws InvalidKeyException, InvalidAlgorithmParameterException {
+      cipher().init(opmode, key, params, random);
+    }
+
+    @Override
+    protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+      return cipher().update(input, inputOffset, inputLen);
+    }
+
+    @Override
+    protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output,
+        int outputOffset) throws ShortBufferException {
+      return cipher().update(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    @Override
+    protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+      return cipher().update(input, output);
+    }
+
+    @Override
+    protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+        throws IllegalBlockSizeException, BadPaddingException {
+      long doneAt = simulator.begin();
+      try {
+        byte[] r = cipher().doFinal(input, inputOffset, inputLen);
+        simulator.complete(doneAt);
+        return r;
+      } finally {
+        simulator.end();
+      }
+    }
+
+    @Override
+    protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output,
+        int outputOffset) throws ShortBufferException, IllegalBlockSizeException,
+        BadPaddingException {
+      long doneAt = simulator.begin();
+      try {
+        int r = cipher().doFinal(input, inputOffset, inputLen, output, outputOffset);
+        simulator.complete(doneAt);
+        return r;
+      } finally {
+        simulator.end();
+      }
+    }
+
+    @Override
+    protected int engineDoFinal(ByteBuffer input, ByteBuffer output) throws ShortBufferException,
+        IllegalBlockSizeException, BadPaddingException {
+      long doneAt = simulator.begin();
+      try {
+        int r = cipher().doFinal(input, output);
+        simulator.complete(doneAt);
+        return r;
+      } finally {
+        simulator.end();
+      }
+    }
+  }
+
+  private static final class SimulatedMac extends MacSpi {
+    private final Mac mac;
+    private final HsmSimulator simulator;
+
+    SimulatedMac(Mac mac, HsmSimulator simulator) {
+      this.mac = mac;
+      this.simulator = simulator;
+    }
+
+    @Override
+    protected int engineGetMacLength() {
+      return mac.getMacLength();
+    }
+
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params)
+        throws InvalidKeyException, InvalidAlgorithmParameterException {
+      if (params == null) {
+        mac.init(key);
+      } else {
+        mac.init(key, params);
+      }
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+      mac.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+      mac.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+      mac.update(input);
+    }
+
+    @Override
+    protected byte[] engineDoFinal() {
+      long doneAt = simulator.begin();
+      try {
+        byte[] r = mac.doFinal();
+        simulator.complete(doneAt);
+        return r;
+      } finally {
+        simulator.end();
+      }
+    }
+
+    @Override
+    protected void engineReset() {
+      mac.reset();
+    }
+  }
+
+  private static final class DelegatingKeyGenerator extends KeyGeneratorSpi {
+    private final KeyGenerator keyGen;
+
+    DelegatingKeyGenerator(KeyGenerator keyGen) {
+      this.keyGen = keyGen;
+    }
+
+    @Override
+    protected void engineInit(SecureRandom random) {
+      keyGen.init(random);
+    }
+
+    @Override
+    protected void engineInit(AlgorithmParameterSpec params, SecureRandom random)
+        throws InvalidAlgorithmParameterException {
+      keyGen.init(params, random);
+    }
+
+    @Override
+    protected void engineInit(int keysize, SecureRandom random) {
+      keyGen.init(keysize, random);
+    }
+
+    @Override
+    protected SecretKey engineGenerateKey() {
+      return keyGen.generateKey();
+    }
+  }
+
+  private static final class DelegatingKeyPairGenerator extends KeyPairGeneratorSpi {
+    private final KeyPairGenerator keyPairGen;
+
+    DelegatingKeyPairGenerator(KeyPairGenerator keyPairGen) {
+      this.keyPairGen = keyPairGen;
+    }
+
+    @Override
+    public void initialize(int keysize, SecureRandom random) {
+      keyPairGen.initialize(keysize, random);
+    }
+
+    @Override
+    public void initialize(AlgorithmParameterSpec params, SecureRandom random)
+        throws InvalidAlgorithmParameterException {
+      keyPairGen.initialize(params, random);
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+      return keyPairGen.generateKeyPair();
+    }
+  }
+}
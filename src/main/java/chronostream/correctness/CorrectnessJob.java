@@ -1,7 +1,9 @@
 package chronostream.correctness;
 
 import chronostream.Config;
+import chronostream.common.crypto.CryptoMetrics;
 import chronostream.common.crypto.CryptoProvider;
+import chronostream.common.crypto.ProviderScheduler;
 import com.google.common.collect.Lists;
 import java.util.List;
 
@@ -14,10 +16,12 @@ public class CorrectnessJob implements Runnable {
   private int threads;
   private int sleep;
 
-  public CorrectnessJob(Config.CorrectnessTest config, List<CryptoProvider> providers) throws Exception {
+  public CorrectnessJob(Config.CorrectnessTest config, List<CryptoProvider> providers,
+      CryptoMetrics metrics, ProviderScheduler scheduler) throws Exception {
     this.config = Lists.newArrayList();
+    CorrectnessJobFanOut fanOut = new CorrectnessJobFanOut(providers, config.maxPerProvider());
     for (Config.Test test : config.tests()) {
-      this.config.add(new CorrectnessJobConfig(test, providers));
+      this.config.add(new CorrectnessJobConfig(test, providers, metrics, fanOut, scheduler));
     }
     result = new CorrectnessJobResult(config, providers);
     this.threads = config.threads();
@@ -1,13 +1,18 @@
 package chronostream.correctness;
 
 import chronostream.Config;
+import chronostream.common.crypto.CryptoEvent;
+import chronostream.common.crypto.CryptoMetrics;
+import chronostream.common.crypto.CryptoPrimitive;
 import chronostream.common.crypto.CryptoProvider;
+import chronostream.common.crypto.ProviderScheduler;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import static java.lang.String.format;
 
@@ -15,10 +20,18 @@ public class CorrectnessJobConfig {
   public Config.Test config;
   private List<CryptoProvider> providers;
   private Object key;
+  private CryptoMetrics metrics;
+  private CorrectnessJobFanOut fanOut;
+  private ProviderScheduler scheduler;
 
-  public CorrectnessJobConfig(Config.Test config, List<CryptoProvider> providers) throws Exception {
+  CorrectnessJobConfig(Config.Test config, List<CryptoProvider> providers,
+      CryptoMetrics metrics, CorrectnessJobFanOut fanOut, ProviderScheduler scheduler)
+      throws Exception {
     this.config = config;
     this.providers = providers;
+    this.metrics = metrics;
+    this.fanOut = fanOut;
+    this.scheduler = scheduler;
 
     // Find the provider which can be used to create the key
     CryptoProvider exportFrom = null;
@@ -55,63 +68,114 @@ public class CorrectnessJobConfig {
   private void doHkdf(byte[] buffer, CorrectnessJobResult result) throws Exception {
     // Ensure every provider results in the same HKDF
     CryptoProvider referenceProvider = this.providers.get(0);
-    byte[] ref = referenceProvider.doHKDF(key, buffer);
+    byte[] ref = measure(referenceProvider, CryptoPrimitive.HKDF, buffer.length,
+        () -> referenceProvider.doHKDF(key, buffer));
     for (CryptoProvider provider : this.providers) {
-      byte[] r = provider.doHKDF(key, buffer);
-      if (!Arrays.equals(ref, r)) {
-        Exception e = new Exception(format("%s: failed between %s and %s for %s",
-            config.name(),
-            referenceProvider.getName(),
-            provider.getName(),
-            Arrays.toString(buffer)));
-        result.recordException(config, referenceProvider, provider, e);
-        throw e;
+      byte[] r;
+      try {
+        r = measure(provider, CryptoPrimitive.HKDF, buffer.length,
+            () -> provider.doHKDF(key, buffer, config.cacheInstances()));
+      } catch (Exception e) {
+        result.recordFailure(config, referenceProvider, provider, e, buffer, null);
+        continue;
+      }
+      if (Arrays.equals(ref, r)) {
+        result.recordSuccess(config, referenceProvider, provider);
+      } else {
+        // Don't throw, so we don't miss tests
+        result.recordFailure(config, referenceProvider, provider,
+            new Exception(format("%s: failed between %s and %s",
+                config.name(), referenceProvider.getName(), provider.getName())),
+            buffer, null);
       }
     }
   }
 
-  private void doAesCbc(byte[] buffer, CorrectnessJobResult result) throws Exception {
+  private void doAesCbc(byte[] buffer, CorrectnessJobResult result) {
     // Ensure every provider can decrypt the result from every other provider
+    List<CompletableFuture<Void>> cells = new ArrayList<>();
     for (CryptoProvider c1 : this.providers) {
       byte[] iv = new byte[16];
       new Random().nextBytes(iv);
-      byte[] t = c1.doAesCbcEncryption(key, buffer, iv);
+      CompletableFuture<byte[]> encrypted = fanOut.supply(c1,
+          () -> measure(c1, CryptoPrimitive.AES_CBC_ENC, buffer.length,
+              () -> c1.doAesCbcEncryption(key, buffer, iv, config.cacheInstances())));
       for (CryptoProvider c2 : this.providers) {
-        try {
-          byte[] r = c2.doAesCbcDecryption(key, t, iv);
-          if (!Arrays.equals(buffer, r)) {
-            Exception e = new Exception(format("%s != %s (iv=%s)",
-                Arrays.toString(buffer),
-                Arrays.toString(r),
-                Arrays.toString(iv)));
-            result.recordException(config, c1, c2, e);
-            // Don't throw e, so we don't miss tests
-          }
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-          result.recordException(config, c1, c2, e);
-        }
+        cells.add(check(encrypted.thenCompose(t -> fanOut.supply(c2,
+            () -> measure(c2, CryptoPrimitive.AES_CBC_DEC, t.length,
+                () -> c2.doAesCbcDecryption(key, t, iv, config.cacheInstances())))),
+            buffer, iv, c1, c2, result));
       }
     }
+    CompletableFuture.allOf(cells.toArray(new CompletableFuture[0])).join();
   }
 
-  private void doRsa(byte[] buffer, CorrectnessJobResult result) throws Exception {
+  private void doRsa(byte[] buffer, CorrectnessJobResult result) {
     // Ensure every provider can decrypt the result from every other provider
+    List<CompletableFuture<Void>> cells = new ArrayList<>();
     for (CryptoProvider c1 : this.providers) {
-      byte[] t = c1.doRsaEncryption(key, buffer);
+      CompletableFuture<byte[]> encrypted = fanOut.supply(c1,
+          () -> measure(c1, CryptoPrimitive.RSA_ENC, buffer.length,
+              () -> c1.doRsaEncryption(key, buffer, config.cacheInstances())));
       for (CryptoProvider c2 : this.providers) {
-        try {
-          byte[] r = c2.doRsaDecryption(key, t);
-          if (!Arrays.equals(buffer, r)) {
-            Exception e = new Exception(format("%s != %s",
-                Arrays.toString(buffer),
-                Arrays.toString(r)));
-            result.recordException(config, c1, c2, e);
-            // Don't throw e, so we don't miss tests
-          }
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-          result.recordException(config, c1, c2, e);
-        }
+        cells.add(check(encrypted.thenCompose(t -> fanOut.supply(c2,
+            () -> measure(c2, CryptoPrimitive.RSA_DEC, t.length,
+                () -> c2.doRsaDecryption(key, t, config.cacheInstances())))),
+            buffer, null, c1, c2, result));
+      }
+    }
+    CompletableFuture.allOf(cells.toArray(new CompletableFuture[0])).join();
+  }
+
+  /**
+   * Records the outcome of the (c1, c2) cell: a success, a mismatch, or the exception thrown by
+   * the encryption or the decryption. Failures are recorded, not thrown, so that the other cells
+   * still run.
+   */
+  private CompletableFuture<Void> check(CompletableFuture<byte[]> decrypted, byte[] buffer,
+      byte[] iv, CryptoProvider c1, CryptoProvider c2, CorrectnessJobResult result) {
+    return decrypted.handle((r, t) -> {
+      if (t != null) {
+        result.recordFailure(config, c1, c2, CorrectnessJobFanOut.unwrap(t), buffer, iv);
+      } else if (Arrays.equals(buffer, r)) {
+        result.recordSuccess(config, c1, c2);
+      } else {
+        Exception e = new Exception(format(
+            "decrypted output differs from the input (%d bytes, expected %d)",
+            r.length, buffer.length));
+        result.recordFailure(config, c1, c2, e, buffer, iv);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Runs one provider operation within the provider's correctness budget (see
+   * ProviderScheduler), as a CryptoEvent and in the provider's CryptoMetrics.
+   */
+  private byte[] measure(CryptoProvider provider, CryptoPrimitive primitive, int payloadSize,
+      Callable<byte[]> operation) throws Exception {
+    ProviderScheduler.Lane lane = scheduler.lane(ProviderScheduler.JobType.CORRECTNESS, provider);
+    lane.acquire();
+    try {
+      CryptoMetrics.Operation m = metrics.operation("correctness", provider, primitive,
+          config.keySize());
+      CryptoEvent event = new CryptoEvent();
+      event.begin();
+      m.start();
+      long start = System.nanoTime();
+      byte[] r;
+      try {
+        r = operation.call();
+      } catch (Exception e) {
+        m.failure();
+        throw e;
       }
+      m.success(System.nanoTime() - start);
+      event.record("correctness", provider, primitive, config.keySize(), payloadSize);
+      return r;
+    } finally {
+      lane.release();
     }
   }
 }
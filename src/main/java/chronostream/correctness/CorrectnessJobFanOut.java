@@ -0,0 +1,62 @@
+package chronostream.correctness;
+
+import chronostream.common.crypto.CryptoProvider;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the cells of the correctness provider matrix concurrently.
+ *
+ * Each provider has its own lane: a pool of at most maxPerProvider threads. Operations queue up in
+ * the lane of the provider they call, so a slow provider (e.g. a busy HSM) only delays its own
+ * cells. The queues don't need a bound: a correctness task waits for all the cells of an
+ * iteration before starting the next one.
+ */
+class CorrectnessJobFanOut {
+  private final Map<String, ExecutorService> lanes = new HashMap<>();
+
+  CorrectnessJobFanOut(List<CryptoProvider> providers, int maxPerProvider) {
+    for (CryptoProvider provider : providers) {
+      AtomicInteger count = new AtomicInteger();
+      lanes.put(provider.getName(), new ThreadPoolExecutor(maxPerProvider, maxPerProvider,
+          0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+          r -> {
+            Thread t = new Thread(r);
+            t.setName(String.format("correctnessJob-%s-%d", provider.getName(),
+                count.getAndIncrement()));
+            t.setDaemon(true);
+            return t;
+          }));
+    }
+  }
+
+  /**
+   * Runs operation in provider's lane.
+   */
+  <T> CompletableFuture<T> supply(CryptoProvider provider, Callable<T> operation) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return operation.call();
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, lanes.get(provider.getName()));
+  }
+
+  /**
+   * The exception thrown by the operation, from the exception a future completed with.
+   */
+  static Exception unwrap(Throwable t) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    return cause instanceof Exception ? (Exception) cause : new Exception(cause);
+  }
+}
@@ -1,50 +1,136 @@
 package chronostream.correctness;
 
 import chronostream.Config;
-import chronostream.common.core.ExceptionResult;
 import chronostream.common.crypto.CryptoProvider;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Correctness jobs records which operations have taken place and how many times.
-   */
+ *
+ * The (test, enc provider, dec provider) cells are created up front and never change, so any
+ * number of threads can record into them without locks: counts are LongAdders and each cell keeps
+ * its last SAMPLES failures in a ring. Failure traces are rendered once, when the failure is
+ * recorded, so polling the results is cheap.
+ */
 public class CorrectnessJobResult {
-  private Map<ResultKey, ExceptionResult> results = Maps.newLinkedHashMap();
+  // failure samples kept per cell.
+  static final int SAMPLES = 8;
+
+  private final Map<ResultKey, Cell> results;
   private AtomicInteger completed;
 
   public CorrectnessJobResult(Config.CorrectnessTest config, List<CryptoProvider> providers) {
     completed = new AtomicInteger();
 
+    ImmutableMap.Builder<ResultKey, Cell> cells = ImmutableMap.builder();
     for (Config.Test t : config.tests()) {
       for (CryptoProvider enc : providers) {
         for (CryptoProvider dec : providers) {
-          results.put(ResultKey.create(t.name(), enc.getName(), dec.getName()), new ExceptionResult());
+          cells.put(ResultKey.create(t.name(), enc.getName(), dec.getName()), new Cell());
         }
       }
     }
+    results = cells.build();
+  }
+
+  public void recordSuccess(Config.Test t, CryptoProvider enc, CryptoProvider dec) {
+    cell(t, enc, dec).successes.increment();
   }
 
-  public void recordException(Config.Test t, CryptoProvider enc, CryptoProvider dec, Exception e) {
-    results.get(ResultKey.create(t.name(), enc.getName(), dec.getName())).setException(e);
+  /**
+   * @param input plaintext of the operation
+   * @param iv null for primitives without an iv
+   */
+  public void recordFailure(Config.Test t, CryptoProvider enc, CryptoProvider dec, Exception e,
+      byte[] input, byte[] iv) {
+    Cell cell = cell(t, enc, dec);
+    cell.failures.increment();
+    cell.add(new FailureSample(e, input, iv));
+  }
+
+  private Cell cell(Config.Test t, CryptoProvider enc, CryptoProvider dec) {
+    return results.get(ResultKey.create(t.name(), enc.getName(), dec.getName()));
   }
 
   public void nextIteration() {
     completed.incrementAndGet();
   }
 
-  public Response getResponse() throws Exception {
-    Map<String, String> r = Maps.newLinkedHashMap();
-    for (Map.Entry<ResultKey, ExceptionResult> e : results.entrySet()) {
-      r.put(e.getKey().toString(), e.getValue().getException());
+  public Response getResponse() {
+    Map<String, CellResponse> r = Maps.newLinkedHashMap();
+    for (Map.Entry<ResultKey, Cell> e : results.entrySet()) {
+      r.put(e.getKey().toString(), e.getValue().getResponse());
     }
     return Response.create(r, completed.get());
   }
 
+  private static class Cell {
+    final LongAdder successes = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    private final AtomicReferenceArray<FailureSample> samples = new AtomicReferenceArray<>(SAMPLES);
+    private final AtomicLong next = new AtomicLong();
+
+    void add(FailureSample sample) {
+      samples.set((int) (next.getAndIncrement() % SAMPLES), sample);
+    }
+
+    CellResponse getResponse() {
+      CellResponse r = new CellResponse();
+      r.successes = successes.sum();
+      r.failures = failures.sum();
+      long total = r.successes + r.failures;
+      r.failureRate = total == 0 ? 0 : (double) r.failures / total;
+      r.samples = new ArrayList<>();
+      // Newest first. A sample being written concurrently may show up a poll later.
+      long n = next.get();
+      for (long i = n - 1; i >= Math.max(n - SAMPLES, 0); i--) {
+        FailureSample sample = samples.get((int) (i % SAMPLES));
+        if (sample != null) {
+          r.samples.add(sample);
+        }
+      }
+      return r;
+    }
+  }
+
+  public static class FailureSample {
+    public long time; // System.currentTimeMillis()
+    public String message;
+    public String input; // base64
+    public String iv; // base64, null without an iv
+    public String trace;
+
+    FailureSample(Exception e, byte[] input, byte[] iv) {
+      time = System.currentTimeMillis();
+      message = e.toString();
+      this.input = Base64.getEncoder().encodeToString(input);
+      this.iv = iv == null ? null : Base64.getEncoder().encodeToString(iv);
+      StringWriter writer = new StringWriter();
+      e.printStackTrace(new PrintWriter(writer));
+      trace = writer.toString();
+    }
+  }
+
+  public static class CellResponse {
+    public long successes;
+    public long failures;
+    public double failureRate; // failures / (successes + failures)
+    public List<FailureSample> samples; // the last SAMPLES failures, newest first
+  }
+
   @AutoValue
   abstract public static class ResultKey {
     abstract String primitive();
@@ -66,13 +152,13 @@ public class CorrectnessJobResult {
   @AutoValue
   abstract public static class Response {
     @JsonProperty("results")
-    abstract public Map<String, String> results();
+    abstract public Map<String, CellResponse> results();
 
     @JsonProperty("completed")
     abstract public int completed();
 
     @SuppressWarnings("unused")
-    static Response create(Map<String, String> results, int completed) {
+    static Response create(Map<String, CellResponse> results, int completed) {
       return new AutoValue_CorrectnessJobResult_Response(results, completed);
     }
   }
@@ -0,0 +1,15 @@
+package chronostream.perf;
+
+/**
+ * How operations are spaced in time when a perf test runs open-loop at a target rate.
+ */
+public enum ArrivalDistribution {
+  UNIFORM("uniform"),
+  POISSON("poisson");
+
+  public String name;
+
+  ArrivalDistribution(String name) {
+    this.name = name;
+  }
+}
@@ -0,0 +1,60 @@
+package chronostream.perf;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Which kind of threads run the PerfJobTasks.
+ *
+ * Virtual threads make it cheap to keep thousands of operations in flight against providers which
+ * mostly wait on the network (e.g. network HSMs). They need Java 21; we look them up by reflection
+ * so the project still builds for older targets. Keep in mind that a virtual thread which blocks
+ * inside a synchronized block pins its carrier thread, which some providers do.
+ */
+public enum ExecutorModel {
+  PLATFORM("platform threads"),
+  VIRTUAL("virtual threads");
+
+  public String name;
+
+  ExecutorModel(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Human readable description, including the number of carrier threads for virtual threads.
+   */
+  public String describe() {
+    if (this == VIRTUAL) {
+      String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism",
+          Integer.toString(Runtime.getRuntime().availableProcessors()));
+      return String.format("%s on %s carriers", name, parallelism);
+    }
+    return name;
+  }
+
+  ThreadFactory threadFactory(String prefix) {
+    switch (this) {
+      case PLATFORM:
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+          Thread t = new Thread(r);
+          t.setName(String.format("%s%d", prefix, counter.getAndIncrement()));
+          return t;
+        };
+      case VIRTUAL:
+        try {
+          // Thread.ofVirtual().name(prefix, 0).factory()
+          Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+          Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+          Method name = builderClass.getMethod("name", String.class, long.class);
+          builder = name.invoke(builder, prefix, 0L);
+          return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+          throw new IllegalStateException("virtual threads require Java 21 or later", e);
+        }
+    }
+    throw new RuntimeException("unreachable");
+  }
+}
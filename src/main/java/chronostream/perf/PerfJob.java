@@ -1,12 +1,19 @@
 package chronostream.perf;
 
 import chronostream.Config;
+import chronostream.common.core.GcMonitor;
+import chronostream.common.core.TimerCalibration;
+import chronostream.common.crypto.CryptoMetrics;
 import chronostream.common.crypto.CryptoProvider;
+import chronostream.common.crypto.ProviderScheduler;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import java.time.ZonedDateTime;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 
@@ -16,74 +23,203 @@ import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 public class PerfJob implements Runnable {
   private int threads;
   private int total;
+  private Config.PerfTest config;
   private List<PerfJobConfig> perfJobConfigs;
-  private Map<Integer, PerfJobResult> results = Maps.newHashMap();
+  private PerfJobResults results;
   private String filename;
+  private TimerCalibration timerCalibration;
+  private PerfJobStream stream = new PerfJobStream();
+  private PerfJobWindows windows = new PerfJobWindows();
+  private GcMonitor gcMonitor = GcMonitor.start();
+  private List<PerfJobSearch> searches = new CopyOnWriteArrayList<>();
+  private int lastId;
+  private PerfJobStore store; // null if results aren't persisted
+  private ProviderScheduler scheduler;
+  private long runId;
 
-  public PerfJob(Config.PerfTest config, List<CryptoProvider> providers) throws Exception {
+  // Writes the logs of finished steps. The queue is bounded: if the disk can't keep up, the next
+  // step waits instead of piling up results in memory.
+  private ExecutorService reportWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(4),
+      r -> {
+        Thread t = new Thread(r);
+        t.setName("perfJob-reportWriter");
+        return t;
+      },
+      new ThreadPoolExecutor.CallerRunsPolicy());
+
+  /**
+   * @param store where to persist the results, null to only write logs
+   */
+  public PerfJob(Config.PerfTest config, List<CryptoProvider> providers,
+      TimerCalibration timerCalibration, PerfJobStore store, CryptoMetrics metrics,
+      ProviderScheduler scheduler) throws Exception {
+    this.timerCalibration = timerCalibration;
+    this.store = store;
+    this.scheduler = scheduler;
     this.threads = config.defaultThreads();
     this.total = config.defaultTotal();
+    this.config = config;
+    this.results = new PerfJobResults(config.retainedSteps(), config.retainedHistograms(),
+        config.retainedSummaries(), config.retainedSamplesMb() * 1024L * 1024L);
 
     perfJobConfigs = Lists.newArrayList();
     for (CryptoProvider provider : providers) {
       for (Config.Test test : config.tests()) {
-        perfJobConfigs.add(new PerfJobConfig(test, provider));
+        perfJobConfigs.add(new PerfJobConfig(test, provider, metrics, scheduler));
       }
     }
 
     ZonedDateTime now = ZonedDateTime.now();
     filename = String.format("%s", now.format(ISO_LOCAL_DATE_TIME));
+    if (store != null) {
+      runId = store.startRun(filename, config);
+    }
+
+    Thread publisher = new Thread(stream);
+    publisher.setName("perfJob-stream");
+    publisher.setDaemon(true);
+    publisher.start();
+
+    Thread aggregator = new Thread(windows);
+    aggregator.setName("perfJob-windows");
+    aggregator.setDaemon(true);
+    aggregator.start();
+  }
+
+  public PerfJobStream getStream() {
+    return stream;
+  }
+
+  public PerfJobWindows getWindows() {
+    return windows;
+  }
+
+  /**
+   * Null if results aren't persisted.
+   */
+  public PerfJobStore getStore() {
+    return store;
+  }
+
+  public TimerCalibration getTimerCalibration() {
+    return timerCalibration;
   }
 
   public PerfJobResult getResult(int id) {
     return results.get(id);
   }
 
+  /**
+   * State of the adaptive searches, one per test, in the order they ran.
+   */
+  public List<PerfJobSearch.Response> getSearches() {
+    List<PerfJobSearch.Response> r = Lists.newArrayList();
+    for (PerfJobSearch search : searches) {
+      r.add(search.getResponse());
+    }
+    return r;
+  }
+
   public void run() {
-    int id = 0;
-    threads = 1;
-    while (threads < 50) {
-      id++;
+    PerfJobWorkerPool pool = new PerfJobWorkerPool(config.maxThreads(),
+        config.getExecutor().threadFactory("perfJob-"));
+    if (config.getSweep() == SweepMode.ADAPTIVE) {
+      // One test at a time, each has its own knee.
       for (PerfJobConfig test : perfJobConfigs) {
-        int iterations = total / threads;
-        PerfJobResult result = new PerfJobResult(id,
-            String.format("%s-%s", test.config.name(), test.provider.getName()),
-            threads,
-            iterations,
-            threads * iterations,
-            filename);
-//        if (id < 5) {
-//          results.put(id, result);
-//        }
-//        //todo: results.remove(id-5) if id>5;
-
-        // Spin up the dynamically configured number of threads
-        Thread[] threads_arr = new Thread[threads];
-        for (int i = 0; i < threads; i++) {
-          threads_arr[i] = new Thread(new PerfJobTask(test, iterations, result));
-          threads_arr[i].setName(String.format("perfJob-%d", i));
-          threads_arr[i].start();
+        if (Thread.currentThread().isInterrupted()) {
+          break;
         }
-
-        // Wait for all threads to finish
-        for (int i = 0; i < threads; i++) {
-          try {
-            threads_arr[i].join();
-            // for some reason, a few threads are enough to make my laptop fan spin, so sleep some.
-            Thread.sleep(100);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-            result.recordException(e);
-          }
+        PerfJobSearch search = new PerfJobSearch(jobName(test), config.maxThreads(),
+            config.threadsIncrement(), config.saturationGain(), config.p99SloMicros(),
+            threads -> runStep(pool, test, threads));
+        searches.add(search);
+        search.run();
+      }
+    } else {
+      threads = 1;
+      while (threads <= config.maxThreads() && !Thread.currentThread().isInterrupted()) {
+        for (PerfJobConfig test : perfJobConfigs) {
+          runStep(pool, test, threads);
         }
+        threads += config.threadsIncrement();
+      }
+    }
+    pool.shutdown();
+    reportWriter.shutdown();
+  }
 
-        try {
-          result.write();
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
+  private String jobName(PerfJobConfig test) {
+    return String.format("%s-%s-%s-%s", test.config.name(), test.provider.getName(),
+        test.getBufferMode().name().toLowerCase(), config.getExecutor().name().toLowerCase());
+  }
+
+  /**
+   * Runs one step and queues the writing of its logs. Returns null if the job was interrupted.
+   */
+  private PerfJobResult runStep(PerfJobWorkerPool pool, PerfJobConfig test, int threads) {
+    this.threads = threads;
+    // Time-boxed steps run until the step controller ramps them down.
+    int iterations = config.isTimeBoxed() ? 0 : total / threads;
+    PerfJobResult result = new PerfJobResult(++lastId,
+        jobName(test),
+        threads,
+        iterations,
+        threads * iterations,
+        config,
+        test.getBufferMode(),
+        filename,
+        gcMonitor);
+    results.add(result);
+
+    // Hand one task to each of the dynamically configured number of workers. In open-loop
+    // mode, the target rate is split evenly between the workers.
+    List<PerfJobTask> tasks = Lists.newArrayList();
+    for (int i = 0; i < threads; i++) {
+      PerfJobSchedule schedule = null;
+      if (config.isOpenLoop()) {
+        schedule = new PerfJobSchedule(config.getArrival(), (double) config.targetRate() / threads);
+      }
+      tasks.add(new PerfJobTask(test, iterations, schedule, result));
+    }
+
+    stream.setCurrent(result);
+    windows.setCurrent(result);
+    boolean interrupted = false;
+    scheduler.setPerfRunning(true);
+    try {
+      scheduler.awaitCorrectnessDrained();
+      if (PerfJobStepController.isNeeded(config)) {
+        pool.runStep(tasks, new PerfJobStepController(result, config),
+            PerfJobStepController.TICK_MS);
+      } else {
+        pool.runStep(tasks);
       }
-      threads++;
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      result.recordException(e);
+      Thread.currentThread().interrupt();
+      interrupted = true;
+    } finally {
+      scheduler.setPerfRunning(false);
     }
+    result.finish();
+
+    // Writing the logs can take longer than the step itself, do it in the background. Older steps
+    // are shrunk once this one is written (and stored).
+    reportWriter.execute(() -> {
+      try {
+        result.write();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (store != null) {
+        store.saveStep(runId, test.config, test.provider.getName(), result,
+            () -> results.retire(result));
+      } else {
+        results.retire(result);
+      }
+    });
+    return interrupted ? null : result;
   }
 }
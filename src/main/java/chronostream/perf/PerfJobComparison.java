@@ -0,0 +1,209 @@
+package chronostream.perf;
+
+import chronostream.common.core.Statistics;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares two stored runs (a baseline and a candidate), step by step: steps are matched by
+ * provider, test, buffer mode and number of threads.
+ *
+ * For each pair, throughput and latency percentiles are compared. When both runs stored their raw
+ * samples, the deltas come with 95% confidence intervals: a bootstrap for percentiles, a Welch
+ * interval over 100ms throughput windows, plus a Mann-Whitney test of the whole latency
+ * distributions. A change is a regression if it is worse than the threshold (in %) and, when
+ * there are samples, significant (the confidence interval doesn't include 0). Without samples,
+ * or when the interval is undefined (e.g. less than 2 full throughput windows), only the
+ * threshold applies.
+ */
+public class PerfJobComparison {
+  private static final double CONFIDENCE = 0.95;
+  private static final int RESAMPLES = 500;
+  private static final int MAX_BOOTSTRAP_SAMPLES = 5000;
+  private static final long THROUGHPUT_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final PerfJobStore store;
+  private final Random random = new Random(0); // reproducible reports
+
+  public PerfJobComparison(PerfJobStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @param threshold in %, smaller changes are never regressions
+   */
+  public Response compare(long baseline, long candidate, double threshold) throws SQLException {
+    Map<String, PerfJobStore.Step> baselineSteps = byKey(baseline);
+    Map<String, PerfJobStore.Step> candidateSteps = byKey(candidate);
+
+    Response r = new Response();
+    r.baseline = baseline;
+    r.candidate = candidate;
+    r.threshold = threshold;
+    r.steps = new ArrayList<>();
+    for (Map.Entry<String, PerfJobStore.Step> e : baselineSteps.entrySet()) {
+      PerfJobStore.Step c = candidateSteps.get(e.getKey());
+      if (c == null) {
+        continue;
+      }
+      Delta d = compare(e.getValue(), c, threshold);
+      r.steps.add(d);
+      if (d.regression) {
+        r.regressions++;
+      }
+    }
+    return r;
+  }
+
+  private Delta compare(PerfJobStore.Step a, PerfJobStore.Step b, double threshold)
+      throws SQLException {
+    Delta d = new Delta();
+    d.provider = a.provider;
+    d.test = a.test;
+    d.bufferMode = a.bufferMode;
+    d.threads = a.threads;
+    d.baselineStep = a.id;
+    d.candidateStep = b.id;
+
+    PerfJobStore.Samples sa = store.getSamples(a.runId, a.id);
+    PerfJobStore.Samples sb = store.getSamples(b.runId, b.id);
+    boolean samples = sa.latencies.length > 0 && sb.latencies.length > 0;
+
+    d.throughput = new Change(a.throughput, b.throughput);
+    d.p50 = new Change(a.latencyP50, b.latencyP50);
+    d.p99 = new Change(a.latencyP99, b.latencyP99);
+    d.p999 = new Change(a.latencyP999, b.latencyP999);
+    if (samples) {
+      d.throughput.interval(Statistics.meanDelta(windows(sa.ends), windows(sb.ends), CONFIDENCE));
+      long[] la = Statistics.subsample(sa.latencies, MAX_BOOTSTRAP_SAMPLES, random);
+      long[] lb = Statistics.subsample(sb.latencies, MAX_BOOTSTRAP_SAMPLES, random);
+      d.p50.interval(
+          Statistics.bootstrapPercentileDelta(la, lb, 50, CONFIDENCE, RESAMPLES, random));
+      d.p99.interval(
+          Statistics.bootstrapPercentileDelta(la, lb, 99, CONFIDENCE, RESAMPLES, random));
+      d.p999.interval(
+          Statistics.bootstrapPercentileDelta(la, lb, 99.9, CONFIDENCE, RESAMPLES, random));
+      d.mannWhitneyP = Statistics.mannWhitney(sa.latencies, sb.latencies);
+    }
+
+    d.throughput.regression = d.throughput.relativeDelta < -threshold
+        && (d.throughput.significant == null || d.throughput.significant);
+    for (Change latency : Arrays.asList(d.p50, d.p99, d.p999)) {
+      latency.regression = latency.relativeDelta > threshold
+          && (latency.significant == null || latency.significant);
+    }
+    d.regression = d.throughput.regression || d.p50.regression || d.p99.regression
+        || d.p999.regression;
+    return d;
+  }
+
+  private Map<String, PerfJobStore.Step> byKey(long run) throws SQLException {
+    Map<String, PerfJobStore.Step> steps = new LinkedHashMap<>();
+    List<PerfJobStore.Step> list = store.getSteps(run, null, null, null, null, Integer.MAX_VALUE);
+    // Oldest first, so that a repeated step keeps its last measurement.
+    for (int i = list.size() - 1; i >= 0; i--) {
+      PerfJobStore.Step s = list.get(i);
+      steps.put(String.format("%s|%s|%s|%d", s.provider, s.test, s.bufferMode, s.threads), s);
+    }
+    return steps;
+  }
+
+  /**
+   * Throughput (ops/sec) of each full THROUGHPUT_WINDOW_NS window, from the samples' end times.
+   */
+  private static double[] windows(long[] ends) {
+    if (ends.length == 0) {
+      return new double[0];
+    }
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    for (long end : ends) {
+      first = Math.min(first, end);
+      last = Math.max(last, end);
+    }
+    int n = (int) ((last - first) / THROUGHPUT_WINDOW_NS);
+    long[] counts = new long[n + 1];
+    for (long end : ends) {
+      counts[(int) ((end - first) / THROUGHPUT_WINDOW_NS)]++;
+    }
+    // The last window is partial.
+    double[] r = new double[n];
+    for (int i = 0; i < n; i++) {
+      r[i] = counts[i] * 1e9 / THROUGHPUT_WINDOW_NS;
+    }
+    return r;
+  }
+
+  public static class Change {
+    public double baseline;
+    public double candidate;
+    public double delta; // candidate - baseline
+    public double relativeDelta; // in %
+    public Double ciLow; // confidence interval of delta, only with raw samples
+    public Double ciHigh;
+    public Boolean significant; // null without raw samples
+    public boolean regression;
+
+    Change(double baseline, double candidate) {
+      this.baseline = baseline;
+      this.candidate = candidate;
+      delta = candidate - baseline;
+      relativeDelta = baseline == 0 ? 0 : delta / baseline * 100;
+    }
+
+    void interval(double[] ci) {
+      if (Double.isInfinite(ci[0]) || Double.isInfinite(ci[1])) {
+        return; // undefined, only the threshold applies
+      }
+      ciLow = ci[0];
+      ciHigh = ci[1];
+      significant = ciLow > 0 || ciHigh < 0;
+    }
+
+    @Override
+    public String toString() {
+      String s = String.format("%+.1f%%", relativeDelta);
+      if (significant != null) {
+        s += significant ? " (significant)" : " (noise)";
+      }
+      return s;
+    }
+  }
+
+  // Latencies are in ns, throughput in ops/sec.
+  public static class Delta {
+    public String provider;
+    public String test;
+    public String bufferMode;
+    public int threads;
+    public int baselineStep;
+    public int candidateStep;
+    public Change throughput;
+    public Change p50;
+    public Change p99;
+    public Change p999;
+    public Double mannWhitneyP; // only with raw samples
+    public boolean regression;
+
+    @Override
+    public String toString() {
+      return String.format("%s %s %s %d threads: throughput %s, p50 %s, p99 %s, p99.9 %s%s",
+          provider, test, bufferMode, threads, throughput, p50, p99, p999,
+          regression ? " REGRESSION" : "");
+    }
+  }
+
+  public static class Response {
+    public long baseline;
+    public long candidate;
+    public double threshold; // in %
+    public int regressions;
+    public List<Delta> steps;
+  }
+}
@@ -1,29 +1,71 @@
 package chronostream.perf;
 
 import chronostream.Config;
+import chronostream.common.crypto.BufferMode;
+import chronostream.common.crypto.CryptoEvent;
+import chronostream.common.crypto.CryptoMetrics;
+import chronostream.common.crypto.CryptoPrimitive;
 import chronostream.common.crypto.CryptoProvider;
-import com.google.common.collect.Maps;
-import java.util.Map;
+import chronostream.common.crypto.ProviderScheduler;
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static chronostream.common.crypto.CryptoPrimitive.AES_CBC_DEC;
 import static chronostream.common.crypto.CryptoPrimitive.RSA_DEC;
 
+/**
+ * A test running against a provider.
+ *
+ * doCrypto is written so that a steady-state operation doesn't allocate: inputs are looked up in
+ * arrays indexed by size, the random source is per thread and results are written into a per-thread
+ * output buffer. Combined with cacheInstances, this keeps the GC out of the measured latencies.
+ *
+ * AES tests can also run with heap or direct ByteBuffers (see BufferMode). The input is copied
+ * into a per-thread buffer before the clock starts, so only Cipher.doFinal is measured.
+ *
+ * Every operation is also a CryptoEvent, which costs nothing unless a JFR recording is running,
+ * and updates the test's CryptoMetrics timer once the clock has stopped. Operations only go
+ * through the ProviderScheduler when the perf lane of the provider has a budget.
+ *
+ * An operation which throws is counted as failed and the worker goes on, see
+ * PerfJobRecorder.recordFailure.
+ */
 public class PerfJobConfig {
   protected Config.Test config;
   protected CryptoProvider provider;
+  private CryptoPrimitive primitive;
+  private BufferMode bufferMode;
   private Object key;
+  private CryptoMetrics.Operation metrics;
+  private ProviderScheduler.Lane lane;
 
   // We don't want the iv and ciphertext generation to hurt throughput, so we pre-compute them.
+  // Both arrays are indexed by data size - minDataSize.
   private byte[] iv;
-  private Map<Integer, byte[]> ciphertexts = Maps.newHashMap();
-  private Map<Integer, byte[]> plaintexts = Maps.newHashMap();
+  private byte[][] ciphertexts;
+  private byte[][] plaintexts;
 
-  volatile byte[] buffer;
+  // Large enough for the output of any operation of this test.
+  private int maxOutputSize;
+  private ThreadLocal<byte[]> outputs;
+  private ThreadLocal<ByteBuffer[]> byteBuffers; // input, output
 
-  public PerfJobConfig(Config.Test config, CryptoProvider provider) throws Exception {
+  volatile int sink;
+
+  public PerfJobConfig(Config.Test config, CryptoProvider provider, CryptoMetrics metrics,
+      ProviderScheduler scheduler) throws Exception {
     this.config = config;
     this.provider = provider;
+    this.primitive = config.getPrimitive();
+    this.metrics = metrics.operation("perf", provider, primitive, config.keySize());
+    this.lane = scheduler.lane(ProviderScheduler.JobType.PERF, provider);
+    this.bufferMode = config.getBufferMode();
+    if (bufferMode != BufferMode.HEAP_ARRAY
+        && primitive != CryptoPrimitive.AES_CBC_ENC && primitive != CryptoPrimitive.AES_CBC_DEC) {
+      throw new IllegalArgumentException(
+          String.format("%s: %s is only supported for AES tests", config.name(), bufferMode.name));
+    }
     this.key = provider.generateKey(config.getPrimitive(), config.keySize());
 
     prepare();
@@ -35,48 +77,141 @@ public class PerfJobConfig {
       new Random().nextBytes(iv);
     }
 
+    int sizes = config.maxDataSize() - config.minDataSize() + 1;
+    plaintexts = new byte[sizes][];
+    ciphertexts = new byte[sizes][];
+    maxOutputSize = 32;
     for (int i=config.minDataSize(); i<=config.maxDataSize(); i++) {
       byte[] plaintext = new byte[i];
       new Random().nextBytes(plaintext);
-      plaintexts.put(i, plaintext);
+      plaintexts[i - config.minDataSize()] = plaintext;
+      // AES/CBC/PKCS5 adds at most one block.
+      maxOutputSize = Math.max(maxOutputSize, i + 16);
 
       if (config.getPrimitive() == AES_CBC_DEC) {
         byte[] ciphertext = provider.doAesCbcEncryption(key, plaintext, iv);
-        ciphertexts.put(i, ciphertext);
+        ciphertexts[i - config.minDataSize()] = ciphertext;
       } else if (config.getPrimitive() == RSA_DEC) {
         byte[] ciphertext = provider.doRsaEncryption(key, plaintext);
-        ciphertexts.put(i, ciphertext);
+        ciphertexts[i - config.minDataSize()] = ciphertext;
+      }
+    }
+    // RSA outputs are as long as the modulus.
+    maxOutputSize = Math.max(maxOutputSize, config.keySize() / 8 + 1);
+    outputs = ThreadLocal.withInitial(() -> new byte[maxOutputSize]);
+    if (bufferMode != BufferMode.HEAP_ARRAY) {
+      byteBuffers = ThreadLocal.withInitial(() -> new ByteBuffer[] {
+          bufferMode.allocate(maxOutputSize), bufferMode.allocate(maxOutputSize)});
+    }
+  }
+
+  public BufferMode getBufferMode() {
+    return bufferMode;
+  }
+
+  public void doCrypto(PerfJobRecorder recorder) throws Exception {
+    doCrypto(recorder, 0, false);
+  }
+
+  /**
+   * @param intendedStart System.nanoTime() at which an open-loop schedule wanted this operation to
+   * start
+   */
+  public void doCrypto(PerfJobRecorder recorder, long intendedStart) throws Exception {
+    doCrypto(recorder, intendedStart, true);
+  }
+
+  private void doCrypto(PerfJobRecorder recorder, long intendedStart, boolean scheduled)
+      throws Exception {
+    boolean limited = lane.isLimited();
+    if (limited) {
+      lane.acquire();
+    }
+    try {
+      runOperation(recorder, intendedStart, scheduled);
+    } finally {
+      if (limited) {
+        lane.release();
       }
     }
   }
 
-  public void doCrypto(PerfJobResult result) throws Exception {
+  private void runOperation(PerfJobRecorder recorder, long intendedStart, boolean scheduled)
+      throws Exception {
     // data size
-    int size = new Random().nextInt(config.maxDataSize() - config.minDataSize() + 1)
-        + config.minDataSize();
+    int index = ThreadLocalRandom.current().nextInt(plaintexts.length);
+    byte[] plaintext = plaintexts[index];
+    byte[] ciphertext = ciphertexts[index];
+    byte[] out = outputs.get();
 
+    boolean cached = config.cacheInstances();
+    int n;
+    if (bufferMode != BufferMode.HEAP_ARRAY) {
+      ByteBuffer[] buffers = byteBuffers.get();
+      ByteBuffer in = buffers[0];
+      ByteBuffer output = buffers[1];
+      in.clear();
+      in.put(primitive == CryptoPrimitive.AES_CBC_ENC ? plaintext : ciphertext);
+      in.flip();
+      output.clear();
 
+      CryptoEvent event = new CryptoEvent();
+      event.begin();
+      metrics.start();
+      long start = System.nanoTime();
+      try {
+        if (primitive == CryptoPrimitive.AES_CBC_ENC) {
+          n = provider.doAesCbcEncryption(key, in, iv, output, cached);
+        } else {
+          n = provider.doAesCbcDecryption(key, in, iv, output, cached);
+        }
+      } catch (Exception e) {
+        metrics.failure();
+        recorder.recordFailure(e);
+        return;
+      }
+      long end = System.nanoTime();
+      metrics.success(end - start);
+      event.record("perf", provider, primitive, config.keySize(), plaintext.length);
+      sink = n;
+      recorder.record(scheduled ? intendedStart : start, start, end);
+      return;
+    }
+
+    CryptoEvent event = new CryptoEvent();
+    event.begin();
+    metrics.start();
     long start = System.nanoTime();
-    switch (config.getPrimitive()) {
-      case AES_CBC_ENC:
-        buffer = provider.doAesCbcEncryption(key, plaintexts.get(size), iv);
-        break;
-      case AES_CBC_DEC:
-        buffer = provider.doAesCbcDecryption(key, ciphertexts.get(size), iv);
-        break;
-      case HKDF:
-        buffer = provider.doHKDF(key, plaintexts.get(size));
-        break;
-      case RSA_ENC:
-        buffer = provider.doRsaEncryption(key, plaintexts.get(size));
-        break;
-      case RSA_DEC:
-        buffer = provider.doRsaDecryption(key, ciphertexts.get(size));
-        break;
-      default:
-        throw new Exception("unreachable");
+    try {
+      switch (primitive) {
+        case AES_CBC_ENC:
+          n = provider.doAesCbcEncryption(key, plaintext, 0, plaintext.length, iv, out, 0, cached);
+          break;
+        case AES_CBC_DEC:
+          n = provider.doAesCbcDecryption(key, ciphertext, 0, ciphertext.length, iv, out, 0, cached);
+          break;
+        case HKDF:
+          n = provider.doHKDF(key, plaintext, 0, plaintext.length, out, 0, cached);
+          break;
+        case RSA_ENC:
+          n = provider.doRsaEncryption(key, plaintext, 0, plaintext.length, out, 0, cached);
+          break;
+        case RSA_DEC:
+          n = provider.doRsaDecryption(key, ciphertext, 0, ciphertext.length, out, 0, cached);
+          break;
+        default:
+          throw new Exception("unreachable");
+      }
+    } catch (Exception e) {
+      metrics.failure();
+      recorder.recordFailure(e);
+      return;
     }
     long end = System.nanoTime();
-    result.addResult(start/1000000, end/1000000);
+    metrics.success(end - start);
+    event.record("perf", provider, primitive, config.keySize(), plaintext.length);
+    // Keeps the JIT from optimizing the operation away.
+    sink = n;
+    recorder.record(scheduled ? intendedStart : start, start, end);
   }
 }
@@ -0,0 +1,239 @@
+package chronostream.perf;
+
+import chronostream.common.core.Histogram;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the samples of a single PerfJobTask thread.
+ *
+ * Every worker thread gets its own recorder, so recording a sample never touches memory shared
+ * with other workers. PerfJobResult merges the recorders when it needs to report something.
+ */
+public class PerfJobRecorder {
+  // time from the actual start of each operation.
+  private final Histogram latency;
+  // time from the intended start of each operation, only for open-loop tests.
+  private final Histogram correctedLatency;
+  // latency of the operations which ran during warmup, only if the step has a warmup.
+  private final Histogram warmupLatency;
+  private final long origin;
+  private final PerfJobResult result;
+
+  // number of completed operations per second, relative to origin.
+  private long[] throughput = new long[64];
+
+  // raw samples, only kept if the job is configured to do so.
+  private final boolean raw;
+  private long[] intendedStarts;
+  private long[] starts;
+  private long[] ends;
+
+  private volatile int completed;
+  // samples which happened during ramp-up or ramp-down.
+  private volatile int excluded;
+  // operations which threw while measuring.
+  private volatile int failed;
+
+  // bytes allocated by the worker thread over allocatedOperations operations, set once at the end.
+  private volatile long allocatedBytes = -1;
+  private volatile int allocatedOperations;
+
+  PerfJobRecorder(PerfJobResult result, long origin, boolean raw, boolean openLoop,
+      boolean warmup, int expected, long highestTrackableLatency, int significantDigits) {
+    this.result = result;
+    this.origin = origin;
+    this.raw = raw;
+    this.latency = new Histogram(highestTrackableLatency, significantDigits);
+    this.correctedLatency = openLoop ? new Histogram(highestTrackableLatency, significantDigits) : null;
+    this.warmupLatency = warmup ? new Histogram(highestTrackableLatency, significantDigits) : null;
+    if (raw) {
+      starts = new long[Math.max(expected, 16)];
+      ends = new long[Math.max(expected, 16)];
+      if (openLoop) {
+        intendedStarts = new long[Math.max(expected, 16)];
+      }
+    }
+  }
+
+  /**
+   * @param start System.nanoTime() before the operation
+   * @param end System.nanoTime() after the operation
+   */
+  public void record(long start, long end) {
+    record(start, start, end);
+  }
+
+  /**
+   * @param intendedStart System.nanoTime() at which the operation was scheduled to start
+   * @param start System.nanoTime() before the operation
+   * @param end System.nanoTime() after the operation
+   */
+  public void record(long intendedStart, long start, long end) {
+    if (!result.isMeasuring()) {
+      if (warmupLatency != null && result.isWarmingUp()) {
+        warmupLatency.record(end - start);
+      }
+      excluded = excluded + 1;
+      return;
+    }
+    latency.record(end - start);
+    if (correctedLatency != null) {
+      correctedLatency.record(end - intendedStart);
+    }
+
+    int second = (int) ((end - origin) / 1000000000L);
+    if (second >= 0) {
+      if (second >= throughput.length) {
+        throughput = Arrays.copyOf(throughput, Math.max(second + 1, throughput.length * 2));
+      }
+      throughput[second]++;
+    }
+
+    int n = completed;
+    if (raw) {
+      if (n == starts.length) {
+        // Publish the bigger arrays before the count, readers always see a consistent prefix.
+        starts = Arrays.copyOf(starts, n * 2);
+        ends = Arrays.copyOf(ends, n * 2);
+        if (intendedStarts != null) {
+          intendedStarts = Arrays.copyOf(intendedStarts, n * 2);
+        }
+      }
+      starts[n] = start;
+      ends[n] = end;
+      if (intendedStarts != null) {
+        intendedStarts[n] = intendedStart;
+      }
+    }
+    completed = n + 1;
+  }
+
+  /**
+   * An operation threw. It isn't part of the latencies or the throughput, and the worker goes on:
+   * a provider failing some operations (e.g. an HSM under load) is something to measure.
+   */
+  public void recordFailure(Exception e) {
+    if (!result.isMeasuring()) {
+      excluded = excluded + 1;
+      return;
+    }
+    failed = failed + 1;
+    result.recordException(e);
+  }
+
+  public int getCompleted() {
+    return completed;
+  }
+
+  public int getExcluded() {
+    return excluded;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  /**
+   * A recorder holding the sum of the given recorders, without raw samples. Used to compact
+   * finished steps, the recorders must not be written to anymore.
+   */
+  static PerfJobRecorder merge(PerfJobResult result, long origin, List<PerfJobRecorder> recorders) {
+    PerfJobRecorder first = recorders.get(0);
+    PerfJobRecorder merged = new PerfJobRecorder(result, origin, false,
+        first.correctedLatency != null, first.warmupLatency != null, 0,
+        first.latency.getHighestTrackableValue(), first.latency.getSignificantDigits());
+    int completed = 0;
+    int excluded = 0;
+    int failed = 0;
+    long allocatedBytes = 0;
+    int allocatedOperations = 0;
+    boolean allocations = false;
+    for (PerfJobRecorder recorder : recorders) {
+      merged.latency.add(recorder.latency);
+      if (merged.correctedLatency != null) {
+        merged.correctedLatency.add(recorder.correctedLatency);
+      }
+      if (merged.warmupLatency != null) {
+        merged.warmupLatency.add(recorder.warmupLatency);
+      }
+      long[] t = recorder.throughput;
+      if (t.length > merged.throughput.length) {
+        merged.throughput = Arrays.copyOf(merged.throughput, t.length);
+      }
+      for (int i = 0; i < t.length; i++) {
+        merged.throughput[i] += t[i];
+      }
+      completed += recorder.completed;
+      excluded += recorder.excluded;
+      failed += recorder.failed;
+      if (recorder.allocatedBytes >= 0) {
+        allocations = true;
+        allocatedBytes += recorder.allocatedBytes;
+        allocatedOperations += recorder.allocatedOperations;
+      }
+    }
+    merged.completed = completed;
+    merged.excluded = excluded;
+    merged.failed = failed;
+    if (allocations) {
+      merged.recordAllocations(allocatedBytes, allocatedOperations);
+    }
+    return merged;
+  }
+
+  /**
+   * Approximate heap used by the raw samples.
+   */
+  long getRawBytes() {
+    if (!raw) {
+      return 0;
+    }
+    return 8L * starts.length * (intendedStarts == null ? 2 : 3);
+  }
+
+  void recordAllocations(long bytes, int operations) {
+    allocatedOperations = operations;
+    allocatedBytes = bytes;
+  }
+
+  long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  int getAllocatedOperations() {
+    return allocatedOperations;
+  }
+
+  Histogram getLatency() {
+    return latency;
+  }
+
+  Histogram getCorrectedLatency() {
+    return correctedLatency;
+  }
+
+  Histogram getWarmupLatency() {
+    return warmupLatency;
+  }
+
+  long[] getThroughput() {
+    return throughput;
+  }
+
+  boolean isRaw() {
+    return raw;
+  }
+
+  long getIntendedStart(int i) {
+    return intendedStarts == null ? starts[i] : intendedStarts[i];
+  }
+
+  long getStart(int i) {
+    return starts[i];
+  }
+
+  long getEnd(int i) {
+    return ends[i];
+  }
+}
@@ -1,115 +1,498 @@
 package chronostream.perf;
 
+import chronostream.Config;
+import chronostream.common.core.CsvWriter;
 import chronostream.common.core.ExceptionResult;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
+import chronostream.common.core.GcMonitor;
+import chronostream.common.core.Histogram;
+import chronostream.common.core.VarintWriter;
+import chronostream.common.crypto.BufferMode;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Tracks the results of performance tests.
+ *
+ * Each worker thread records into its own PerfJobRecorder (a latency histogram and, optionally,
+ * the raw start/end times). The recorders are only merged when the results are read.
+ *
+ * Open-loop tests keep two histograms: latency is measured from the actual start of each
+ * operation and corrected latency from its intended start. The difference between the two is the
+ * time operations spent waiting for a worker, which a closed loop hides.
+ *
+ * Samples are only kept while every worker of the step is running: ramp-up lasts until each
+ * worker has completed one operation, and ramp-down starts as soon as one worker is done (or
+ * when PerfJobStepController ends a time-boxed step). With a warmup, measurement only starts when
+ * the step controller says so; warmup samples go to a separate histogram.
+ *
+ * GC pauses which overlap the step are taken from the GcMonitor, on the same timeline as the
+ * samples. With raw samples, samples which overlap a pause are tagged and the latency is also
+ * reported without them, which tells the provider's tail apart from the JVM's.
  */
 public class PerfJobResult {
+  // content type of the binary sample frames, see writeSamples().
+  public static final String SAMPLES_MEDIA_TYPE = "application/x-chronostream-samples";
+
+  // latencies above this value are clamped.
+  static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.HOURS.toNanos(1);
+
   private int id;
   private String job;
   private int threads;
   private int iterations;
   private int total;
-  private long[][] results = null;
-  private int completed;
+  private volatile boolean raw;
+  private int significantDigits;
+  private int targetRate;
+  private int stepDurationMs;
+  private ArrivalDistribution arrival;
+  private ExecutorModel executor;
+  private BufferMode bufferMode;
+  private long origin;
+  private volatile List<PerfJobRecorder> recorders = new CopyOnWriteArrayList<>();
+  // set once the step is only kept as a summary, see PerfJobResults.
+  private volatile Response summary;
   private ExceptionResult exception = new ExceptionResult();
   private String filename;
+  private final GcMonitor gcMonitor;
+  private final long safepointTimeAtStart;
+  // set by write(), once the step is done.
+  private volatile List<GcMonitor.Event> gcPauses;
+  private volatile Response.Latency latencyExcludingGc;
+  private volatile int gcSamples;
+
+  private AtomicInteger rampingUp;
+  private volatile boolean warmingUp;
+  private volatile boolean rampingDown;
+  private volatile boolean done;
+  // System.nanoTime() at the end of ramp-up, at the end of warmup and at the start of ramp-down.
+  private volatile long rampedUp;
+  private volatile long measureStart;
+  private volatile long measureEnd;
+  // System.nanoTime() and total safepoint time (ms, -1 if unknown) when the workers returned.
+  private volatile long finishedAt;
+  private volatile long safepointTimeAtFinish = -1;
 
-  public PerfJobResult(int id, String job, int threads, int iterations, int total, String filename) {
+  public PerfJobResult(int id, String job, int threads, int iterations, int total,
+      Config.PerfTest config, BufferMode bufferMode, String filename, GcMonitor gcMonitor) {
     this.id = id;
     this.job = job;
     this.threads = threads;
     this.iterations = iterations;
     this.total = total;
+    this.raw = config.recordRawSamples();
+    this.significantDigits = config.histogramPrecision();
+    this.targetRate = config.targetRate();
+    this.stepDurationMs = config.stepDurationMs();
+    this.arrival = config.isOpenLoop() ? config.getArrival() : null;
+    this.executor = config.getExecutor();
+    this.bufferMode = bufferMode;
     this.filename = filename;
-    results = new long[2][total];
-    completed = 0;
+    this.gcMonitor = gcMonitor;
+    safepointTimeAtStart = gcMonitor.getSafepointTimeMs();
+    origin = System.nanoTime();
+    rampingUp = new AtomicInteger(threads);
+    warmingUp = config.warmupMs() > 0 || config.steadyState();
   }
 
-  public void write() throws Exception {
-    //// latency: compute mean, p2, p98, q1, q2 and q3
-    //long latency[] = new long[total];
-    //for (int i=0; i<total; i++) {
-    //  latency[i] = results[1][i] - results[0][i];
-    //}
-    //Arrays.sort(latency);
-    //
-    //long sum = 0;
-    //for (int i=0; i<total; i++) {
-    //  sum += latency[i];
-    //}
-    //float mean = (float)sum / total;
-    //
-    //int p2_index = (int)(Math.round(total * 0.02));
-    //int p98_index = (int)(Math.round(total * 0.98));
-    //int q1_index = (int)(Math.round(total * 0.25));
-    //int q2_index = (int)(Math.round(total * 0.5));
-    //int q3_index = (int)(Math.round(total * 0.75));
-    //
-    //// throughput
-    //long min = results[0][0];
-    //long max = results[0][1];
-    //for (int i=0; i<total; i++) {
-    //  if (results[0][i] < min) {
-    //    min = results[0][i];
-    //  }
-    //  if (results[1][i] > max) {
-    //    max = results[1][i];
-    //  }
-    //}
-    //float throughput = (float)total * 1000 / (max - min);
-    //
-    //// write summary to log
-    //ps.println(String.format("%d, %s, %d, %d, %d, "
-    //        + "%d, %d, %f, %d, %d, %d, %f",
-    //    id, job, threads, iterations, total,
-    //    latency[p2_index], latency[p98_index], mean, latency[q1_index], latency[q2_index], latency[q3_index], throughput));
+  /**
+   * Creates the recorder for the calling worker thread. Recorders must not be shared.
+   */
+  public PerfJobRecorder newRecorder() {
+    PerfJobRecorder recorder = new PerfJobRecorder(this, origin, raw, isOpenLoop(), warmingUp,
+        iterations, HIGHEST_TRACKABLE_LATENCY, significantDigits);
+    recorders.add(recorder);
+    return recorder;
+  }
 
-    // Log the latency
-    PrintStream ps = new PrintStream(new FileOutputStream(String.format("%s-%d-%s-latency.log", filename, id, job)));
-    ps.println("threads, iterations, total, latency");
-    for (int i=0; i<total; i++) {
-      ps.println(String.format("%d, %d, %d, %d", threads, iterations, total, results[1][i] - results[0][i]));
-    }
-    ps.close();
-
-    // Log the throughput
-    long min = results[0][0];
-    long max = results[1][0];
-    for (int i=0; i<total; i++) {
-      if (results[0][i] < min) {
-        min = results[0][i];
+  /**
+   * Called by each worker once it has completed its first operation.
+   */
+  void startedUp() {
+    if (rampingUp.decrementAndGet() == 0) {
+      rampedUp = System.nanoTime();
+      if (!warmingUp) {
+        measureStart = rampedUp;
+      }
+    }
+  }
+
+  /**
+   * Ends the warmup, called by the step controller.
+   *
+   * @param now System.nanoTime(), as seen by the controller
+   */
+  void startMeasuring(long now) {
+    if (warmingUp) {
+      measureStart = now;
+      warmingUp = false;
+    }
+  }
+
+  /**
+   * Called by the first worker which runs out of work, the others should stop.
+   */
+  void rampDown() {
+    if (!rampingDown) {
+      measureEnd = System.nanoTime();
+      rampingDown = true;
+    }
+  }
+
+  boolean isRampingDown() {
+    return rampingDown;
+  }
+
+  boolean isMeasuring() {
+    return rampingUp.get() <= 0 && !warmingUp && !rampingDown;
+  }
+
+  boolean isWarmingUp() {
+    return rampingUp.get() <= 0 && warmingUp && !rampingDown;
+  }
+
+  /**
+   * System.nanoTime() at the end of ramp-up, 0 until then.
+   */
+  long getRampedUp() {
+    return rampedUp;
+  }
+
+  /**
+   * System.nanoTime() at the start of measurement, 0 until then.
+   */
+  long getMeasureStart() {
+    return measureStart;
+  }
+
+  /**
+   * Called once every worker of the step has returned.
+   */
+  void finish() {
+    safepointTimeAtFinish = gcMonitor.getSafepointTimeMs();
+    finishedAt = System.nanoTime();
+    done = true;
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  String getJob() {
+    return job;
+  }
+
+  int getThreads() {
+    return threads;
+  }
+
+  int getIterations() {
+    return iterations;
+  }
+
+  boolean isRaw() {
+    return raw;
+  }
+
+  List<PerfJobRecorder> getRecorders() {
+    return recorders;
+  }
+
+  boolean isOpenLoop() {
+    return arrival != null;
+  }
+
+  /**
+   * Merges the latency histograms of all the worker threads.
+   */
+  Histogram getLatency() {
+    return merge(PerfJobRecorder::getLatency);
+  }
+
+  /**
+   * Merges the corrected latency histograms of all the worker threads, null for closed loops.
+   */
+  Histogram getCorrectedLatency() {
+    return isOpenLoop() ? merge(PerfJobRecorder::getCorrectedLatency) : null;
+  }
+
+  /**
+   * Merges the warmup latency histograms of all the worker threads, null without warmup.
+   */
+  Histogram getWarmupLatency() {
+    return hasWarmup() ? merge(PerfJobRecorder::getWarmupLatency) : null;
+  }
+
+  private boolean hasWarmup() {
+    List<PerfJobRecorder> current = recorders;
+    return !current.isEmpty() && current.get(0).getWarmupLatency() != null;
+  }
+
+  private Histogram merge(Function<PerfJobRecorder, Histogram> histogram) {
+    Histogram merged = newHistogram();
+    merge(merged, histogram);
+    return merged;
+  }
+
+  /**
+   * Adds the histograms of all the worker threads to into, which must come from newHistogram().
+   */
+  void merge(Histogram into, Function<PerfJobRecorder, Histogram> histogram) {
+    for (PerfJobRecorder recorder : recorders) {
+      into.add(histogram.apply(recorder));
+    }
+  }
+
+  Histogram newHistogram() {
+    return new Histogram(HIGHEST_TRACKABLE_LATENCY, significantDigits);
+  }
+
+  /**
+   * Merges the per-second throughput counters of all the worker threads.
+   */
+  long[] getThroughput() {
+    long[] merged = new long[0];
+    for (PerfJobRecorder recorder : recorders) {
+      long[] t = recorder.getThroughput();
+      if (t.length > merged.length) {
+        long[] m = new long[t.length];
+        System.arraycopy(merged, 0, m, 0, merged.length);
+        merged = m;
       }
-      if (results[1][i] > max) {
-        max = results[1][i];
+      for (int i = 0; i < t.length; i++) {
+        merged[i] += t[i];
       }
     }
-    min = min / 1000;
-    max = max / 1000;
-    ps = new PrintStream(new FileOutputStream(String.format("%s-%d-%s-throughput.log", filename, id, job)));
-    ps.println("threads, iterations, total, throughput");
-    for (long t=min; t<=max; t++) {
-      int c = 0;
-      for (int i=0; i<total; i++) {
-        if ((results[1][i] / 1000) == t) {
-          c++;
-        }
+    // Trim the seconds which have no samples at both ends.
+    int first = 0;
+    while (first < merged.length && merged[first] == 0) {
+      first++;
+    }
+    int last = merged.length;
+    while (last > first && merged[last - 1] == 0) {
+      last--;
+    }
+    long[] r = new long[last - first];
+    System.arraycopy(merged, first, r, 0, r.length);
+    return r;
+  }
+
+  /**
+   * Operations per second between the end of ramp-up and the start of ramp-down, 0 if the step
+   * hasn't got there yet.
+   */
+  double getMeasuredThroughput() {
+    return getMeasuredThroughput(getLatency());
+  }
+
+  private double getMeasuredThroughput(Histogram latency) {
+    long start = measureStart;
+    long end = rampingDown ? measureEnd : System.nanoTime();
+    if (start == 0 || end <= start) {
+      return 0;
+    }
+    return latency.getTotalCount() * 1e9 / (end - start);
+  }
+
+  /**
+   * GC pauses which overlap the step so far, oldest first.
+   */
+  List<GcMonitor.Event> getGcPauses() {
+    List<GcMonitor.Event> frozen = gcPauses;
+    if (frozen != null) {
+      return frozen;
+    }
+    return gcMonitor.getPauses(origin, done ? finishedAt : System.nanoTime());
+  }
+
+  /**
+   * Time spent in safepoints (GC or not) during the step so far, in ms, or -1 if the JVM doesn't
+   * tell us, see GcMonitor.
+   */
+  long getSafepointTimeMs() {
+    long end = done ? safepointTimeAtFinish : gcMonitor.getSafepointTimeMs();
+    return safepointTimeAtStart < 0 || end < 0 ? -1 : end - safepointTimeAtStart;
+  }
+
+  /**
+   * Bytes allocated per second by the workers, from their first operation until the step was
+   * done, or -1 when the JVM can't tell us (or the step isn't done).
+   */
+  double getAllocationRate() {
+    long start = rampedUp;
+    long bytes = -1;
+    for (PerfJobRecorder recorder : recorders) {
+      if (recorder.getAllocatedBytes() >= 0) {
+        bytes = Math.max(bytes, 0) + recorder.getAllocatedBytes();
       }
-      ps.println(String.format("%d, %d, %d, %d", threads, iterations, total, c));
     }
-    ps.close();
+    if (!done || bytes < 0 || start == 0 || finishedAt <= start) {
+      return -1;
+    }
+    return bytes * 1e9 / (finishedAt - start);
+  }
+
+  /**
+   * Approximate heap used by the raw samples of this step.
+   */
+  long getRawBytes() {
+    long bytes = 0;
+    for (PerfJobRecorder recorder : recorders) {
+      bytes += recorder.getRawBytes();
+    }
+    return bytes;
   }
 
-  public void addResult(long start, long end) {
-    synchronized (results) {
-      results[0][completed] = start;
-      results[1][completed] = end;
-      completed++;
+  /**
+   * Replaces the per-thread recorders by a single one holding the merged histograms and counters,
+   * dropping the raw samples. Only call once the step is done and its logs are written. Readers
+   * which already hold the old recorders keep working on them.
+   */
+  void compact() {
+    List<PerfJobRecorder> current = recorders;
+    if (current.isEmpty() || (current.size() == 1 && !raw)) {
+      return;
+    }
+    List<PerfJobRecorder> merged = new CopyOnWriteArrayList<>();
+    merged.add(PerfJobRecorder.merge(this, origin, current));
+    raw = false;
+    recorders = merged;
+  }
+
+  /**
+   * Only keeps what getResponse() returns without samples: about a kilobyte.
+   */
+  void summarize() {
+    Response r = getResponse(0, 0);
+    r.gcPauses = null; // the totals are enough
+    summary = r;
+    recorders = new CopyOnWriteArrayList<>();
+    // r has what it needs from these.
+    gcPauses = null;
+    latencyExcludingGc = null;
+  }
+
+  int getCompleted() {
+    int completed = 0;
+    for (PerfJobRecorder recorder : recorders) {
+      completed += recorder.getCompleted();
+    }
+    return completed;
+  }
+
+  /**
+   * Average number of bytes allocated by the workers per steady-state operation, or -1 when the
+   * JVM can't tell us (or no worker is done yet). Includes the recording of the sample. With
+   * cacheInstances set, this should be 0 for providers which don't allocate internally.
+   */
+  double getAllocatedBytesPerOperation() {
+    long bytes = 0;
+    long operations = 0;
+    for (PerfJobRecorder recorder : recorders) {
+      if (recorder.getAllocatedBytes() >= 0) {
+        bytes += recorder.getAllocatedBytes();
+        operations += recorder.getAllocatedOperations();
+      }
+    }
+    return operations == 0 ? -1 : (double) bytes / operations;
+  }
+
+  int getExcluded() {
+    int excluded = 0;
+    for (PerfJobRecorder recorder : recorders) {
+      excluded += recorder.getExcluded();
+    }
+    return excluded;
+  }
+
+  int getFailed() {
+    int failed = 0;
+    for (PerfJobRecorder recorder : recorders) {
+      failed += recorder.getFailed();
+    }
+    return failed;
+  }
+
+  /**
+   * Writes the latency and throughput logs. Every sample is visited once and lines are streamed
+   * through a buffered channel, so this is linear in the number of samples.
+   *
+   * Only call once the workers are done; PerfJob runs this on its report writer thread.
+   */
+  public void write() throws Exception {
+    Histogram latency = getLatency();
+    Histogram corrected = getCorrectedLatency();
+    // GC notifications arrive right after each collection: by now, the step's are in.
+    List<GcMonitor.Event> pauses = getGcPauses();
+    gcPauses = pauses;
+    byte[] prefix = String.format("%d, %d, %d, ", threads, iterations, total)
+        .getBytes(StandardCharsets.US_ASCII);
+
+    // Log the latency
+    try (CsvWriter w = new CsvWriter(Paths.get(String.format("%s-%d-%s-latency.log", filename, id, job)))) {
+      if (raw) {
+        w.line(isOpenLoop()
+            ? "threads, iterations, total, latency_ns, corrected_latency_ns, during_gc"
+            : "threads, iterations, total, latency_ns, during_gc");
+        Histogram excludingGc = newHistogram();
+        int tagged = 0;
+        for (PerfJobRecorder recorder : recorders) {
+          int completed = recorder.getCompleted();
+          for (int i=0; i<completed; i++) {
+            long start = recorder.getStart(i);
+            long end = recorder.getEnd(i);
+            boolean gc = GcMonitor.overlaps(pauses, start, end);
+            w.raw(prefix).value(end - start);
+            if (isOpenLoop()) {
+              w.value(end - recorder.getIntendedStart(i));
+            }
+            w.value(gc ? 1 : 0).endLine();
+            if (gc) {
+              tagged++;
+            } else {
+              excludingGc.record(end - start);
+            }
+          }
+        }
+        latencyExcludingGc = new Response.Latency(excludingGc);
+        gcSamples = tagged;
+      } else {
+        // Without raw samples, we log how many operations fell in each histogram bucket. Both
+        // histograms have the same buckets.
+        w.line(isOpenLoop() ? "threads, iterations, total, latency_ns, count, corrected_count"
+            : "threads, iterations, total, latency_ns, count");
+        for (int i=0; i<latency.getIndexCount(); i++) {
+          long c = latency.getCountAtIndex(i);
+          long cc = isOpenLoop() ? corrected.getCountAtIndex(i) : 0;
+          if (c > 0 || cc > 0) {
+            w.raw(prefix).value(latency.getValueAtIndex(i)).value(c);
+            if (isOpenLoop()) {
+              w.value(cc);
+            }
+            w.endLine();
+          }
+        }
+      }
+    }
+
+    // Log the throughput, the per-second buckets were filled as the samples were recorded.
+    try (CsvWriter w = new CsvWriter(Paths.get(String.format("%s-%d-%s-throughput.log", filename, id, job)))) {
+      w.line("threads, iterations, total, throughput");
+      for (long c : getThroughput()) {
+        w.raw(prefix).value(c).endLine();
+      }
     }
   }
 
@@ -117,36 +500,227 @@ public class PerfJobResult {
     exception.setException(e);
   }
 
+  /**
+   * In raw mode, samples are returned round-robin across worker threads: sample i is the
+   * (i / threads)-th sample of the (i % threads)-th thread. This keeps offsets stable while the
+   * workers are still running.
+   */
   public Response getResponse(int offset, int count) {
+    if (summary != null) {
+      return summary;
+    }
+    return getResponse(offset, count, newHistogram(), isOpenLoop() ? newHistogram() : null,
+        hasWarmup() ? newHistogram() : null);
+  }
+
+  /**
+   * Same as getResponse(offset, count), but merges the latencies into the given histograms (from
+   * newHistogram()) instead of allocating new ones, for callers which poll the step. They are
+   * reset first and can be reused as soon as this returns. corrected is only used for open
+   * loops and warmup when the step has one.
+   */
+  Response getResponse(int offset, int count, Histogram latency, Histogram corrected,
+      Histogram warmup) {
+    if (summary != null) {
+      return summary;
+    }
     Response r = new Response();
-    r.description = String.format("%s with %d threads and %d iterations",
-        job, threads, iterations);
-    r.startEndTimes = new ArrayList<>(count);
+    String length = iterations == 0 ? String.format("for %dms", stepDurationMs)
+        : String.format("and %d iterations", iterations);
+    if (isOpenLoop()) {
+      r.description = String.format("%s with %d %s %s, %s arrivals at %d ops/sec",
+          job, threads, executor.name, length, arrival.name, targetRate);
+    } else {
+      r.description = String.format("%s with %d %s %s", job, threads, executor.name, length);
+    }
+    r.executor = executor.describe();
+    r.bufferMode = bufferMode.name;
+    r.startEndTimes = new ArrayList<>();
     r.exception = exception.getException();
     r.total = total;
-    synchronized (results) {
-      r.completed = completed;
-      for (int i=offset; i<Math.min(offset+count, completed); i++) {
-        r.startEndTimes.add(new Response.Test(results[0][i], results[1][i]));
+    r.excluded = getExcluded();
+    r.failed = getFailed();
+    r.done = done;
+    r.allocatedBytesPerOperation = getAllocatedBytesPerOperation();
+    latency.reset();
+    merge(latency, PerfJobRecorder::getLatency);
+    r.latency = new Response.Latency(latency);
+    r.throughput = getMeasuredThroughput(latency);
+    if (isOpenLoop()) {
+      corrected.reset();
+      merge(corrected, PerfJobRecorder::getCorrectedLatency);
+      r.correctedLatency = new Response.Latency(corrected);
+    }
+    if (hasWarmup()) {
+      warmup.reset();
+      merge(warmup, PerfJobRecorder::getWarmupLatency);
+      r.warmupLatency = new Response.Latency(warmup);
+    }
+    r.gcPauses = getGcPauses();
+    for (GcMonitor.Event e : r.gcPauses) {
+      r.gcPauseMs += e.durationMs;
+    }
+    r.gcCount = r.gcPauses.size();
+    r.latencyExcludingGc = latencyExcludingGc;
+    r.gcSamples = gcSamples;
+    r.safepointTimeMs = getSafepointTimeMs();
+    r.allocationRate = getAllocationRate();
+
+    List<PerfJobRecorder> snapshot = new ArrayList<>(recorders);
+    int n = snapshot.size();
+    if (raw && n > 0) {
+      r.completed = getRoundRobinCompleted(snapshot);
+      for (int i=offset; i<Math.min(offset+count, r.completed); i++) {
+        PerfJobRecorder recorder = snapshot.get(i % n);
+        long start = recorder.getStart(i / n);
+        long end = recorder.getEnd(i / n);
+        r.startEndTimes.add(new Response.Test(recorder.getIntendedStart(i / n), start, end,
+            GcMonitor.overlaps(r.gcPauses, start, end)));
       }
+    } else {
+      r.completed = getCompleted();
     }
     return r;
   }
 
+  /**
+   * Binary version of getResponse(offset, count).startEndTimes, for clients which can't afford
+   * ~40 bytes of JSON per sample. The samples are encoded straight from the recorders: a first
+   * pass computes the frame length, a second one writes it.
+   *
+   * Frame: a big-endian int32 length, followed by that many bytes of
+   *   byte    version (1)
+   *   byte    flags: 1 = open loop, 2 = done
+   *   varint  id, completed (same meaning as in Response), total, offset, count
+   *   zigzag  base: startTime of the first sample, 0 if count is 0
+   *   count times:
+   *     zigzag  startTime - previous startTime (base for the first sample)
+   *     varint  endTime - startTime
+   *     zigzag  startTime - intendedStartTime, open loop only
+   *
+   * Varints are unsigned LEB128, see VarintWriter. assets/samples.js decodes frames.
+   */
+  public void writeSamples(OutputStream out, int offset, int count) throws IOException {
+    List<PerfJobRecorder> snapshot = new ArrayList<>(recorders);
+    int n = snapshot.size();
+    int completed = raw && n > 0 ? getRoundRobinCompleted(snapshot) : getCompleted();
+    int from = Math.max(offset, 0);
+    int to = raw && n > 0 ? (int) Math.min((long) from + Math.max(count, 0), completed) : from;
+    to = Math.max(to, from);
+    boolean openLoop = isOpenLoop();
+    long base = to > from ? snapshot.get(from % n).getStart(from / n) : 0;
+    int flags = (openLoop ? 1 : 0) | (done ? 2 : 0);
+
+    long length = 2 + VarintWriter.size(id) + VarintWriter.size(completed)
+        + VarintWriter.size(total) + VarintWriter.size(from) + VarintWriter.size(to - from)
+        + VarintWriter.size(VarintWriter.zigzag(base));
+    long previous = base;
+    for (int i = from; i < to; i++) {
+      PerfJobRecorder recorder = snapshot.get(i % n);
+      long start = recorder.getStart(i / n);
+      length += VarintWriter.size(VarintWriter.zigzag(start - previous));
+      length += VarintWriter.size(recorder.getEnd(i / n) - start);
+      if (openLoop) {
+        length += VarintWriter.size(VarintWriter.zigzag(start - recorder.getIntendedStart(i / n)));
+      }
+      previous = start;
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many samples requested: " + (to - from));
+    }
+
+    VarintWriter w = new VarintWriter(out);
+    w.writeInt((int) length)
+        .writeByte(1)
+        .writeByte(flags)
+        .varint(id)
+        .varint(completed)
+        .varint(total)
+        .varint(from)
+        .varint(to - from)
+        .signedVarint(base);
+    previous = base;
+    for (int i = from; i < to; i++) {
+      PerfJobRecorder recorder = snapshot.get(i % n);
+      long start = recorder.getStart(i / n);
+      w.signedVarint(start - previous).varint(recorder.getEnd(i / n) - start);
+      if (openLoop) {
+        w.signedVarint(start - recorder.getIntendedStart(i / n));
+      }
+      previous = start;
+    }
+    w.flush();
+  }
+
+  /**
+   * Number of samples addressable round-robin: every thread has at least completed / threads.
+   */
+  private static int getRoundRobinCompleted(List<PerfJobRecorder> snapshot) {
+    int perThread = Integer.MAX_VALUE;
+    for (PerfJobRecorder recorder : snapshot) {
+      perThread = Math.min(perThread, recorder.getCompleted());
+    }
+    return perThread * snapshot.size();
+  }
+
   public static class Response {
     static class Test {
-      public long startTime; // in ms
-      public long endTime;   // in ms
+      public long intendedStartTime; // System.nanoTime(), in ns. Same as startTime for closed loops
+      public long startTime; // System.nanoTime(), in ns
+      public long endTime;   // System.nanoTime(), in ns
+      public boolean gc; // overlaps a GC pause
 
-      Test(long startTime, long endTime) {
+      Test(long intendedStartTime, long startTime, long endTime, boolean gc) {
+        this.intendedStartTime = intendedStartTime;
         this.startTime = startTime;
         this.endTime = endTime;
+        this.gc = gc;
+      }
+    }
+
+    // All values are in ns.
+    static class Latency {
+      public long count;
+      public long min;
+      public double mean;
+      public long p50;
+      public long p90;
+      public long p99;
+      public long p999;
+      public long max;
+
+      Latency(Histogram h) {
+        count = h.getTotalCount();
+        min = h.getMin();
+        mean = h.getMean();
+        p50 = h.getValueAtPercentile(50);
+        p90 = h.getValueAtPercentile(90);
+        p99 = h.getValueAtPercentile(99);
+        p999 = h.getValueAtPercentile(99.9);
+        max = h.getMax();
       }
     }
     public String description;
+    public String executor;
+    public String bufferMode;
     public List<Test> startEndTimes;
+    public Latency latency;
+    public Latency correctedLatency; // only for open-loop tests
+    public Latency warmupLatency; // only with a warmup, not part of the results
     public String exception;
     public int completed;
-    public int total;
+    public int excluded; // operations which ran during ramp-up, warmup or ramp-down
+    public int failed; // operations which threw, exception is the first one
+    public int total; // 0 for time-boxed steps
+    public boolean done;
+    public double throughput; // ops/sec, excluding ramp-up and ramp-down
+    public double allocatedBytesPerOperation;
+    public double allocationRate; // bytes/sec allocated by the workers, -1 if unknown
+    public List<GcMonitor.Event> gcPauses; // same timeline as the samples, null once summarized
+    public int gcCount;
+    public long gcPauseMs;
+    public long safepointTimeMs; // -1 if unknown
+    public Latency latencyExcludingGc; // raw samples only, once the step is written
+    public int gcSamples; // raw samples which overlap a GC pause, once the step is written
   }
 }
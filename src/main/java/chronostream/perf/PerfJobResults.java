@@ -0,0 +1,78 @@
+package chronostream.perf;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the results of a perf job's steps, with bounded memory, so that a sweep can run for days.
+ *
+ * Finished steps go through three levels:
+ * - full: raw samples and per-thread histograms, for the last fullSteps steps and as long as
+ *   their raw samples fit in sampleBudget bytes,
+ * - histograms: one merged histogram per step, for the next histogramSteps steps,
+ * - summary: the step's Response without samples (about a kilobyte), for the next summarySteps
+ *   steps. Older steps are forgotten: get() returns null.
+ *
+ * Steps are only demoted once their logs are written, off the worker threads, which never wait on
+ * the store. The running step is always kept in full.
+ */
+class PerfJobResults {
+  private final int fullSteps;
+  private final int histogramSteps;
+  private final int summarySteps;
+  private final long sampleBudget;
+  private final Map<Integer, PerfJobResult> results = new ConcurrentHashMap<>();
+
+  // Only touched in retire().
+  private final Deque<PerfJobResult> full = new ArrayDeque<>();
+  private final Deque<PerfJobResult> histograms = new ArrayDeque<>();
+  private final Deque<PerfJobResult> summaries = new ArrayDeque<>();
+  private long fullBytes;
+
+  /**
+   * @param sampleBudget in bytes, 0 for no budget
+   */
+  PerfJobResults(int fullSteps, int histogramSteps, int summarySteps, long sampleBudget) {
+    this.fullSteps = fullSteps;
+    this.histogramSteps = histogramSteps;
+    this.summarySteps = summarySteps;
+    this.sampleBudget = sampleBudget;
+  }
+
+  /**
+   * Called when a step starts.
+   */
+  void add(PerfJobResult result) {
+    results.put(result.getId(), result);
+  }
+
+  PerfJobResult get(int id) {
+    return results.get(id);
+  }
+
+  /**
+   * Called once a step is done and its logs are written, demotes older steps as needed. Usually
+   * runs on the report writer thread, on the PerfJob thread when the writer falls behind.
+   */
+  synchronized void retire(PerfJobResult result) {
+    full.addLast(result);
+    fullBytes += result.getRawBytes();
+    while (!full.isEmpty()
+        && (full.size() > fullSteps || (sampleBudget > 0 && fullBytes > sampleBudget))) {
+      PerfJobResult oldest = full.removeFirst();
+      fullBytes -= oldest.getRawBytes();
+      oldest.compact();
+      histograms.addLast(oldest);
+    }
+    while (histograms.size() > histogramSteps) {
+      PerfJobResult oldest = histograms.removeFirst();
+      oldest.summarize();
+      summaries.addLast(oldest);
+    }
+    while (summaries.size() > summarySteps) {
+      results.remove(summaries.removeFirst().getId());
+    }
+  }
+}
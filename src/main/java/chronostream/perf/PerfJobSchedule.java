@@ -0,0 +1,76 @@
+package chronostream.perf;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates the intended start times of an open-loop PerfJobTask.
+ *
+ * This is wrk2's latency correction, not a true open loop: a thread still issues an operation only
+ * once its previous one returned. But the schedule doesn't depend on when operations complete: if
+ * the provider stalls, the operations which should have been issued in the meantime are late, and
+ * their latency is measured from the time they should have started. This accounts for the
+ * coordinated omission of a closed loop.
+ *
+ * Start times are computed from the first one (start + k * interval, or the sum of the Poisson
+ * gaps), so rounding doesn't drift.
+ */
+class PerfJobSchedule {
+  private final ArrivalDistribution arrival;
+  private final double interval; // in ns
+  private final Random random;
+  private boolean started;
+  private long start;
+  private long issued; // operations scheduled so far
+  private double offset; // of the next operation from start, in ns (POISSON)
+
+  /**
+   * @param rate operations per second issued by this schedule
+   */
+  PerfJobSchedule(ArrivalDistribution arrival, double rate) {
+    this(arrival, rate, new Random());
+  }
+
+  PerfJobSchedule(ArrivalDistribution arrival, double rate, Random random) {
+    this.arrival = arrival;
+    this.interval = 1000000000.0 / rate;
+    this.random = random;
+  }
+
+  /**
+   * Blocks until the next operation is due and returns its intended start time. Returns
+   * immediately if we are already late.
+   */
+  long awaitNext() {
+    long intended = next(System.nanoTime());
+    long now;
+    while ((now = System.nanoTime()) < intended) {
+      LockSupport.parkNanos(intended - now);
+    }
+    return intended;
+  }
+
+  /**
+   * Intended start time of the next operation. now (System.nanoTime()) only matters for the first
+   * one: the schedule doesn't wait for late operations.
+   */
+  long next(long now) {
+    if (!started) {
+      // Random phase, so that threads started at the same time don't all fire together.
+      start = now + (long) (random.nextDouble() * interval);
+      started = true;
+    }
+    long intended = 0;
+    switch (arrival) {
+      case UNIFORM:
+        intended = start + (long) (issued * interval);
+        break;
+      case POISSON:
+        intended = start + (long) offset;
+        offset += -Math.log(1 - random.nextDouble()) * interval;
+        break;
+    }
+    issued++;
+    return intended;
+  }
+}
@@ -0,0 +1,194 @@
+package chronostream.perf;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Adaptive sweep of one test: finds the throughput knee and the p99 SLO crossover without running
+ * every thread count.
+ *
+ * The number of threads doubles (1, 2, 4, ...) until a step adds less than saturationGain % of
+ * throughput over the previous one, or maxThreads is reached. If a p99 SLO is configured and
+ * hasn't been exceeded yet, doubling goes on until it is. Both points are then refined by
+ * bisection between the measured steps around them:
+ * - the knee is the smallest thread count within saturationGain % of the best throughput seen,
+ * - the SLO crossover is the smallest thread count whose p99 is above the SLO.
+ *
+ * Bisection assumes throughput and p99 grow with concurrency, which holds until the provider
+ * collapses under load; that part of the curve is not explored. Each thread count is measured at
+ * most once.
+ */
+public class PerfJobSearch {
+  interface Step {
+    /**
+     * Runs a step with the given number of threads, returns null if interrupted.
+     */
+    PerfJobResult run(int threads);
+  }
+
+  private final String job;
+  private final int maxThreads;
+  private final int resolution;
+  private final double gain;
+  private final long sloNanos;
+  private final Step step;
+  private final Map<Integer, Response.Point> points = new TreeMap<>();
+  private int knee;
+  private double kneeThroughput;
+  private int sloCrossover;
+  private boolean done;
+
+  private volatile Response response;
+
+  PerfJobSearch(String job, int maxThreads, int resolution, int saturationGain, int p99SloMicros,
+      Step step) {
+    this.job = job;
+    this.maxThreads = maxThreads;
+    this.resolution = Math.max(resolution, 1);
+    this.gain = saturationGain / 100.0;
+    this.sloNanos = p99SloMicros * 1000L;
+    this.step = step;
+    publish();
+  }
+
+  void run() {
+    // Geometric phase.
+    boolean saturated = false;
+    boolean crossed = false;
+    Response.Point previous = null;
+    int threads = 1;
+    while (true) {
+      Response.Point p = measure(threads);
+      if (p == null) {
+        return;
+      }
+      if (previous != null && p.throughput < previous.throughput * (1 + gain)) {
+        saturated = true;
+      }
+      if (sloNanos > 0 && p.p99 > sloNanos) {
+        crossed = true;
+      }
+      if (threads >= maxThreads || (saturated && (sloNanos == 0 || crossed))) {
+        break;
+      }
+      previous = p;
+      threads = Math.min(threads * 2, maxThreads);
+    }
+
+    // Bisection phase.
+    double best = 0;
+    for (Response.Point p : points.values()) {
+      best = Math.max(best, p.throughput);
+    }
+    double threshold = best * (1 - gain);
+    Integer k = bisect(p -> p.throughput >= threshold);
+    if (k == null) {
+      return;
+    }
+    knee = k;
+    kneeThroughput = points.get(k).throughput;
+    if (crossed) {
+      Integer crossover = bisect(p -> p.p99 > sloNanos);
+      if (crossover == null) {
+        return;
+      }
+      sloCrossover = crossover;
+    }
+    done = true;
+    publish();
+    System.out.println(String.format("%s: knee at %d threads (%.0f ops/sec, best %.0f ops/sec)%s",
+        job, knee, kneeThroughput, best,
+        crossed ? String.format(", p99 above %dus from %d threads", sloNanos / 1000, sloCrossover) : ""));
+  }
+
+  Response getResponse() {
+    return response;
+  }
+
+  /**
+   * Smallest thread count for which the condition holds, assuming it holds for every thread count
+   * above. Null if interrupted.
+   */
+  private Integer bisect(Predicate<Response.Point> condition) {
+    int lo = 0;
+    int hi = -1;
+    for (Response.Point p : points.values()) {
+      if (condition.test(p)) {
+        hi = p.threads;
+        break;
+      }
+      lo = p.threads;
+    }
+    if (hi < 0) {
+      return maxThreads;
+    }
+    while (hi - lo > resolution) {
+      int mid = lo + (hi - lo) / 2;
+      Response.Point p = measure(mid);
+      if (p == null) {
+        return null;
+      }
+      if (condition.test(p)) {
+        hi = mid;
+      } else {
+        lo = mid;
+      }
+    }
+    return hi;
+  }
+
+  private Response.Point measure(int threads) {
+    Response.Point p = points.get(threads);
+    if (p != null) {
+      return p;
+    }
+    PerfJobResult result = step.run(threads);
+    if (result == null) {
+      return null;
+    }
+    p = new Response.Point();
+    p.threads = threads;
+    p.id = result.getId();
+    p.throughput = result.getMeasuredThroughput();
+    p.p99 = result.getLatency().getValueAtPercentile(99);
+    points.put(threads, p);
+    publish();
+    return p;
+  }
+
+  /**
+   * Readers get an immutable snapshot, the search thread keeps its own state.
+   */
+  private void publish() {
+    Response r = new Response();
+    r.job = job;
+    r.saturationGain = gain * 100;
+    r.p99SloMicros = sloNanos / 1000;
+    r.knee = knee;
+    r.kneeThroughput = kneeThroughput;
+    r.sloCrossover = sloCrossover;
+    r.done = done;
+    r.steps = Lists.newArrayList(points.values());
+    response = r;
+  }
+
+  public static class Response {
+    static class Point {
+      public int threads;
+      public int id; // step, see /jobs/perfResult
+      public double throughput; // ops/sec
+      public long p99; // ns
+    }
+    public String job;
+    public double saturationGain; // in %
+    public long p99SloMicros; // 0 when not searched for
+    public int knee; // 0 until found
+    public double kneeThroughput;
+    public int sloCrossover; // 0 until found, or if p99 stayed below the SLO up to maxThreads
+    public boolean done;
+    public List<Point> steps; // by number of threads
+  }
+}
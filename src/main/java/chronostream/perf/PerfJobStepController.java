@@ -0,0 +1,153 @@
+package chronostream.perf;
+
+import chronostream.Config;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a step starts and stops measuring. Runs on the PerfJob thread, every TICK_MS while
+ * the workers are busy.
+ *
+ * - warmup: measurement starts warmupMs after the end of ramp-up.
+ * - time-boxed steps: the step ramps down stepDurationMs after measurement started.
+ * - steady state: throughput and mean latency are computed over WINDOW_TICKS windows. The warmup
+ *   lasts (at least warmupMs and) until the last STEADY_WINDOWS windows vary by less than
+ *   MAX_THROUGHPUT_CV / MAX_LATENCY_CV (standard deviation over mean). Measurement then stops as
+ *   soon as the standard error of the measured throughput is below TARGET_RELATIVE_ERROR, or when
+ *   the step runs out of time or operations. A time-boxed step which never settles starts
+ *   measuring after stepDurationMs of warmup anyway.
+ *
+ * Window stats come from the recorders' histogram counts, the workers don't do anything extra.
+ */
+class PerfJobStepController implements Runnable {
+  static final long TICK_MS = 100;
+  private static final int WINDOW_TICKS = 5;
+  private static final int STEADY_WINDOWS = 5;
+  private static final double MAX_THROUGHPUT_CV = 0.05;
+  private static final double MAX_LATENCY_CV = 0.10;
+  private static final int MIN_MEASURED_WINDOWS = 10;
+  private static final double TARGET_RELATIVE_ERROR = 0.01;
+
+  private final PerfJobResult result;
+  private final long warmupNanos;
+  private final long durationNanos;
+  private final boolean steadyState;
+
+  private int ticks;
+  private long windowStart;
+  private long windowCount;
+  private double windowSum;
+  // throughput (ops/sec) and mean latency (ns) of the last windows of the current phase.
+  private final Deque<double[]> windows = new ArrayDeque<>();
+
+  PerfJobStepController(PerfJobResult result, Config.PerfTest config) {
+    this.result = result;
+    this.warmupNanos = TimeUnit.MILLISECONDS.toNanos(config.warmupMs());
+    this.durationNanos = TimeUnit.MILLISECONDS.toNanos(config.stepDurationMs());
+    this.steadyState = config.steadyState();
+  }
+
+  /**
+   * True if the config needs a controller at all.
+   */
+  static boolean isNeeded(Config.PerfTest config) {
+    return config.isTimeBoxed() || config.warmupMs() > 0 || config.steadyState();
+  }
+
+  public void run() {
+    tick(System.nanoTime());
+  }
+
+  /**
+   * @param now System.nanoTime()
+   */
+  void tick(long now) {
+    long rampedUp = result.getRampedUp();
+    if (rampedUp == 0 || result.isRampingDown()) {
+      return;
+    }
+    if (steadyState && ticks++ % WINDOW_TICKS == 0) {
+      closeWindow(now);
+    }
+
+    if (result.isWarmingUp()) {
+      long warm = now - rampedUp;
+      if (warm < warmupNanos) {
+        return;
+      }
+      if (steadyState && !isSteady()) {
+        if (durationNanos == 0 || warm < warmupNanos + durationNanos) {
+          return;
+        }
+        System.out.println(String.format("%d: no steady state after %dms of warmup, measuring anyway",
+            result.getId(), TimeUnit.NANOSECONDS.toMillis(warm)));
+      }
+      result.startMeasuring(now);
+      windows.clear();
+      return;
+    }
+
+    if (durationNanos > 0 && now - result.getMeasureStart() >= durationNanos) {
+      result.rampDown();
+    } else if (steadyState && windows.size() >= MIN_MEASURED_WINDOWS
+        && relativeError() <= TARGET_RELATIVE_ERROR) {
+      result.rampDown();
+    }
+  }
+
+  /**
+   * Closes the current window (the first call only opens one).
+   */
+  private void closeWindow(long now) {
+    long count = 0;
+    double sum = 0;
+    for (PerfJobRecorder recorder : result.getRecorders()) {
+      count += recorder.getLatency().getTotalCount();
+      sum += recorder.getLatency().getMean() * recorder.getLatency().getTotalCount();
+      if (recorder.getWarmupLatency() != null) {
+        count += recorder.getWarmupLatency().getTotalCount();
+        sum += recorder.getWarmupLatency().getMean() * recorder.getWarmupLatency().getTotalCount();
+      }
+    }
+    if (windowStart != 0 && now > windowStart) {
+      long n = count - windowCount;
+      double throughput = n * 1e9 / (now - windowStart);
+      double latency = n == 0 ? 0 : (sum - windowSum) / n;
+      windows.addLast(new double[] {throughput, latency});
+      if (result.isWarmingUp() && windows.size() > STEADY_WINDOWS) {
+        windows.removeFirst();
+      }
+    }
+    windowStart = now;
+    windowCount = count;
+    windowSum = sum;
+  }
+
+  private boolean isSteady() {
+    return windows.size() >= STEADY_WINDOWS
+        && coefficientOfVariation(0) <= MAX_THROUGHPUT_CV
+        && coefficientOfVariation(1) <= MAX_LATENCY_CV;
+  }
+
+  private double relativeError() {
+    return coefficientOfVariation(0) / Math.sqrt(windows.size());
+  }
+
+  private double coefficientOfVariation(int field) {
+    double mean = 0;
+    for (double[] w : windows) {
+      mean += w[field];
+    }
+    mean /= windows.size();
+    if (mean == 0) {
+      return Double.MAX_VALUE;
+    }
+    double variance = 0;
+    for (double[] w : windows) {
+      variance += (w[field] - mean) * (w[field] - mean);
+    }
+    variance /= Math.max(windows.size() - 1, 1);
+    return Math.sqrt(variance) / mean;
+  }
+}
@@ -0,0 +1,392 @@
+package chronostream.perf;
+
+import chronostream.Config;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * Persists perf runs to an embedded H2 database: one row per run, one per step (the step's
+ * summary) and, optionally, one per sample.
+ *
+ * Writes are queued and done in batches by a single writer thread, in one transaction per batch.
+ * The workers never wait on the database: steps are handed over by the report writer once their
+ * logs are written. If the database can't keep up, the report writer (and eventually the next
+ * step) waits for room in the queue.
+ *
+ * Steps are only demoted by PerfJobResults once they are stored, so raw samples are read straight
+ * from the recorders without being copied.
+ */
+public class PerfJobStore implements Runnable {
+  private static final int QUEUE_SIZE = 64;
+  private static final int BATCH_SIZE = 1000;
+
+  private static final String[] SCHEMA = {
+      "CREATE TABLE IF NOT EXISTS runs ("
+          + "id BIGINT AUTO_INCREMENT PRIMARY KEY, started TIMESTAMP, name VARCHAR(64), "
+          + "executor VARCHAR(16), sweep VARCHAR(16), target_rate INT, arrival VARCHAR(16), "
+          + "step_duration_ms INT)",
+      "CREATE TABLE IF NOT EXISTS steps ("
+          + "run_id BIGINT, id INT, job VARCHAR(255), test VARCHAR(255), provider VARCHAR(64), "
+          + "primitive VARCHAR(32), key_size INT, buffer_mode VARCHAR(16), threads INT, "
+          + "iterations INT, completed INT, excluded INT, throughput DOUBLE, latency_min BIGINT, "
+          + "latency_mean DOUBLE, latency_p50 BIGINT, latency_p90 BIGINT, latency_p99 BIGINT, "
+          + "latency_p999 BIGINT, latency_max BIGINT, corrected_p99 BIGINT, "
+          + "allocated_bytes_per_op DOUBLE, exception VARCHAR, PRIMARY KEY (run_id, id))",
+      "CREATE INDEX IF NOT EXISTS steps_provider ON steps (provider, primitive, key_size, threads)",
+      "CREATE INDEX IF NOT EXISTS steps_primitive ON steps (primitive, key_size, threads)",
+      "CREATE TABLE IF NOT EXISTS samples ("
+          + "run_id BIGINT, step_id INT, intended_start_ns BIGINT, start_ns BIGINT, end_ns BIGINT)",
+      "CREATE INDEX IF NOT EXISTS samples_step ON samples (run_id, step_id)",
+  };
+
+  private static final String STEP_COLUMNS = "run_id, id, job, test, provider, primitive, "
+      + "key_size, buffer_mode, threads, iterations, completed, excluded, throughput, latency_min, "
+      + "latency_mean, latency_p50, latency_p90, latency_p99, latency_p999, latency_max, "
+      + "corrected_p99, allocated_bytes_per_op, exception";
+
+  private final JdbcConnectionPool pool;
+  private final boolean rawSamples;
+  private final BlockingQueue<StepWrite> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+  public PerfJobStore(Config.Storage config) throws SQLException {
+    pool = JdbcConnectionPool.create(config.url(), "sa", "");
+    rawSamples = config.rawSamples();
+    try (Connection c = pool.getConnection(); Statement s = c.createStatement()) {
+      for (String sql : SCHEMA) {
+        s.execute(sql);
+      }
+    }
+  }
+
+  /**
+   * Records the start of a run, returns its id. Runs once per PerfJob, synchronously.
+   */
+  long startRun(String name, Config.PerfTest config) throws SQLException {
+    try (Connection c = pool.getConnection();
+        PreparedStatement s = c.prepareStatement("INSERT INTO runs (started, name, executor, "
+            + "sweep, target_rate, arrival, step_duration_ms) VALUES (?, ?, ?, ?, ?, ?, ?)",
+            Statement.RETURN_GENERATED_KEYS)) {
+      s.setTimestamp(1, Timestamp.from(Instant.now()));
+      s.setString(2, name);
+      s.setString(3, config.executor());
+      s.setString(4, config.sweep());
+      s.setInt(5, config.targetRate());
+      s.setString(6, config.isOpenLoop() ? config.arrival() : null);
+      s.setInt(7, config.stepDurationMs());
+      s.executeUpdate();
+      try (ResultSet keys = s.getGeneratedKeys()) {
+        keys.next();
+        return keys.getLong(1);
+      }
+    }
+  }
+
+  /**
+   * Queues a finished step, then runs done (also if storing failed). Called on the report writer
+   * thread.
+   */
+  void saveStep(long runId, Config.Test test, String provider, PerfJobResult result,
+      Runnable done) {
+    try {
+      queue.put(new StepWrite(runId, test, provider, result, done));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      done.run();
+    }
+  }
+
+  public void run() {
+    List<StepWrite> batch = new ArrayList<>();
+    try {
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch);
+        try (Connection c = pool.getConnection()) {
+          c.setAutoCommit(false);
+          try {
+            for (StepWrite write : batch) {
+              write.write(c);
+            }
+            c.commit();
+          } catch (SQLException e) {
+            e.printStackTrace();
+            c.rollback();
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+        } finally {
+          for (StepWrite write : batch) {
+            write.done.run();
+          }
+          batch.clear();
+        }
+      }
+    } catch (InterruptedException e) {
+      // shutting down
+    }
+  }
+
+  /**
+   * Runs, newest first.
+   */
+  public List<Run> getRuns(int limit) throws SQLException {
+    List<Run> runs = new ArrayList<>();
+    try (Connection c = pool.getConnection();
+        PreparedStatement s = c.prepareStatement("SELECT id, started, name, executor, sweep, "
+            + "target_rate, arrival, step_duration_ms FROM runs ORDER BY id DESC LIMIT ?")) {
+      s.setInt(1, limit);
+      try (ResultSet rs = s.executeQuery()) {
+        while (rs.next()) {
+          Run r = new Run();
+          r.id = rs.getLong(1);
+          r.started = rs.getTimestamp(2).toInstant().toString();
+          r.name = rs.getString(3);
+          r.executor = rs.getString(4);
+          r.sweep = rs.getString(5);
+          r.targetRate = rs.getInt(6);
+          r.arrival = rs.getString(7);
+          r.stepDurationMs = rs.getInt(8);
+          runs.add(r);
+        }
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Step summaries matching every non-null filter, newest first.
+   */
+  public List<Step> getSteps(Long runId, String provider, String primitive, Integer keySize,
+      Integer threads, int limit) throws SQLException {
+    StringBuilder sql = new StringBuilder("SELECT ").append(STEP_COLUMNS)
+        .append(" FROM steps WHERE 1=1");
+    List<Object> params = new ArrayList<>();
+    filter(sql, params, "run_id", runId);
+    filter(sql, params, "provider", provider);
+    filter(sql, params, "primitive", primitive);
+    filter(sql, params, "key_size", keySize);
+    filter(sql, params, "threads", threads);
+    sql.append(" ORDER BY run_id DESC, id DESC LIMIT ?");
+    params.add(limit);
+
+    List<Step> steps = new ArrayList<>();
+    try (Connection c = pool.getConnection();
+        PreparedStatement s = c.prepareStatement(sql.toString())) {
+      for (int i = 0; i < params.size(); i++) {
+        s.setObject(i + 1, params.get(i));
+      }
+      try (ResultSet rs = s.executeQuery()) {
+        while (rs.next()) {
+          steps.add(new Step(rs));
+        }
+      }
+    }
+    return steps;
+  }
+
+  /**
+   * Raw samples of a stored step, empty if they weren't stored.
+   */
+  Samples getSamples(long runId, int stepId) throws SQLException {
+    try (Connection c = pool.getConnection()) {
+      int n;
+      try (PreparedStatement s = c.prepareStatement(
+          "SELECT COUNT(*) FROM samples WHERE run_id = ? AND step_id = ?")) {
+        s.setLong(1, runId);
+        s.setInt(2, stepId);
+        try (ResultSet rs = s.executeQuery()) {
+          rs.next();
+          n = rs.getInt(1);
+        }
+      }
+      Samples samples = new Samples(n);
+      try (PreparedStatement s = c.prepareStatement(
+          "SELECT start_ns, end_ns FROM samples WHERE run_id = ? AND step_id = ?")) {
+        s.setLong(1, runId);
+        s.setInt(2, stepId);
+        try (ResultSet rs = s.executeQuery()) {
+          int i = 0;
+          while (rs.next() && i < n) {
+            samples.ends[i] = rs.getLong(2);
+            samples.latencies[i] = samples.ends[i] - rs.getLong(1);
+            i++;
+          }
+        }
+      }
+      return samples;
+    }
+  }
+
+  private static void filter(StringBuilder sql, List<Object> params, String column, Object value) {
+    if (value != null) {
+      sql.append(" AND ").append(column).append(" = ?");
+      params.add(value);
+    }
+  }
+
+  private class StepWrite {
+    final long runId;
+    final Config.Test test;
+    final String provider;
+    final PerfJobResult result;
+    final Runnable done;
+
+    StepWrite(long runId, Config.Test test, String provider, PerfJobResult result,
+        Runnable done) {
+      this.runId = runId;
+      this.test = test;
+      this.provider = provider;
+      this.result = result;
+      this.done = done;
+    }
+
+    void write(Connection c) throws SQLException {
+      PerfJobResult.Response r = result.getResponse(0, 0);
+      try (PreparedStatement s = c.prepareStatement(String.format(
+          "INSERT INTO steps (%s) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, "
+              + "?, ?, ?, ?)", STEP_COLUMNS))) {
+        int i = 1;
+        s.setLong(i++, runId);
+        s.setInt(i++, result.getId());
+        s.setString(i++, result.getJob());
+        s.setString(i++, test.name());
+        s.setString(i++, provider);
+        s.setString(i++, test.primitive());
+        s.setInt(i++, test.keySize());
+        s.setString(i++, test.bufferMode());
+        s.setInt(i++, result.getThreads());
+        s.setInt(i++, result.getIterations());
+        s.setInt(i++, r.completed);
+        s.setInt(i++, r.excluded);
+        s.setDouble(i++, r.throughput);
+        s.setLong(i++, r.latency.min);
+        s.setDouble(i++, r.latency.mean);
+        s.setLong(i++, r.latency.p50);
+        s.setLong(i++, r.latency.p90);
+        s.setLong(i++, r.latency.p99);
+        s.setLong(i++, r.latency.p999);
+        s.setLong(i++, r.latency.max);
+        if (r.correctedLatency != null) {
+          s.setLong(i++, r.correctedLatency.p99);
+        } else {
+          s.setNull(i++, Types.BIGINT);
+        }
+        s.setDouble(i++, r.allocatedBytesPerOperation);
+        s.setString(i++, r.exception);
+        s.executeUpdate();
+      }
+
+      if (rawSamples && result.isRaw()) {
+        try (PreparedStatement s = c.prepareStatement("INSERT INTO samples (run_id, step_id, "
+            + "intended_start_ns, start_ns, end_ns) VALUES (?, ?, ?, ?, ?)")) {
+          int pending = 0;
+          for (PerfJobRecorder recorder : result.getRecorders()) {
+            int completed = recorder.getCompleted();
+            for (int j = 0; j < completed; j++) {
+              s.setLong(1, runId);
+              s.setInt(2, result.getId());
+              s.setLong(3, recorder.getIntendedStart(j));
+              s.setLong(4, recorder.getStart(j));
+              s.setLong(5, recorder.getEnd(j));
+              s.addBatch();
+              if (++pending == BATCH_SIZE) {
+                s.executeBatch();
+                pending = 0;
+              }
+            }
+          }
+          if (pending > 0) {
+            s.executeBatch();
+          }
+        }
+      }
+    }
+  }
+
+  static class Samples {
+    final long[] latencies; // ns
+    final long[] ends; // System.nanoTime(), in ns
+
+    Samples(int n) {
+      latencies = new long[n];
+      ends = new long[n];
+    }
+  }
+
+  public static class Run {
+    public long id;
+    public String started; // ISO-8601
+    public String name; // prefix of the log files
+    public String executor;
+    public String sweep;
+    public int targetRate; // 0 for a closed loop
+    public String arrival; // only for open-loop runs
+    public int stepDurationMs; // 0 if steps ran a fixed number of operations
+  }
+
+  // Latencies are in ns.
+  public static class Step {
+    public long runId;
+    public int id;
+    public String job;
+    public String test;
+    public String provider;
+    public String primitive;
+    public int keySize;
+    public String bufferMode;
+    public int threads;
+    public int iterations;
+    public int completed;
+    public int excluded;
+    public double throughput; // ops/sec
+    public long latencyMin;
+    public double latencyMean;
+    public long latencyP50;
+    public long latencyP90;
+    public long latencyP99;
+    public long latencyP999;
+    public long latencyMax;
+    public Long correctedP99; // only for open-loop runs
+    public double allocatedBytesPerOperation;
+    public String exception;
+
+    Step(ResultSet rs) throws SQLException {
+      int i = 1;
+      runId = rs.getLong(i++);
+      id = rs.getInt(i++);
+      job = rs.getString(i++);
+      test = rs.getString(i++);
+      provider = rs.getString(i++);
+      primitive = rs.getString(i++);
+      keySize = rs.getInt(i++);
+      bufferMode = rs.getString(i++);
+      threads = rs.getInt(i++);
+      iterations = rs.getInt(i++);
+      completed = rs.getInt(i++);
+      excluded = rs.getInt(i++);
+      throughput = rs.getDouble(i++);
+      latencyMin = rs.getLong(i++);
+      latencyMean = rs.getDouble(i++);
+      latencyP50 = rs.getLong(i++);
+      latencyP90 = rs.getLong(i++);
+      latencyP99 = rs.getLong(i++);
+      latencyP999 = rs.getLong(i++);
+      latencyMax = rs.getLong(i++);
+      long corrected = rs.getLong(i++);
+      correctedP99 = rs.wasNull() ? null : corrected;
+      allocatedBytesPerOperation = rs.getDouble(i++);
+      exception = rs.getString(i++);
+    }
+  }
+}
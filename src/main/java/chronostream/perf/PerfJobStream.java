@@ -0,0 +1,151 @@
+package chronostream.perf;
+
+import chronostream.common.core.Histogram;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the progress of the running perf step to subscribers.
+ *
+ * The workers are not involved: a publisher thread wakes up every INTERVAL_MS, summarizes the step
+ * (unless there are no subscribers) and hands the batch to every subscriber. Each subscriber has a small bounded queue. When a
+ * subscriber falls behind, its oldest batches are dropped (and counted) so that neither the
+ * publisher nor the workers ever wait on a slow client.
+ *
+ * Batches don't carry the samples: clients fetch them as binary frames from /jobs/perfResult
+ * (see PerfJobResult.writeSamples), at their own pace.
+ */
+public class PerfJobStream implements Runnable {
+  private static final long INTERVAL_MS = 100;
+  private static final int QUEUE_SIZE = 16;
+
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+  private volatile PerfJobResult current;
+
+  // Only touched by the publisher thread.
+  private PerfJobResult draining;
+  private Histogram latency;
+  private Histogram corrected;
+  private Histogram warmup;
+
+  /**
+   * Called by PerfJob when a new step starts.
+   */
+  void setCurrent(PerfJobResult result) {
+    current = result;
+  }
+
+  public Subscriber subscribe() {
+    Subscriber subscriber = new Subscriber();
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Thread.sleep(INTERVAL_MS);
+        publish();
+      }
+    } catch (InterruptedException e) {
+      // shutting down
+    }
+  }
+
+  private void publish() {
+    PerfJobResult result = current;
+    if (subscribers.isEmpty()) {
+      // Nobody would see the previous step's final summary either.
+      draining = result;
+      return;
+    }
+    if (result != draining) {
+      // Publish the previous step's final summary; its workers are done by now.
+      if (draining != null) {
+        publish(batch(draining));
+      }
+      draining = result;
+    }
+    if (draining != null) {
+      publish(batch(draining));
+    }
+  }
+
+  private void publish(Batch batch) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(batch);
+    }
+  }
+
+  private Batch batch(PerfJobResult result) {
+    // All the steps of a run have the same precision, only allocate once.
+    if (latency == null) {
+      latency = result.newHistogram();
+      corrected = result.newHistogram();
+      warmup = result.newHistogram();
+    }
+    Batch batch = new Batch();
+    batch.id = result.getId();
+    batch.response = result.getResponse(0, 0, latency, corrected, warmup);
+    batch.raw = result.isRaw();
+    return batch;
+  }
+
+  /**
+   * A step's cumulative summary, as of the batch. The samples aren't included, see the class
+   * comment. Batches are shared between subscribers and must not be modified.
+   */
+  public static class Batch {
+    public int id;
+    public PerfJobResult.Response response; // summary so far, without samples
+    public boolean raw; // recordRawSamples is set: response.completed samples can be fetched
+  }
+
+  public static class Update {
+    public Batch batch;
+    public int dropped; // batches dropped since the previous update, because the client was slow
+
+    Update(Batch batch, int dropped) {
+      this.batch = batch;
+      this.dropped = dropped;
+    }
+  }
+
+  public class Subscriber {
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private int dropped;
+
+    private void offer(Batch batch) {
+      // Only the publisher thread offers, so this can't spin.
+      while (!queue.offer(batch)) {
+        if (queue.poll() != null) {
+          synchronized (this) {
+            dropped++;
+          }
+        }
+      }
+    }
+
+    /**
+     * Waits for the next batch, returns null if there was none within the timeout.
+     */
+    public Update next(long timeout, TimeUnit unit) throws InterruptedException {
+      Batch batch = queue.poll(timeout, unit);
+      if (batch == null) {
+        return null;
+      }
+      synchronized (this) {
+        Update update = new Update(batch, dropped);
+        dropped = 0;
+        return update;
+      }
+    }
+
+    public void close() {
+      subscribers.remove(this);
+    }
+  }
+}
@@ -1,27 +1,64 @@
 package chronostream.perf;
 
+import chronostream.common.core.AllocationCounter;
+
 /**
- * Runs a specific test for a specific number of iterations.
+ * Runs a specific test for a specific number of iterations, or until the step ramps down if
+ * iterations is 0 (time-boxed steps).
+ *
+ * Without a schedule, the task runs a closed loop: the next operation starts as soon as the
+ * previous one returns. With a schedule, operations are issued at the schedule's intended times.
+ *
+ * The task stops early if another task of the same step has already finished, so that every
+ * recorded sample ran at the step's full concurrency.
  */
 public class PerfJobTask implements Runnable {
   private PerfJobConfig test;
   private PerfJobResult result;
   private int iterations;
+  private PerfJobSchedule schedule;
 
-  public PerfJobTask(PerfJobConfig test, int iterations, PerfJobResult result) {
+  public PerfJobTask(PerfJobConfig test, int iterations, PerfJobSchedule schedule,
+      PerfJobResult result) {
     this.test = test;
     this.iterations = iterations;
+    this.schedule = schedule;
     this.result = result;
   }
 
   public void run() {
+    PerfJobRecorder recorder = result.newRecorder();
+    boolean startedUp = false;
+    // Allocations are counted from the end of the first operation, i.e. in steady state.
+    long allocatedBefore = -1;
+    int operations = 0;
     try {
-      for (int i=0; i<iterations; i++) {
-        test.doCrypto(result);
+      for (int i=0; (iterations == 0 || i<iterations) && !result.isRampingDown(); i++) {
+        if (schedule == null) {
+          test.doCrypto(recorder);
+        } else {
+          test.doCrypto(recorder, schedule.awaitNext());
+        }
+        if (!startedUp) {
+          result.startedUp();
+          startedUp = true;
+          allocatedBefore = AllocationCounter.currentThreadAllocatedBytes();
+        } else {
+          operations++;
+        }
+      }
+      long allocatedAfter = AllocationCounter.currentThreadAllocatedBytes();
+      if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+        recorder.recordAllocations(allocatedAfter - allocatedBefore, operations);
       }
     } catch (Exception e) {
       e.printStackTrace();
       result.recordException(e);
+    } finally {
+      if (!startedUp) {
+        result.startedUp();
+      }
+      result.rampDown();
     }
   }
 }
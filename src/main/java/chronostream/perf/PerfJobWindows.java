@@ -0,0 +1,255 @@
+package chronostream.perf;
+
+import chronostream.common.core.Histogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates the running perf step into fixed time windows (100ms, 1s and 10s): throughput and
+ * latency percentiles per window, so that clients don't have to download every sample.
+ *
+ * Like PerfJobStream, this runs on its own thread and never involves the workers. Every tick, the
+ * recorders' histograms are merged and the histogram of a window is the difference between the
+ * merged histogram at the end of the window and at its start. The cost of a tick only depends on
+ * the number of workers and the histogram precision, and a window is computed once, when it
+ * closes. Samples are attributed to the tick at which they are seen, i.e. with up to 100ms of
+ * lag.
+ *
+ * The last RETAINED windows of each granularity are kept. Each window has a sequence number so
+ * clients can ask for the windows they haven't seen yet: a request costs the number of windows
+ * it returns, not the length of the run.
+ */
+public class PerfJobWindows implements Runnable {
+  private static final long TICK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int RETAINED = 3000;
+
+  public enum Granularity {
+    MS_100("100ms", 1),
+    S_1("1s", 10),
+    S_10("10s", 100);
+
+    public final String name;
+    // window length, in ticks.
+    final int ticks;
+
+    Granularity(String name, int ticks) {
+      this.name = name;
+      this.ticks = ticks;
+    }
+
+    /**
+     * Returns null for an unknown name.
+     */
+    public static Granularity parse(String name) {
+      for (Granularity g : values()) {
+        if (g.name.equals(name)) {
+          return g;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final long origin = System.nanoTime();
+  private final Series[] series = new Series[Granularity.values().length];
+  private volatile PerfJobResult current;
+
+  // Only touched by the aggregator thread.
+  private PerfJobResult aggregating;
+  private boolean closed;
+  private Histogram latency;
+  private Histogram corrected;
+  private Histogram scratch;
+  // merged histograms at the start of the open window of each granularity.
+  private Histogram[] latencyMarks;
+  private Histogram[] correctedMarks;
+  private long[] windowStarts = new long[Granularity.values().length];
+  private int[] ticks = new int[Granularity.values().length];
+
+  public PerfJobWindows() {
+    for (int i = 0; i < series.length; i++) {
+      series[i] = new Series();
+    }
+  }
+
+  /**
+   * Called by PerfJob when a new step starts.
+   */
+  void setCurrent(PerfJobResult result) {
+    current = result;
+  }
+
+  /**
+   * Windows of the given granularity with a sequence number above since, optionally only those of
+   * one job.
+   */
+  public Response getResponse(Granularity granularity, long since, String job) {
+    return series[granularity.ordinal()].since(granularity, since, job);
+  }
+
+  public void run() {
+    long next = System.nanoTime();
+    try {
+      while (true) {
+        next += TICK_NS;
+        TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+        tick(next);
+      }
+    } catch (InterruptedException e) {
+      // shutting down
+    }
+  }
+
+  private void tick(long now) {
+    PerfJobResult result = current;
+    if (result != aggregating) {
+      // The previous step ends with partial windows.
+      if (aggregating != null && !closed) {
+        snapshot();
+        closeAll(now);
+      }
+      start(result, now);
+    }
+    if (aggregating == null || closed) {
+      return;
+    }
+    snapshot();
+    if (aggregating.isDone()) {
+      // Don't produce empty windows after the last step.
+      closeAll(now);
+      closed = true;
+      return;
+    }
+    for (Granularity g : Granularity.values()) {
+      if (++ticks[g.ordinal()] == g.ticks) {
+        close(g, now);
+      }
+    }
+  }
+
+  private void start(PerfJobResult result, long now) {
+    aggregating = result;
+    closed = false;
+    if (result == null) {
+      return;
+    }
+    // All the steps of a run have the same precision, only allocate once.
+    if (latency == null) {
+      latency = result.newHistogram();
+      corrected = result.newHistogram();
+      scratch = result.newHistogram();
+      latencyMarks = new Histogram[Granularity.values().length];
+      correctedMarks = new Histogram[Granularity.values().length];
+      for (int i = 0; i < latencyMarks.length; i++) {
+        latencyMarks[i] = result.newHistogram();
+        correctedMarks[i] = result.newHistogram();
+      }
+    }
+    latency.reset();
+    corrected.reset();
+    for (int i = 0; i < latencyMarks.length; i++) {
+      latencyMarks[i].reset();
+      correctedMarks[i].reset();
+      windowStarts[i] = now;
+      ticks[i] = 0;
+    }
+  }
+
+  private void snapshot() {
+    latency.reset();
+    aggregating.merge(latency, PerfJobRecorder::getLatency);
+    if (aggregating.isOpenLoop()) {
+      corrected.reset();
+      aggregating.merge(corrected, PerfJobRecorder::getCorrectedLatency);
+    }
+  }
+
+  private void closeAll(long now) {
+    for (Granularity g : Granularity.values()) {
+      if (now > windowStarts[g.ordinal()]) {
+        close(g, now);
+      }
+    }
+  }
+
+  private void close(Granularity g, long now) {
+    int i = g.ordinal();
+    Window w = new Window();
+    w.job = aggregating.getJob();
+    w.id = aggregating.getId();
+    w.threads = aggregating.getThreads();
+    w.startMs = TimeUnit.NANOSECONDS.toMillis(windowStarts[i] - origin);
+    w.durationMs = TimeUnit.NANOSECONDS.toMillis(now - windowStarts[i]);
+
+    scratch.reset();
+    scratch.add(latency);
+    scratch.subtract(latencyMarks[i]);
+    w.latency = new PerfJobResult.Response.Latency(scratch);
+    w.throughput = w.durationMs == 0 ? 0 : scratch.getTotalCount() * 1000.0 / w.durationMs;
+    latencyMarks[i].reset();
+    latencyMarks[i].add(latency);
+
+    if (aggregating.isOpenLoop()) {
+      scratch.reset();
+      scratch.add(corrected);
+      scratch.subtract(correctedMarks[i]);
+      w.correctedLatency = new PerfJobResult.Response.Latency(scratch);
+      correctedMarks[i].reset();
+      correctedMarks[i].add(corrected);
+    }
+
+    windowStarts[i] = now;
+    ticks[i] = 0;
+    series[i].add(w);
+  }
+
+  /**
+   * The last RETAINED windows of one granularity, in a ring indexed by sequence number.
+   */
+  private static class Series {
+    private final Window[] ring = new Window[RETAINED];
+    private long next = 1;
+
+    synchronized void add(Window w) {
+      w.seq = next;
+      ring[(int) (next % RETAINED)] = w;
+      next++;
+    }
+
+    synchronized Response since(Granularity granularity, long since, String job) {
+      Response r = new Response();
+      r.window = granularity.name;
+      r.last = next - 1;
+      r.windows = new ArrayList<>();
+      for (long seq = Math.max(since + 1, Math.max(next - RETAINED, 1)); seq < next; seq++) {
+        Window w = ring[(int) (seq % RETAINED)];
+        if (job == null || job.equals(w.job)) {
+          r.windows.add(w);
+        }
+      }
+      return r;
+    }
+  }
+
+  /**
+   * Windows are shared between requests and must not be modified once published.
+   */
+  public static class Window {
+    public long seq;
+    public String job; // test-provider-buffermode-executor
+    public int id; // step
+    public int threads;
+    public long startMs; // since the perf job started
+    public long durationMs; // shorter than the window for the last window of a step
+    public double throughput; // operations per second
+    public PerfJobResult.Response.Latency latency;
+    public PerfJobResult.Response.Latency correctedLatency; // only for open-loop tests
+  }
+
+  public static class Response {
+    public String window;
+    public long last; // pass as since to only get newer windows
+    public List<Window> windows;
+  }
+}
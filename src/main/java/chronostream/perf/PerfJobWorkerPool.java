@@ -0,0 +1,99 @@
+package chronostream.perf;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived worker threads which run the steps of a perf sweep.
+ *
+ * The threads are created once, sized to the largest step of the sweep. Each step activates as
+ * many workers as it has tasks. The activated workers wait on a start barrier so they all begin at
+ * the same time, and the step ends when the last of them has finished.
+ *
+ * The workers can be platform or virtual threads, depending on the ThreadFactory.
+ */
+class PerfJobWorkerPool {
+  private final Thread[] workers;
+  private final BlockingQueue<Runnable>[] inboxes;
+
+  @SuppressWarnings("unchecked")
+  PerfJobWorkerPool(int size, ThreadFactory threadFactory) {
+    workers = new Thread[size];
+    inboxes = new BlockingQueue[size];
+    for (int i = 0; i < size; i++) {
+      BlockingQueue<Runnable> inbox = new LinkedBlockingQueue<>();
+      inboxes[i] = inbox;
+      workers[i] = threadFactory.newThread(() -> {
+        try {
+          while (true) {
+            inbox.take().run();
+          }
+        } catch (InterruptedException e) {
+          // pool is shutting down
+        }
+      });
+      workers[i].start();
+    }
+  }
+
+  int size() {
+    return workers.length;
+  }
+
+  /**
+   * Runs each task on its own worker and returns once they have all completed.
+   */
+  void runStep(List<? extends Runnable> tasks) throws InterruptedException {
+    runStep(tasks, null, 0);
+  }
+
+  /**
+   * Same as runStep(tasks), calling tick on the calling thread every tickMs while the tasks run.
+   */
+  void runStep(List<? extends Runnable> tasks, Runnable tick, long tickMs)
+      throws InterruptedException {
+    if (tasks.size() > workers.length) {
+      throw new IllegalArgumentException(
+          String.format("step needs %d workers, pool only has %d", tasks.size(), workers.length));
+    }
+    CountDownLatch ready = new CountDownLatch(tasks.size());
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(tasks.size());
+
+    for (int i = 0; i < tasks.size(); i++) {
+      Runnable task = tasks.get(i);
+      inboxes[i].put(() -> {
+        try {
+          ready.countDown();
+          start.await();
+          task.run();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+
+    // Release every worker at once, only after all of them are parked on the start barrier.
+    ready.await();
+    start.countDown();
+    if (tick == null) {
+      done.await();
+    } else {
+      while (!done.await(tickMs, TimeUnit.MILLISECONDS)) {
+        tick.run();
+      }
+    }
+  }
+
+  void shutdown() {
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+}
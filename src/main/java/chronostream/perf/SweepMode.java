@@ -0,0 +1,17 @@
+package chronostream.perf;
+
+/**
+ * How PerfJob picks the number of threads of each step.
+ */
+public enum SweepMode {
+  // every thread count from 1 to maxThreads, by threadsIncrement.
+  LINEAR("linear"),
+  // geometric steps then bisection, see PerfJobSearch.
+  ADAPTIVE("adaptive");
+
+  public String name;
+
+  SweepMode(String name) {
+    this.name = name;
+  }
+}
@@ -1,28 +1,87 @@
 package chronostream.resources;
 
+import chronostream.common.core.FlightRecording;
+import chronostream.common.core.TimerCalibration;
+import chronostream.common.crypto.ProviderScheduler;
 import chronostream.correctness.CorrectnessJob;
 import chronostream.correctness.CorrectnessJobResult;
 import chronostream.perf.PerfJob;
+import chronostream.perf.PerfJobComparison;
 import chronostream.perf.PerfJobResult;
+import chronostream.perf.PerfJobSearch;
+import chronostream.perf.PerfJobStore;
+import chronostream.perf.PerfJobStream;
+import chronostream.perf.PerfJobWindows;
 import com.codahale.metrics.annotation.Timed;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.apache.commons.lang3.Validate;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 @Path("/jobs")
 @Produces(MediaType.APPLICATION_JSON)
 public class Jobs {
+  private static final long STREAM_WRITE_MS = 100;
+  private static final long STREAM_KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final long STREAM_WRITE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
   PerfJob perfJob;
   CorrectnessJob correctnessJob;
+  FlightRecording flightRecording; // null if jfr isn't configured
+  ProviderScheduler scheduler;
+
+  // Check the perfStream clients every STREAM_WRITE_MS and hand their queued batches to
+  // streamWrites. The writes can block on a client's full connection, so they never run on these
+  // shared threads: a client whose write hasn't gone through within STREAM_WRITE_TIMEOUT_NANOS is
+  // disconnected.
+  private final ScheduledExecutorService streamWriters = new ScheduledThreadPoolExecutor(2,
+      r -> {
+        Thread t = new Thread(r);
+        t.setName("perfStream-writer");
+        t.setDaemon(true);
+        return t;
+      });
+  // At most one write in flight per client.
+  private final ExecutorService streamWrites = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r);
+    t.setName("perfStream-write");
+    t.setDaemon(true);
+    return t;
+  });
 
-  public Jobs(PerfJob perfJob, CorrectnessJob correctnessJob) {
+  public Jobs(PerfJob perfJob, CorrectnessJob correctnessJob, FlightRecording flightRecording,
+      ProviderScheduler scheduler) {
     this.perfJob = perfJob;
     this.correctnessJob = correctnessJob;
+    this.flightRecording = flightRecording;
+    this.scheduler = scheduler;
   }
 
   ///**
@@ -96,6 +155,228 @@ public class Jobs {
     return null;
   }
 
+  /**
+   * Same samples as perfResults, as a compact binary frame (see PerfJobResult.writeSamples).
+   * Picked by clients which send "Accept: application/x-chronostream-samples".
+   */
+  @GET
+  @Timed
+  @Path("perfResult")
+  @Produces(PerfJobResult.SAMPLES_MEDIA_TYPE)
+  public StreamingOutput perfResultSamples(@QueryParam("id") int id, @QueryParam("offset") int offset, @QueryParam("count") int count) {
+    Validate.isTrue(id > 0);
+
+    PerfJobResult r = perfJob.getResult(id);
+    if (r != null) {
+      return out -> r.writeSamples(out, offset, count);
+    }
+    return null;
+  }
+
+  /**
+   * Knee and p99 SLO crossover found by adaptive sweeps (perfTest.sweep: ADAPTIVE), per test.
+   */
+  @GET
+  @Timed
+  @Path("perfSearch")
+  public List<PerfJobSearch.Response> perfSearch() {
+    return perfJob.getSearches();
+  }
+
+  /**
+   * Throughput and latency percentiles of the perf job, per window of 100ms, 1s or 10s. Pass the
+   * previous response's "last" as since to only get the windows which closed since then.
+   */
+  @GET
+  @Timed
+  @Path("perfWindows")
+  public PerfJobWindows.Response perfWindows(
+      @QueryParam("window") @DefaultValue("1s") String window,
+      @QueryParam("since") long since, @QueryParam("job") String job) {
+    PerfJobWindows.Granularity granularity = PerfJobWindows.Granularity.parse(window);
+    if (granularity == null) {
+      throw new BadRequestException(
+          String.format("unknown window %s, use 100ms, 1s or 10s", window));
+    }
+    return perfJob.getWindows().getResponse(granularity, since, job);
+  }
+
+  /**
+   * Streams the running perf step as server-sent events, one "batch" event per PerfJobStream
+   * batch. A client which can't keep up loses batches (reported in the "dropped" field) instead of
+   * slowing down the measurements, and is disconnected once a write has been stuck for 10s.
+   */
+  @GET
+  @Path("perfStream")
+  @Produces(SseFeature.SERVER_SENT_EVENTS)
+  public EventOutput perfStream() {
+    EventOutput output = new EventOutput();
+    new StreamWriter(output, perfJob.getStream().subscribe(), streamWrites).start(streamWriters);
+    return output;
+  }
+
+  /**
+   * Perf runs stored in the database (see the storage config), newest first.
+   */
+  @GET
+  @Timed
+  @Path("history/runs")
+  public List<PerfJobStore.Run> historyRuns(@QueryParam("limit") @DefaultValue("100") int limit)
+      throws SQLException {
+    return getStore().getRuns(limit);
+  }
+
+  /**
+   * Stored step summaries, newest first. Every filter is optional.
+   */
+  @GET
+  @Timed
+  @Path("history/steps")
+  public List<PerfJobStore.Step> historySteps(@QueryParam("run") Long run,
+      @QueryParam("provider") String provider,
+      @QueryParam("primitive") String primitive,
+      @QueryParam("keySize") Integer keySize,
+      @QueryParam("threads") Integer threads,
+      @QueryParam("limit") @DefaultValue("1000") int limit) throws SQLException {
+    return getStore().getSteps(run, provider, primitive, keySize, threads, limit);
+  }
+
+  /**
+   * Step by step comparison of two stored runs, see PerfJobComparison. Also available headless
+   * as the "compare" command.
+   */
+  @GET
+  @Timed
+  @Path("history/compare")
+  public PerfJobComparison.Response historyCompare(@QueryParam("baseline") long baseline,
+      @QueryParam("candidate") long candidate,
+      @QueryParam("threshold") @DefaultValue("5") double threshold) throws SQLException {
+    return new PerfJobComparison(getStore()).compare(baseline, candidate, threshold);
+  }
+
+  private PerfJobStore getStore() {
+    PerfJobStore store = perfJob.getStore();
+    if (store == null) {
+      throw new NotFoundException("storage is not configured");
+    }
+    return store;
+  }
+
+  /**
+   * Per provider budgets of the perf and correctness jobs, see ProviderScheduler.
+   */
+  @GET
+  @Timed
+  @Path("budgets")
+  public ProviderScheduler.Response budgets() {
+    return scheduler.getResponse();
+  }
+
+  /**
+   * Changes the budget of a (job, provider) lane and/or what happens to correctness traffic
+   * during perf steps. Omitted parameters are left as they are, 0 means unlimited.
+   */
+  @POST
+  @Timed
+  @Path("budgets")
+  public ProviderScheduler.Response setBudgets(@QueryParam("job") String job,
+      @QueryParam("provider") String provider,
+      @QueryParam("opsPerSec") Integer opsPerSec,
+      @QueryParam("concurrency") Integer concurrency,
+      @QueryParam("correctnessDuringPerf") String correctnessDuringPerf,
+      @QueryParam("throttledOpsPerSec") Integer throttledOpsPerSec) {
+    if (job != null || provider != null) {
+      if (job == null || provider == null) {
+        throw new BadRequestException("job and provider go together");
+      }
+      scheduler.setBudget(parse(ProviderScheduler.JobType.class, "job", job), provider,
+          opsPerSec, concurrency);
+    }
+    scheduler.setDuringPerf(correctnessDuringPerf == null ? null
+        : parse(ProviderScheduler.DuringPerf.class, "correctnessDuringPerf",
+            correctnessDuringPerf), throttledOpsPerSec);
+    return scheduler.getResponse();
+  }
+
+  private static <E extends Enum<E>> E parse(Class<E> type, String param, String value) {
+    try {
+      return Enum.valueOf(type, value);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(String.format("unknown %s %s, use one of %s", param, value,
+          Arrays.toString(type.getEnumConstants())));
+    }
+  }
+
+  /**
+   * State of the JFR recording of crypto operations (see the jfr config).
+   */
+  @GET
+  @Timed
+  @Path("jfr")
+  public FlightRecording.Status jfr() {
+    return getFlightRecording().getStatus();
+  }
+
+  /**
+   * Starts a new JFR recording, discarding the previous one.
+   */
+  @POST
+  @Timed
+  @Path("jfr/start")
+  public FlightRecording.Status jfrStart() throws IOException, ParseException {
+    return getFlightRecording().start();
+  }
+
+  @POST
+  @Timed
+  @Path("jfr/stop")
+  public FlightRecording.Status jfrStop() {
+    return getFlightRecording().stop();
+  }
+
+  /**
+   * Downloads the recording so far (running or stopped), to open in JDK Mission Control. 404 if
+   * the recording was never started.
+   */
+  @GET
+  @Path("jfr/dump")
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public Response jfrDump() throws IOException {
+    java.nio.file.Path path;
+    try {
+      path = getFlightRecording().dump();
+    } catch (IllegalStateException e) {
+      throw new NotFoundException(e.getMessage() + ", start the jfr recording first");
+    }
+    StreamingOutput body = out -> {
+      try {
+        Files.copy(path, out);
+      } finally {
+        Files.delete(path);
+      }
+    };
+    return Response.ok(body)
+        .header("Content-Disposition", "attachment; filename=\"chronostream.jfr\"")
+        .build();
+  }
+
+  private FlightRecording getFlightRecording() {
+    if (flightRecording == null) {
+      throw new NotFoundException("jfr is not configured");
+    }
+    return flightRecording;
+  }
+
+  /**
+   * Cost and granularity of the timer used to measure perf samples.
+   */
+  @GET
+  @Timed
+  @Path("timer")
+  public TimerCalibration timer() {
+    return perfJob.getTimerCalibration();
+  }
+
   public class ListResponse {
     public Map<String, String> primitives;
     public Set<String> providers;
@@ -105,4 +386,94 @@ public class Jobs {
     public int id;
     public String summary;
   }
+
+  /**
+   * Writes the batches a perfStream client has queued up. Runs on one of the streamWriters threads,
+   * the writes themselves on the writes executor.
+   */
+  private static class StreamWriter implements Runnable {
+    private final EventOutput output;
+    private final PerfJobStream.Subscriber subscriber;
+    private final ExecutorService writes;
+    private ScheduledFuture<?> future; // guarded by this
+    // Only touched by the streamWriters, one run at a time.
+    private Future<?> writing;
+    private long writeStarted;
+    private long lastWrite = System.nanoTime();
+
+    StreamWriter(EventOutput output, PerfJobStream.Subscriber subscriber,
+        ExecutorService writes) {
+      this.output = output;
+      this.subscriber = subscriber;
+      this.writes = writes;
+    }
+
+    synchronized void start(ScheduledExecutorService executor) {
+      future = executor.scheduleWithFixedDelay(this, 0, STREAM_WRITE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      if (writing != null && !writing.isDone()) {
+        if (now - writeStarted >= STREAM_WRITE_TIMEOUT_NANOS) {
+          // The client stopped reading. Its batches keep being dropped until then.
+          close();
+        }
+        return;
+      }
+      if (output.isClosed()) {
+        close();
+        return;
+      }
+      List<OutboundEvent> events = new ArrayList<>();
+      try {
+        PerfJobStream.Update update;
+        while ((update = subscriber.next(0, TimeUnit.MILLISECONDS)) != null) {
+          events.add(new OutboundEvent.Builder()
+              .name("batch")
+              .mediaType(MediaType.APPLICATION_JSON_TYPE)
+              .data(PerfJobStream.Update.class, update)
+              .build());
+        }
+      } catch (InterruptedException e) {
+        close();
+        return;
+      }
+      if (events.isEmpty()) {
+        if (now - lastWrite < STREAM_KEEP_ALIVE_NANOS) {
+          return;
+        }
+        // Keep-alive, also how we notice that the client went away.
+        events.add(new OutboundEvent.Builder().comment("").build());
+      }
+      writeStarted = now;
+      lastWrite = now;
+      writing = writes.submit(() -> write(events));
+    }
+
+    private void write(List<OutboundEvent> events) {
+      try {
+        for (OutboundEvent event : events) {
+          output.write(event);
+        }
+      } catch (IOException e) {
+        // client went away
+        close();
+      }
+    }
+
+    private void close() {
+      synchronized (this) {
+        future.cancel(false);
+      }
+      subscriber.close();
+      try {
+        // Doesn't wait for a blocked write, which fails once the connection is closed.
+        output.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
 }
@@ -94,10 +94,17 @@ class CorrectnessResult {
       new_content.append($("<u/>").text("Correctness"));
       var d = $("<div/>", {class: "correctnessResult"});
       for (var i in data.results) {
-        if (data.results[i] == "") {
-          d.append($("<span/>", {class: "ok"}).text(i + ": ok"));
+        var cell = data.results[i];
+        if (cell.failures == 0) {
+          d.append($("<span/>", {class: "ok"}).text(i + ": ok (" + cell.successes + ")"));
         } else {
-          d.append($("<span/>", {class: "fail"}).text(i + ": " + data.results[i]));
+          // samples are newest first, hover for the stack trace.
+          var text = i + ": " + cell.failures + " failures ("
+              + (cell.failureRate * 100).toFixed(2) + "%)";
+          if (cell.samples.length > 0) {
+            text += ", last: " + cell.samples[0].message;
+          }
+          d.append($("<span/>", {class: "fail", title: cell.samples.length > 0 ? cell.samples[0].trace : ""}).text(text));
         }
       }
       d.append($("<br/>"));
@@ -149,7 +156,6 @@ class PerfResult {
     this.maxValue = 0;
     this.counter = 0;
     this.data = [];
-    this.rawData = [];
 
     var svg = d3.select("#graph-" + this.id).append("svg")
         .attr("width", width + margin.left + margin.right)
@@ -184,55 +190,139 @@ class PerfResult {
           .datum(this.data)
           .attr("class", "line")
           .attr("d", this.line);
+    // samples which overlap a GC pause.
+    this.gcDots = clip.append("g")
+          .attr("class", "gc");
 
     // load data
-    this.done = false;
-    this.fetch();
+    this.stepId = null;
+    this.raw = false;
+    this.completed = 0;
+    // step whose samples are being fetched, it lags behind stepId until its tail is fetched.
+    this.samplesStepId = null;
+    this.fetched = 0;
+    this.samplesDone = false;
+    this.fetching = false;
+    this.subscribe();
   }
 
-  fetch() {
-    if (this.done) {
-      this.result.find(".status").text("done, computing final results...");
-      return;
+  /**
+   * The step's progress is pushed by the server (server-sent events), its samples are then fetched
+   * as binary frames (see samples.js).
+   */
+  subscribe() {
+    var source = new EventSource('/jobs/perfStream');
+    source.addEventListener('batch', e => this.update(JSON.parse(e.data)));
+    source.onerror = err => {
+      console.error(err);
+      this.result.find(".status").text("disconnected from server, retrying...");
+    };
+  }
+
+  update(data) {
+    var batch = data.batch;
+    var response = batch.response;
+    if (batch.id != this.stepId) {
+      // a new step started, the graph keeps scrolling.
+      this.stepId = batch.id;
+      this.result.find(".error").text("");
+    }
+    this.raw = batch.raw;
+    this.completed = response.completed;
+    this.gcPauses = response.gcPauses || [];
+    this.description.text(response.description);
+    if (response.exception) {
+      console.error(response.exception);
+      this.result.find(".error").text(response.exception);
+    }
+    var status = "completed: " + response.completed + "/" + response.total;
+    if (response.failed > 0) {
+      status += ", " + response.failed + " failed";
     }
+    if (response.gcCount > 0) {
+      status += ", " + response.gcCount + " GC pauses (" + response.gcPauseMs + "ms)";
+    }
+    if (data.dropped > 0) {
+      status += " (" + data.dropped + " updates dropped, this tab is too slow)";
+    }
+    this.result.find(".status").text(status);
+    this.fetchSamples();
+  }
 
-    // get more data
-    $.ajax({
-      url: '/jobs/perfResult?id=' + this.id + '&offset=' + this.counter + '&count=50000'
-    }).done(data => {
-      this.description = data.descrption;
-      if (data.exception) {
-        console.error(data.exception);
-        this.result.find(".error").text(data.exception);
-        this.done = true;
-      }
-      if (this.counter == data.total) {
-        this.done = true;
+  /**
+   * Fetches the samples recorded since the previous frame, one request at a time: a slow tab
+   * fetches bigger frames, less often. A step's tail is fetched before moving on to the next one.
+   */
+  fetchSamples() {
+    if (this.fetching) {
+      return;
+    }
+    if (this.samplesStepId != this.stepId
+        && (this.samplesStepId == null || this.samplesDone)) {
+      // a tab opened in the middle of a step starts with the graph's worth of samples.
+      this.fetched = this.samplesStepId == null ? Math.max(this.completed - this.scaleX, 0) : 0;
+      this.samplesStepId = this.stepId;
+      this.samplesDone = false;
+    }
+    if (this.samplesStepId == this.stepId && (!this.raw || this.fetched >= this.completed)) {
+      return;
+    }
+    this.fetching = true;
+    fetchSamples(this.samplesStepId, this.fetched, 50000).then(frame => {
+      this.fetching = false;
+      if (frame == null) {
+        // the step is gone, skip to the current one.
+        this.samplesDone = true;
+      } else {
+        this.plot(frame);
+        this.fetched += frame.durations.length;
+        this.samplesDone = frame.done
+            && (this.fetched >= frame.completed || frame.durations.length == 0);
+        if (frame.durations.length == 0 && !this.samplesDone) {
+          return; // wait for the next batch
+        }
       }
+      this.fetchSamples();
+    }).catch(err => {
+      this.fetching = false;
+      console.error(err);
+    });
+  }
 
-      for (var i = 0; i < data.startEndTimes.length; i++) {
-        var v = data.startEndTimes[i].endTime - data.startEndTimes[i].startTime;
-        this.rawData.push(data.startEndTimes[i]);
-        this.data.push({x: this.counter, y: v});
-        this.counter++;
-        this.maxValue = Math.max(this.maxValue, v);
-        if (this.data.length > this.scaleX+1) {
-          this.data.shift();
-        }
+  plot(frame) {
+    // A pause can be notified a little after the samples it delayed, these aren't marked.
+    var pauses = this.gcPauses;
+    var base = Number(frame.base);
+    for (var i = 0; i < frame.durations.length; i++) {
+      // times are in ns, we plot ms.
+      var start = base + frame.startTimes[i];
+      var end = start + frame.durations[i];
+      var v = frame.durations[i] / 1000000;
+      var gc = pauses.some(p => p.startTime <= end && p.endTime >= start);
+      this.data.push({x: this.counter, y: v, gc: gc});
+      this.counter++;
+      this.maxValue = Math.max(this.maxValue, v);
+      if (this.data.length > this.scaleX+1) {
+        this.data.shift();
       }
+    }
 
-      this.y.domain([0, this.maxValue]);
-      d3.selectAll("g.y.axis").call(this.yAxis);
+    this.y.domain([0, this.maxValue]);
+    d3.selectAll("g.y.axis").call(this.yAxis);
 
-      var l = Math.max(this.counter - this.scaleX, 0);
-      this.x.domain([l, l + this.scaleX - 1]);
-      d3.selectAll("g.x.axis").call(this.xAxis);
-      this.p.attr("d", this.line);
-      this.fetch();
-    }).fail(err => {
-      console.error(err);
-      this.result.find(".error").text(err.responseJSON.message);
-    })
+    var l = Math.max(this.counter - this.scaleX, 0);
+    this.x.domain([l, l + this.scaleX - 1]);
+    d3.selectAll("g.x.axis").call(this.xAxis);
+    this.p.attr("d", this.line);
+
+    var dots = this.gcDots.selectAll("circle").data(this.data.filter(d => d.gc));
+    dots.exit().remove();
+    dots.enter().append("circle")
+        .attr("r", 2)
+        .style("fill", "red")
+      .merge(dots)
+        .attr("cx", d => this.x(d.x))
+        .attr("cy", d => this.y(d.y));
   }
 }
 
@@ -302,5 +392,5 @@ class PerfResult {
 //setTimeout(debugFake, 100);
 //var chronostream = new Chronostream();
 
-window.addEventListener('load', _ => new PerfResult(1));
+window.addEventListener('load', _ => new PerfResult('live'));
 window.addEventListener('load', _ => new CorrectnessResult());
@@ -0,0 +1,103 @@
+/**
+ * Decoder for the binary sample frames served by /jobs/perfResult when asked for
+ * application/x-chronostream-samples. The format is documented in PerfJobResult.writeSamples().
+ *
+ * Start times are returned relative to the first sample of the frame (base), so they fit in
+ * doubles; base itself is a BigInt (System.nanoTime() values don't always fit in 53 bits).
+ */
+class SampleFrameDecoder {
+  constructor(buffer) {
+    this.bytes = new Uint8Array(buffer);
+    this.position = 0;
+  }
+
+  // Unsigned LEB128. Exact up to 2^53, which is plenty for deltas and durations.
+  varint() {
+    var v = 0;
+    var scale = 1;
+    var b;
+    do {
+      b = this.bytes[this.position++];
+      v += (b & 0x7f) * scale;
+      scale *= 128;
+    } while (b & 0x80);
+    return v;
+  }
+
+  signedVarint() {
+    var v = this.varint();
+    return (v % 2 == 0) ? v / 2 : -(v + 1) / 2;
+  }
+
+  // Same as signedVarint, without losing precision.
+  bigSignedVarint() {
+    var v = 0n;
+    var shift = 0n;
+    var b;
+    do {
+      b = this.bytes[this.position++];
+      v |= BigInt(b & 0x7f) << shift;
+      shift += 7n;
+    } while (b & 0x80);
+    return (v & 1n) ? -((v + 1n) >> 1n) : v >> 1n;
+  }
+
+  decode() {
+    var view = new DataView(this.bytes.buffer, this.bytes.byteOffset, this.bytes.byteLength);
+    var length = view.getInt32(0);
+    if (length + 4 > this.bytes.length) {
+      throw new Error("truncated frame: " + this.bytes.length + " bytes, expected " + (length + 4));
+    }
+    this.position = 4;
+    var version = this.bytes[this.position++];
+    if (version != 1) {
+      throw new Error("unsupported frame version: " + version);
+    }
+    var flags = this.bytes[this.position++];
+    var frame = {
+      openLoop: (flags & 1) != 0,
+      done: (flags & 2) != 0,
+      id: this.varint(),
+      completed: this.varint(),
+      total: this.varint(),
+      offset: this.varint(),
+    };
+    var count = this.varint();
+    frame.base = this.bigSignedVarint();
+    frame.startTimes = new Float64Array(count);  // ns, relative to base
+    frame.durations = new Float64Array(count);   // ns
+    frame.delays = frame.openLoop ? new Float64Array(count) : null;  // ns, start - intended start
+    var start = 0;
+    for (var i = 0; i < count; i++) {
+      start += this.signedVarint();
+      frame.startTimes[i] = start;
+      frame.durations[i] = this.varint();
+      if (frame.openLoop) {
+        frame.delays[i] = this.signedVarint();
+      }
+    }
+    return frame;
+  }
+}
+
+function decodeSamples(buffer) {
+  return new SampleFrameDecoder(buffer).decode();
+}
+
+/**
+ * Fetches samples [offset, offset+count) of a perf step. Resolves to the decoded frame, or null
+ * if the server doesn't know about this step.
+ */
+function fetchSamples(id, offset, count) {
+  return fetch('/jobs/perfResult?id=' + id + '&offset=' + offset + '&count=' + count, {
+    headers: {'Accept': 'application/x-chronostream-samples'}
+  }).then(response => {
+    if (!response.ok) {
+      throw new Error(response.status + " " + response.statusText);
+    }
+    if (response.status == 204) {
+      return null;
+    }
+    return response.arrayBuffer().then(decodeSamples);
+  });
+}
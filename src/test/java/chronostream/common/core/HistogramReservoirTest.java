@@ -0,0 +1,59 @@
+package chronostream.common.core;
+
+import com.codahale.metrics.Snapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramReservoirTest {
+  private static final long HIGHEST = TimeUnit.MINUTES.toNanos(10);
+
+  @Test
+  public void mergesEveryThread() throws Exception {
+    HistogramReservoir reservoir = new HistogramReservoir(HIGHEST, 2);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      long value = (t + 1) * 1000;
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          reservoir.update(value);
+        }
+      }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertEquals(80_000, snapshot.size());
+    assertEquals(1000, snapshot.getMin());
+    assertEquals(8000, snapshot.getMax(), 8000 / 100);
+    assertEquals(4500, snapshot.getMean(), 1);
+    assertEquals(4000, snapshot.getMedian(), 4000 / 100);
+  }
+
+  @Test
+  public void reusesTheRecordersOfDeadThreads() throws Exception {
+    HistogramReservoir reservoir = new HistogramReservoir(HIGHEST, 2);
+    for (int t = 0; t < 100; t++) {
+      Thread thread = new Thread(() -> reservoir.update(1000));
+      thread.start();
+      thread.join();
+    }
+    // Nothing is lost, although the threads shared one recorder.
+    assertEquals(100, reservoir.getSnapshot().size());
+    assertEquals(1, recorders(reservoir));
+  }
+
+  private static int recorders(HistogramReservoir reservoir) throws Exception {
+    java.lang.reflect.Field f = HistogramReservoir.class.getDeclaredField("recorders");
+    f.setAccessible(true);
+    return ((List<?>) f.get(reservoir)).size();
+  }
+}
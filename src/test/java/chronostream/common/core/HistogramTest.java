@@ -0,0 +1,122 @@
+package chronostream.common.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+  private static final long HIGHEST = TimeUnit.HOURS.toNanos(1);
+
+  @Test
+  public void percentilesAreWithinThePrecision() {
+    for (int digits = 1; digits <= 5; digits++) {
+      Histogram h = new Histogram(HIGHEST, digits);
+      // 1us to 1s, in 1us steps
+      int n = 1_000_000;
+      for (int i = 1; i <= n; i++) {
+        h.record(i * 1000L);
+      }
+      assertEquals(n, h.getTotalCount());
+      assertEquals(1000, h.getMin());
+      assertEquals(500_000.5 * 1000, h.getMean(), 1e-6);
+      double error = Math.pow(10, -digits);
+      for (double p : new double[] {1, 50, 90, 99, 99.9, 100}) {
+        long exact = (long) Math.ceil(p / 100 * n) * 1000;
+        long value = h.getValueAtPercentile(p);
+        assertTrue(digits + " digits, p" + p + ": " + value + " vs " + exact,
+            value >= exact && value <= exact * (1 + error));
+      }
+    }
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    Histogram h = new Histogram(HIGHEST, 2);
+    for (int i = 0; i < 200; i++) {
+      h.record(i);
+    }
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i, h.getValueAtPercentile((i + 1) * 100.0 / 200));
+    }
+  }
+
+  @Test
+  public void subtractUndoesAdd() {
+    Random random = new Random(0);
+    Histogram total = new Histogram(HIGHEST, 3);
+    Histogram second = new Histogram(HIGHEST, 3);
+    for (int i = 0; i < 10_000; i++) {
+      total.record(1000 + random.nextInt(1_000_000));
+    }
+    Histogram first = total.copy();
+    for (int i = 0; i < 5_000; i++) {
+      long value = 50_000 + random.nextInt(10_000_000);
+      total.record(value);
+      second.record(value);
+    }
+
+    Histogram interval = total.copy();
+    interval.subtract(first);
+    assertSameCounts(second, interval);
+    assertEquals(second.getMean(), interval.getMean(), 1e-9);
+    // min and max are only recomputed to the histogram's precision
+    assertEquals(second.getMin(), interval.getMin(), second.getMin() / 1000.0);
+    assertEquals(second.getMax(), interval.getMax(), second.getMax() / 1000.0);
+
+    interval.add(first);
+    assertSameCounts(total, interval);
+    assertEquals(total.getMin(), interval.getMin());
+    assertEquals(total.getMax(), interval.getMax());
+
+    interval.subtract(total);
+    assertEquals(0, interval.getTotalCount());
+    assertEquals(0, interval.getMin());
+    assertEquals(0, interval.getMax());
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    Histogram h = new Histogram(HIGHEST, 3);
+    h.record(1234);
+    h.reset();
+    assertEquals(0, h.getTotalCount());
+    assertEquals(0, h.getValueAtPercentile(50));
+    h.record(10);
+    assertEquals(10, h.getMin());
+    assertEquals(10, h.getMax());
+  }
+
+  @Test
+  public void outOfRangeValuesAreClamped() {
+    Histogram h = new Histogram(HIGHEST, 3);
+    h.record(-5);
+    h.record(HIGHEST + 1000);
+    h.record(Long.MAX_VALUE);
+    assertEquals(3, h.getTotalCount());
+    assertEquals(0, h.getMin());
+    assertEquals(0, h.getValueAtPercentile(10));
+    assertEquals(HIGHEST, h.getMax());
+    assertEquals(HIGHEST, h.getValueAtPercentile(100));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void onlyAddsTheSameLayout() {
+    new Histogram(HIGHEST, 3).add(new Histogram(HIGHEST, 2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTooManyDigits() {
+    new Histogram(HIGHEST, 6);
+  }
+
+  private static void assertSameCounts(Histogram expected, Histogram actual) {
+    assertEquals(expected.getTotalCount(), actual.getTotalCount());
+    for (int i = 0; i < expected.getIndexCount(); i++) {
+      assertEquals("at " + expected.getValueAtIndex(i), expected.getCountAtIndex(i),
+          actual.getCountAtIndex(i));
+    }
+  }
+}
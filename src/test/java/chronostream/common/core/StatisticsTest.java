@@ -0,0 +1,124 @@
+package chronostream.common.core;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Expected values come from R (wilcox.test) and scipy (scipy.stats.norm).
+ */
+public class StatisticsTest {
+  // airquality$Ozone for May and August, NAs dropped.
+  private static final long[] MAY = {41, 36, 12, 18, 28, 23, 19, 8, 7, 16, 11, 14, 18, 14, 34, 6,
+      30, 11, 1, 11, 4, 32, 23, 45, 115, 37};
+  private static final long[] AUGUST = {39, 9, 16, 78, 35, 66, 122, 89, 110, 44, 28, 65, 22, 59,
+      23, 31, 44, 21, 9, 45, 168, 73, 76, 118, 84, 85};
+
+  @Test
+  public void mannWhitneyWithTies() {
+    // wilcox.test(Ozone ~ Month, data = airquality, subset = Month %in% c(5, 8)):
+    // W = 127.5, p-value = 0.0001208 (normal approximation, ties and continuity corrections).
+    assertEquals(1.2080783e-4, Statistics.mannWhitney(MAY, AUGUST), 2e-7);
+    assertEquals(1.2080783e-4, Statistics.mannWhitney(AUGUST, MAY), 2e-7);
+  }
+
+  @Test
+  public void mannWhitneyWithoutTies() {
+    // wilcox.test(1:5, 6:10, exact = FALSE): W = 0, p-value = 0.01219.
+    long[] a = {5, 3, 1, 4, 2};
+    long[] b = {6, 9, 10, 8, 7};
+    assertEquals(0.0121858, Statistics.mannWhitney(a, b), 2e-7);
+  }
+
+  @Test
+  public void mannWhitneyOfIdenticalSamples() {
+    assertEquals(1, Statistics.mannWhitney(MAY, MAY.clone()), 1e-7);
+    assertEquals(1, Statistics.mannWhitney(new long[] {3, 3, 3}, new long[] {3, 3}), 1e-7);
+    assertEquals(1, Statistics.mannWhitney(new long[0], MAY), 0);
+  }
+
+  @Test
+  public void normalCdf() {
+    // norm.cdf
+    assertEquals(0.5, Statistics.normalCdf(0), 1e-7);
+    assertEquals(0.9750021048517795, Statistics.normalCdf(1.96), 1e-7);
+    assertEquals(0.15865525393145707, Statistics.normalCdf(-1), 1e-7);
+    assertEquals(2.866515718791939e-07, Statistics.normalCdf(-5), 1e-7);
+  }
+
+  @Test
+  public void normalQuantile() {
+    // norm.ppf, normalCdf's error divided by the density.
+    assertEquals(0, Statistics.normalQuantile(0.5), 2e-6);
+    assertEquals(1.959963984540054, Statistics.normalQuantile(0.975), 2e-6);
+    assertEquals(-1.6448536269514729, Statistics.normalQuantile(0.05), 2e-6);
+  }
+
+  @Test
+  public void meanDelta() {
+    // delta 3, standard error sqrt(2.5 / 5 + 10 / 5), z 1.959964.
+    double[] ci = Statistics.meanDelta(new double[] {1, 2, 3, 4, 5},
+        new double[] {2, 4, 6, 8, 10}, 0.95);
+    assertEquals(-0.0989752, ci[0], 1e-5);
+    assertEquals(6.0989752, ci[1], 1e-5);
+  }
+
+  @Test
+  public void meanDeltaIsUndefinedWithoutVariance() {
+    double[] ci = Statistics.meanDelta(new double[] {1}, new double[] {2, 4}, 0.95);
+    assertEquals(Double.NEGATIVE_INFINITY, ci[0], 0);
+    assertEquals(Double.POSITIVE_INFINITY, ci[1], 0);
+  }
+
+  @Test
+  public void bootstrapPercentileDelta() {
+    long[] a = new long[2000];
+    long[] b = new long[2000];
+    Random random = new Random(1);
+    for (int i = 0; i < a.length; i++) {
+      a[i] = 1000 + random.nextInt(100);
+      b[i] = a[i] + 50;
+    }
+
+    double[] shifted = Statistics.bootstrapPercentileDelta(a, b, 50, 0.95, 500, new Random(0));
+    assertTrue(shifted[0] + " to " + shifted[1], shifted[0] > 0 && shifted[0] <= 50
+        && shifted[1] >= 50 && shifted[1] < 100);
+
+    double[] same = Statistics.bootstrapPercentileDelta(a, a.clone(), 99, 0.95, 500,
+        new Random(0));
+    assertTrue(same[0] + " to " + same[1], same[0] <= 0 && same[1] >= 0);
+
+    // reproducible
+    double[] again = Statistics.bootstrapPercentileDelta(a, b, 50, 0.95, 500, new Random(0));
+    assertEquals(shifted[0], again[0], 0);
+    assertEquals(shifted[1], again[1], 0);
+  }
+
+  @Test
+  public void percentile() {
+    long[] sorted = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    assertEquals(5, Statistics.percentile(sorted, 50));
+    assertEquals(10, Statistics.percentile(sorted, 99));
+    assertEquals(1, Statistics.percentile(sorted, 0));
+    assertEquals(0, Statistics.percentile(new long[0], 50));
+  }
+
+  @Test
+  public void subsample() {
+    long[] values = new long[100];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i;
+    }
+    long[] sub = Statistics.subsample(values, 10, new Random(0));
+    assertEquals(10, sub.length);
+    boolean[] seen = new boolean[values.length];
+    for (long v : sub) {
+      assertTrue("duplicate " + v, !seen[(int) v]);
+      seen[(int) v] = true;
+    }
+    assertArrayEquals("small enough", values, Statistics.subsample(values, 100, new Random(0)));
+  }
+}
@@ -0,0 +1,92 @@
+package chronostream.common.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarintWriterTest {
+  private static final long[] VALUES = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300, 16383, 16384,
+      Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+  @Test
+  public void roundTrips() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    VarintWriter w = new VarintWriter(out);
+    long expectedSize = 0;
+    for (long v : VALUES) {
+      w.varint(v).signedVarint(v);
+      expectedSize += VarintWriter.size(v) + VarintWriter.size(VarintWriter.zigzag(v));
+    }
+    w.writeInt(0x01020304).writeByte(0xFF);
+    w.flush();
+    assertEquals(expectedSize + 5, out.size());
+
+    InputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (long v : VALUES) {
+      assertEquals(v, readVarint(in));
+      assertEquals(v, readSignedVarint(in));
+    }
+    assertEquals(0x01020304, readInt(in));
+    assertEquals(0xFF, in.read());
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void smallValuesTakeOneByte() {
+    assertEquals(1, VarintWriter.size(0));
+    assertEquals(1, VarintWriter.size(127));
+    assertEquals(2, VarintWriter.size(128));
+    assertEquals(10, VarintWriter.size(-1));
+    assertEquals(1, VarintWriter.size(VarintWriter.zigzag(-64)));
+    assertEquals(2, VarintWriter.size(VarintWriter.zigzag(64)));
+  }
+
+  @Test
+  public void writesMoreThanItsBuffer() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    VarintWriter w = new VarintWriter(out);
+    Random random = new Random(0);
+    long[] values = new long[10_000];
+    long size = 0;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextLong() >> random.nextInt(64);
+      w.signedVarint(values[i]);
+      size += VarintWriter.size(VarintWriter.zigzag(values[i]));
+    }
+    w.flush();
+    assertEquals(size, out.size());
+
+    InputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (long v : values) {
+      assertEquals(v, readSignedVarint(in));
+    }
+  }
+
+  public static long readVarint(InputStream in) throws IOException {
+    long v = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("truncated varint");
+      }
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+  }
+
+  public static long readSignedVarint(InputStream in) throws IOException {
+    long v = readVarint(in);
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  public static int readInt(InputStream in) throws IOException {
+    return (in.read() << 24) | (in.read() << 16) | (in.read() << 8) | in.read();
+  }
+}
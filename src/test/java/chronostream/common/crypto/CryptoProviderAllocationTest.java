@@ -0,0 +1,106 @@
+package chronostream.common.crypto;
+
+import chronostream.Config;
+import chronostream.common.core.AllocationCounter;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The cached, offset-based overloads must not allocate on our side once warmed up.
+ *
+ * SunJCE allocates internally (e.g. a padded copy of the input in CBC encryption, the inner
+ * digest in HMAC), so each overload is compared with the same calls made directly on the
+ * provider's Cipher or Mac: the difference must be 0 bytes per operation.
+ */
+public class CryptoProviderAllocationTest {
+  private static final int WARMUP = 200_000;
+  private static final int OPERATIONS = 10_000;
+
+  private CryptoProvider provider;
+  private final byte[] in = new byte[100];
+  private final byte[] out = new byte[256];
+  private final byte[] decrypted = new byte[256];
+  private final byte[] iv = new byte[16];
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue("thread allocation counters are not supported",
+        AllocationCounter.currentThreadAllocatedBytes() >= 0);
+    provider = new CryptoProvider(Config.CryptoProvider.create("JCE", "JCEKS",
+        "com.sun.crypto.provider.SunJCE", "", "", false));
+  }
+
+  @Test
+  public void aesCbcEncryption() throws Exception {
+    Object key = provider.generateKey(CryptoPrimitive.AES_CBC_ENC, 128);
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "SunJCE");
+    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey) key, new IvParameterSpec(iv));
+
+    assertNoOverhead(
+        () -> provider.doAesCbcEncryption(key, in, 0, in.length, iv, out, 0, true),
+        () -> cipher.doFinal(in, 0, in.length, out, 0));
+  }
+
+  @Test
+  public void aesCbcDecryption() throws Exception {
+    Object key = provider.generateKey(CryptoPrimitive.AES_CBC_DEC, 128);
+    int length = provider.doAesCbcEncryption(key, in, 0, in.length, iv, out, 0, true);
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "SunJCE");
+    cipher.init(Cipher.DECRYPT_MODE, (SecretKey) key, new IvParameterSpec(iv));
+
+    assertNoOverhead(
+        () -> provider.doAesCbcDecryption(key, out, 0, length, iv, decrypted, 0, true),
+        () -> cipher.doFinal(out, 0, length, decrypted, 0));
+  }
+
+  @Test
+  public void hkdf() throws Exception {
+    Object key = provider.generateKey(CryptoPrimitive.HKDF, 128);
+    Mac mac = Mac.getInstance("HmacSHA256", "SunJCE");
+    mac.init((SecretKey) key);
+    byte[] block = new byte[32];
+
+    // Hkdf.expand's single round, for a 16 bytes output.
+    assertNoOverhead(
+        () -> provider.doHKDF(key, in, 0, in.length, out, 0, true),
+        () -> {
+          mac.reset();
+          mac.update(in, 0, in.length);
+          mac.update((byte) 1);
+          mac.doFinal(block, 0);
+          System.arraycopy(block, 0, out, 0, 16);
+        });
+  }
+
+  private static void assertNoOverhead(Operation ours, Operation provider) throws Exception {
+    for (int i = 0; i < WARMUP; i++) {
+      ours.run();
+      provider.run();
+    }
+    long ourBytes = allocatedBytes(ours);
+    long providerBytes = allocatedBytes(provider);
+    // Integer division: tolerates a few stray allocations (e.g. by the JIT) during the run.
+    assertEquals(String.format("%d bytes per operation, the provider allocates %d",
+        ourBytes / OPERATIONS, providerBytes / OPERATIONS),
+        0, (ourBytes - providerBytes) / OPERATIONS);
+  }
+
+  private static long allocatedBytes(Operation operation) throws Exception {
+    long before = AllocationCounter.currentThreadAllocatedBytes();
+    for (int i = 0; i < OPERATIONS; i++) {
+      operation.run();
+    }
+    return AllocationCounter.currentThreadAllocatedBytes() - before;
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+}
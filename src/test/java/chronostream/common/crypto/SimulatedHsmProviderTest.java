@@ -0,0 +1,178 @@
+package chronostream.common.crypto;
+
+import chronostream.Config;
+import java.security.ProviderException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Saturation behavior of the simulated HSM: with s sessions and a constant service time t, n
+ * threads get min(n, s) / t ops/sec and, past saturation, wait about n / s * t per operation.
+ * The delays are checked on a simulated clock, the provider only for errors and the crypto.
+ */
+public class SimulatedHsmProviderTest {
+  private static final int SESSIONS = 2;
+  private static final int SERVICE_TIME_MICROS = 2000;
+  private static final long SERVICE_TIME_NANOS =
+      TimeUnit.MICROSECONDS.toNanos(SERVICE_TIME_MICROS);
+
+  private final byte[] in = new byte[100];
+  private final byte[] out = new byte[32];
+  private final byte[] iv = new byte[16];
+
+  @Test
+  public void waitsForWhatIsLeftOfTheServiceTime() {
+    FakeClock clock = new FakeClock();
+    HsmSimulator simulator = new HsmSimulator(Config.Simulation.create(null, 0, "CONSTANT",
+        SERVICE_TIME_MICROS, 0, 0, 0, 0), clock);
+
+    long doneAt = simulator.begin();
+    assertEquals(clock.start + SERVICE_TIME_NANOS, doneAt);
+    // the delegate took 500us of it
+    clock.advance(500_000);
+    simulator.complete(doneAt);
+    simulator.end();
+    assertEquals(doneAt, clock.nanoTime());
+    assertEquals(1, clock.parks.size());
+    assertEquals(SERVICE_TIME_NANOS - 500_000, (long) clock.parks.get(0));
+
+    // a delegate slower than the service time isn't held up
+    doneAt = simulator.begin();
+    clock.advance(SERVICE_TIME_NANOS * 2);
+    simulator.complete(doneAt);
+    simulator.end();
+    assertEquals(1, clock.parks.size());
+  }
+
+  @Test
+  public void throughputIsCappedBySessions() throws Exception {
+    FakeClock clock = new FakeClock();
+    HsmSimulator simulator = new HsmSimulator(Config.Simulation.create(null, SESSIONS, "CONSTANT",
+        SERVICE_TIME_MICROS, 0, 0, 0, 0), clock);
+
+    // Both sessions are taken, a third operation queues up.
+    long first = simulator.begin();
+    long second = simulator.begin();
+    AtomicLong third = new AtomicLong();
+    Thread queued = new Thread(() -> third.set(simulator.begin()));
+    queued.start();
+    while (queued.getState() != Thread.State.WAITING) {
+      Thread.yield();
+    }
+    assertEquals(0, third.get());
+
+    // It starts when a session is released: min(n, s) operations per service time.
+    simulator.complete(first);
+    simulator.end();
+    queued.join();
+    assertEquals(first, clock.nanoTime());
+    assertEquals(clock.start + 2 * SERVICE_TIME_NANOS, third.get());
+    simulator.complete(second);
+    simulator.end();
+    simulator.complete(third.get());
+    simulator.end();
+    assertEquals(clock.start + 2 * SERVICE_TIME_NANOS, clock.nanoTime());
+
+    // 8 threads, s at a time: each operation waits n / s * t, the rest of the time queued.
+    int threads = 8;
+    long start = clock.nanoTime();
+    long[] done = new long[threads];
+    for (int round = 0; round < threads / SESSIONS; round++) {
+      for (int i = round * SESSIONS; i < (round + 1) * SESSIONS; i++) {
+        done[i] = simulator.begin();
+      }
+      for (int i = round * SESSIONS; i < (round + 1) * SESSIONS; i++) {
+        simulator.complete(done[i]);
+        simulator.end();
+      }
+    }
+    assertEquals(start + (long) threads / SESSIONS * SERVICE_TIME_NANOS, clock.nanoTime());
+    assertEquals(done[threads - 1], clock.nanoTime());
+  }
+
+  @Test
+  public void stallsHoldOperations() {
+    FakeClock clock = new FakeClock();
+    HsmSimulator simulator =
+        new HsmSimulator(Config.Simulation.create(null, 0, null, 0, 0, 1, 50, 0), clock);
+    long stall = TimeUnit.MILLISECONDS.toNanos(50);
+
+    long doneAt = simulator.begin();
+    assertEquals(clock.start, doneAt);
+    // a stall which starts while the first operation waits holds it up too
+    clock.advance(10_000_000);
+    long other = simulator.begin();
+    simulator.complete(doneAt);
+    assertEquals(clock.start + 10_000_000 + stall, clock.nanoTime());
+    simulator.complete(other);
+    assertEquals(clock.start + 10_000_000 + stall, clock.nanoTime());
+    simulator.end();
+    simulator.end();
+  }
+
+  @Test
+  public void injectsErrors() throws Exception {
+    CryptoProvider provider = provider(Config.Simulation.create(null, 0, null, 0, 0, 0, 0, 0.5));
+    Object key = provider.generateKey(CryptoPrimitive.HKDF, 128);
+
+    int failures = 0;
+    for (int i = 0; i < 2000; i++) {
+      try {
+        provider.doHKDF(key, in, 0, in.length, out, 0, true);
+      } catch (ProviderException e) {
+        failures++;
+      }
+    }
+    // 1000 expected, the standard deviation is ~22.
+    assertTrue(failures + " failures", failures > 850 && failures < 1150);
+  }
+
+  @Test
+  public void delegatesTheCrypto() throws Exception {
+    CryptoProvider provider = provider(Config.Simulation.create("SunJCE", 0, null, 0, 0, 0, 0, 0));
+    Object key = provider.generateKey(CryptoPrimitive.AES_CBC_ENC, 128);
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "SunJCE");
+    cipher.init(Cipher.ENCRYPT_MODE, (SecretKey) key, new IvParameterSpec(iv));
+    assertArrayEquals(cipher.doFinal(in), provider.doAesCbcEncryption(key, in, iv));
+  }
+
+  private static CryptoProvider provider(Config.Simulation simulation) throws Exception {
+    return new CryptoProvider(Config.CryptoProvider.create("SimulatedHSM", "",
+        SimulatedHsmProvider.class.getName(), "", "", true, simulation));
+  }
+
+  /**
+   * Only moves when told to or when parked on, by exactly the requested time.
+   */
+  private static class FakeClock implements HsmSimulator.Clock {
+    final long start = 1_000_000_000L;
+    final List<Long> parks = new ArrayList<>();
+    private final AtomicLong now = new AtomicLong(start);
+
+    @Override
+    public long nanoTime() {
+      return now.get();
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+      parks.add(nanos);
+      now.addAndGet(nanos);
+    }
+
+    void advance(long nanos) {
+      now.addAndGet(nanos);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package chronostream.perf;
+
+import chronostream.common.core.GcMonitor;
+import chronostream.common.crypto.BufferMode;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PerfJobRecorderTest {
+  private static final long SECOND = 1_000_000_000L;
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+
+  @Test
+  public void keepsEveryRawSample() {
+    PerfJobResult result = measuring("{'recordRawSamples': true, 'targetRate': 1000}");
+    PerfJobRecorder recorder = result.getRecorders().get(0);
+    // more than the initial capacity
+    for (int i = 0; i < 100; i++) {
+      recorder.record(i, i + 1, i + 10);
+    }
+    assertEquals(100, recorder.getCompleted());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, recorder.getIntendedStart(i));
+      assertEquals(i + 1, recorder.getStart(i));
+      assertEquals(i + 10, recorder.getEnd(i));
+    }
+    assertEquals(100, recorder.getLatency().getTotalCount());
+    assertEquals(9, recorder.getLatency().getMax());
+    assertEquals(10, recorder.getCorrectedLatency().getMax());
+  }
+
+  @Test
+  public void countsThroughputPerSecond() {
+    PerfJobResult result = measuring("{}");
+    PerfJobRecorder recorder = result.getRecorders().get(0);
+    long origin = System.nanoTime();
+    recorder.record(origin, origin + SECOND / 2);
+    recorder.record(origin, origin + SECOND + SECOND / 2);
+    recorder.record(origin, origin + SECOND + SECOND / 2);
+    // far enough to grow the array
+    recorder.record(origin, origin + 100 * SECOND + SECOND / 2);
+
+    long[] throughput = Arrays.copyOf(result.getThroughput(), 3);
+    assertArrayEquals("first seconds", new long[] {1, 2, 0}, throughput);
+    assertEquals(101, result.getThroughput().length);
+  }
+
+  @Test
+  public void mergeAddsUpEverything() {
+    PerfJobResult result = measuring("{'warmupMs': 100}");
+    PerfJobRecorder first = result.getRecorders().get(0);
+    PerfJobRecorder second = result.newRecorder();
+    first.record(0, 500);
+    result.startMeasuring(System.nanoTime());
+    first.record(0, 100);
+    second.record(0, 200);
+    second.record(0, 300);
+    first.recordFailure(new IllegalStateException());
+    second.recordAllocations(640, 10);
+
+    PerfJobRecorder merged = PerfJobRecorder.merge(result, 0, result.getRecorders());
+    assertEquals(3, merged.getCompleted());
+    assertEquals(1, merged.getExcluded());
+    assertEquals(1, merged.getFailed());
+    assertEquals(3, merged.getLatency().getTotalCount());
+    assertEquals(100, merged.getLatency().getMin());
+    assertEquals(300, merged.getLatency().getMax());
+    assertEquals(1, merged.getWarmupLatency().getTotalCount());
+    assertNull(merged.getCorrectedLatency());
+    assertEquals(640, merged.getAllocatedBytes());
+    assertEquals(10, merged.getAllocatedOperations());
+    assertEquals(0, merged.getRawBytes());
+  }
+
+  /**
+   * A single thread step, ramped up.
+   */
+  private static PerfJobResult measuring(String config) {
+    PerfJobResult result = new PerfJobResult(1, "test", 1, 0, 0, TestConfigs.perfTest(config),
+        BufferMode.HEAP_ARRAY, "test", GC_MONITOR);
+    result.newRecorder();
+    result.startedUp();
+    return result;
+  }
+}
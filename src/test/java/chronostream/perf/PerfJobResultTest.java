@@ -0,0 +1,229 @@
+package chronostream.perf;
+
+import chronostream.common.core.GcMonitor;
+import chronostream.common.core.Histogram;
+import chronostream.common.crypto.BufferMode;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+
+import static chronostream.common.core.VarintWriterTest.readInt;
+import static chronostream.common.core.VarintWriterTest.readSignedVarint;
+import static chronostream.common.core.VarintWriterTest.readVarint;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PerfJobResultTest {
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+
+  @Test
+  public void mergesTheRecordersOfEveryThread() {
+    PerfJobResult result = result(2, "{}");
+    PerfJobRecorder first = result.newRecorder();
+    PerfJobRecorder second = result.newRecorder();
+    first.record(0, 100); // ramping up
+    result.startedUp();
+    result.startedUp();
+    for (int i = 0; i < 3; i++) {
+      first.record(0, 1000);
+    }
+    second.record(0, 2000);
+    second.recordFailure(new IllegalStateException("busy"));
+
+    Histogram latency = result.getLatency();
+    assertEquals(4, latency.getTotalCount());
+    assertEquals(1000, latency.getMin());
+    assertEquals(2000, latency.getMax());
+    assertNull(result.getCorrectedLatency());
+    assertNull(result.getWarmupLatency());
+
+    PerfJobResult.Response r = result.getResponse(0, 0);
+    assertEquals(4, r.completed);
+    assertEquals(1, r.excluded);
+    assertEquals(1, r.failed);
+    assertEquals(4, r.latency.count);
+    assertEquals(1000, r.latency.p50);
+    assertEquals(2000, r.latency.max);
+    assertNull(r.correctedLatency);
+    assertTrue(r.exception, r.exception.contains("busy"));
+  }
+
+  @Test
+  public void openLoopsCorrectForTheIntendedStart() {
+    PerfJobResult result = result(1, "{'targetRate': 1000}");
+    PerfJobRecorder recorder = result.newRecorder();
+    result.startedUp();
+    recorder.record(0, 500, 1500);
+
+    assertEquals(1000, result.getLatency().getMax());
+    assertEquals(1500, result.getCorrectedLatency().getMax());
+    assertEquals(1500, result.getResponse(0, 0).correctedLatency.max);
+  }
+
+  @Test
+  public void warmupIsRecordedApart() {
+    PerfJobResult result = result(1, "{'warmupMs': 100}");
+    PerfJobRecorder recorder = result.newRecorder();
+    result.startedUp();
+    assertTrue(result.isWarmingUp());
+    recorder.record(0, 700);
+    result.startMeasuring(System.nanoTime());
+    recorder.record(0, 300);
+
+    assertEquals(1, result.getWarmupLatency().getTotalCount());
+    assertEquals(700, result.getWarmupLatency().getMax());
+    assertEquals(1, result.getLatency().getTotalCount());
+    assertEquals(300, result.getLatency().getMax());
+    assertEquals(1, result.getExcluded());
+    assertEquals(700, result.getResponse(0, 0).warmupLatency.max);
+  }
+
+  @Test
+  public void reusedHistogramsGiveTheSameResponse() {
+    PerfJobResult result = result(2, "{'targetRate': 1000, 'warmupMs': 100}");
+    PerfJobRecorder first = result.newRecorder();
+    PerfJobRecorder second = result.newRecorder();
+    result.startedUp();
+    result.startedUp();
+    first.record(0, 10, 100);
+    result.startMeasuring(System.nanoTime());
+    second.record(0, 20, 200);
+
+    Histogram latency = result.newHistogram();
+    Histogram corrected = result.newHistogram();
+    Histogram warmup = result.newHistogram();
+    PerfJobResult.Response fresh = result.getResponse(0, 0);
+    for (int i = 0; i < 2; i++) {
+      PerfJobResult.Response reused = result.getResponse(0, 0, latency, corrected, warmup);
+      assertSameLatency(fresh.latency, reused.latency);
+      assertSameLatency(fresh.correctedLatency, reused.correctedLatency);
+      assertSameLatency(fresh.warmupLatency, reused.warmupLatency);
+    }
+  }
+
+  @Test
+  public void rawSamplesAreReturnedRoundRobin() {
+    PerfJobResult result = result(2, "{'recordRawSamples': true}");
+    PerfJobRecorder first = result.newRecorder();
+    PerfJobRecorder second = result.newRecorder();
+    result.startedUp();
+    result.startedUp();
+    first.record(0, 1);
+    first.record(0, 2);
+    first.record(0, 3);
+    second.record(0, 11);
+    second.record(0, 12);
+
+    // The third sample of the first thread waits for the second thread to catch up.
+    PerfJobResult.Response r = result.getResponse(1, 10);
+    assertEquals(4, r.completed);
+    assertEquals(3, r.startEndTimes.size());
+    assertEquals(11, r.startEndTimes.get(0).endTime);
+    assertEquals(2, r.startEndTimes.get(1).endTime);
+    assertEquals(12, r.startEndTimes.get(2).endTime);
+  }
+
+  @Test
+  public void compactKeepsTheTotals() {
+    PerfJobResult result = result(3, "{'recordRawSamples': true, 'targetRate': 1000}");
+    for (int t = 0; t < 3; t++) {
+      result.newRecorder();
+      result.startedUp();
+    }
+    long now = System.nanoTime();
+    for (int t = 0; t < 3; t++) {
+      PerfJobRecorder recorder = result.getRecorders().get(t);
+      for (int i = 0; i < 100; i++) {
+        recorder.record(now, now + t * 10, now + 1000 * (t + i + 1));
+      }
+      recorder.recordFailure(new IllegalStateException());
+      recorder.recordAllocations(64 * (t + 1), 100);
+    }
+    result.rampDown();
+    result.getRecorders().get(0).record(now, now + 1);
+    result.finish();
+
+    PerfJobResult.Response before = result.getResponse(0, 0);
+    long[] throughput = result.getThroughput();
+    double allocated = result.getAllocatedBytesPerOperation();
+    assertTrue(result.getRawBytes() > 0);
+    result.compact();
+
+    assertEquals(1, result.getRecorders().size());
+    assertFalse(result.isRaw());
+    assertEquals(0, result.getRawBytes());
+    PerfJobResult.Response after = result.getResponse(0, 0);
+    assertEquals(300, after.completed);
+    assertEquals(before.completed, after.completed);
+    assertEquals(1, after.excluded);
+    assertEquals(3, after.failed);
+    assertSameLatency(before.latency, after.latency);
+    assertSameLatency(before.correctedLatency, after.correctedLatency);
+    assertArrayEquals("throughput", throughput, result.getThroughput());
+    assertEquals(allocated, result.getAllocatedBytesPerOperation(), 1e-9);
+  }
+
+  @Test
+  public void samplesFrameRoundTrips() throws IOException {
+    PerfJobResult result = result(2, "{'recordRawSamples': true, 'targetRate': 1000}");
+    PerfJobRecorder first = result.newRecorder();
+    PerfJobRecorder second = result.newRecorder();
+    result.startedUp();
+    result.startedUp();
+    long now = System.nanoTime();
+    for (int i = 0; i < 1000; i++) {
+      // Starts go backwards between the threads, and some deltas need several bytes.
+      first.record(now + i * 1000, now + i * 1000 + 5, now + i * 1000 + 5 + i * i);
+      second.record(now + i * 999, now + i * 999 + 7 * i, now + i * 999 + 7 * i + 50);
+    }
+
+    for (int[] window : new int[][] {{0, 2000}, {15, 100}, {1999, 5}, {2000, 10}, {0, 0}}) {
+      int offset = window[0];
+      int count = window[1];
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      result.writeSamples(out, offset, count);
+      ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+      assertEquals("length", out.size() - 4, readInt(in));
+
+      assertEquals(1, in.read());
+      assertEquals(1, in.read()); // open loop, not done
+      assertEquals(1, readVarint(in));
+      assertEquals(2000, readVarint(in));
+      assertEquals(0, readVarint(in));
+      assertEquals(offset, readVarint(in));
+      int n = (int) readVarint(in);
+      List<PerfJobResult.Response.Test> expected =
+          result.getResponse(offset, count).startEndTimes;
+      assertEquals(expected.size(), n);
+      long start = readSignedVarint(in);
+      assertEquals(n == 0 ? 0 : expected.get(0).startTime, start);
+      for (PerfJobResult.Response.Test t : expected) {
+        start += readSignedVarint(in);
+        assertEquals(t.startTime, start);
+        assertEquals(t.endTime, start + readVarint(in));
+        assertEquals(t.intendedStartTime, start - readSignedVarint(in));
+      }
+      assertEquals("trailing bytes", -1, in.read());
+    }
+  }
+
+  private static PerfJobResult result(int threads, String config) {
+    return new PerfJobResult(1, "test", threads, 0, 0, TestConfigs.perfTest(config),
+        BufferMode.HEAP_ARRAY, "test", GC_MONITOR);
+  }
+
+  private static void assertSameLatency(PerfJobResult.Response.Latency expected,
+      PerfJobResult.Response.Latency actual) {
+    assertEquals(expected.count, actual.count);
+    assertEquals(expected.min, actual.min);
+    assertEquals(expected.mean, actual.mean, 1e-9);
+    assertEquals(expected.p50, actual.p50);
+    assertEquals(expected.p99, actual.p99);
+    assertEquals(expected.max, actual.max);
+  }
+}
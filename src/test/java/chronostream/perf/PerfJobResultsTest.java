@@ -0,0 +1,104 @@
+package chronostream.perf;
+
+import chronostream.common.core.GcMonitor;
+import chronostream.common.crypto.BufferMode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PerfJobResultsTest {
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+
+  @Test
+  public void demotesStepsThroughEveryLevel() {
+    PerfJobResults results = new PerfJobResults(2, 3, 4, 0);
+    for (int id = 1; id <= 12; id++) {
+      PerfJobResult result = step(id, 2, 10);
+      results.add(result);
+      results.retire(result);
+    }
+
+    for (int id = 1; id <= 3; id++) {
+      assertNull("forgotten " + id, results.get(id));
+    }
+    for (int id = 4; id <= 7; id++) {
+      PerfJobResult summary = results.get(id);
+      assertTrue(summary.getRecorders().isEmpty());
+      assertEquals(20, summary.getResponse(0, 0).completed);
+      assertEquals(20, summary.getResponse(0, 0).latency.count);
+      assertNull(summary.getResponse(0, 0).gcPauses);
+    }
+    for (int id = 8; id <= 10; id++) {
+      PerfJobResult histograms = results.get(id);
+      assertFalse(histograms.isRaw());
+      assertEquals(1, histograms.getRecorders().size());
+      assertEquals(20, histograms.getLatency().getTotalCount());
+      assertNotNull(histograms.getResponse(0, 0).gcPauses);
+    }
+    for (int id = 11; id <= 12; id++) {
+      PerfJobResult full = results.get(id);
+      assertTrue(full.isRaw());
+      assertEquals(2, full.getRecorders().size());
+      assertEquals(20, full.getResponse(0, 100).startEndTimes.size());
+    }
+  }
+
+  @Test
+  public void keepsTheRawSamplesWithinTheBudget() {
+    long stepBytes = step(0, 1, 1000).getRawBytes();
+    PerfJobResults results = new PerfJobResults(10, 10, 10, stepBytes * 5 / 2);
+    for (int id = 1; id <= 6; id++) {
+      PerfJobResult result = step(id, 1, 1000);
+      results.add(result);
+      results.retire(result);
+    }
+
+    for (int id = 1; id <= 4; id++) {
+      assertFalse("compacted " + id, results.get(id).isRaw());
+      assertEquals(0, results.get(id).getRawBytes());
+    }
+    assertTrue(results.get(5).isRaw());
+    assertTrue(results.get(6).isRaw());
+  }
+
+  @Test
+  public void keepsRunningStepsInFull() {
+    PerfJobResults results = new PerfJobResults(1, 1, 1, 1);
+    PerfJobResult running = step(1, 1, 100);
+    results.add(running);
+    for (int id = 2; id <= 10; id++) {
+      PerfJobResult result = step(id, 1, 100);
+      results.add(result);
+      results.retire(result);
+    }
+    assertSame(running, results.get(1));
+    assertTrue(running.isRaw());
+    assertNull(results.get(2));
+  }
+
+  /**
+   * A finished step with raw samples.
+   */
+  private static PerfJobResult step(int id, int threads, int samples) {
+    PerfJobResult result = new PerfJobResult(id, "test", threads, 0, 0,
+        TestConfigs.perfTest("{'recordRawSamples': true}"), BufferMode.HEAP_ARRAY, "test",
+        GC_MONITOR);
+    for (int t = 0; t < threads; t++) {
+      result.newRecorder();
+      result.startedUp();
+    }
+    for (PerfJobRecorder recorder : result.getRecorders()) {
+      for (int i = 0; i < samples; i++) {
+        recorder.record(i, i + 100);
+      }
+    }
+    result.rampDown();
+    result.finish();
+    return result;
+  }
+}
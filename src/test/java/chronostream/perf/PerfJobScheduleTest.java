@@ -0,0 +1,77 @@
+package chronostream.perf;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerfJobScheduleTest {
+  private static final long SECOND = 1_000_000_000L;
+
+  @Test
+  public void uniformStartsDontDrift() {
+    // 3 ops/sec: the interval isn't a whole number of ns
+    PerfJobSchedule schedule = new PerfJobSchedule(ArrivalDistribution.UNIFORM, 3, new Random(0));
+    long now = 1000;
+    long start = schedule.next(now);
+    assertTrue(start >= now && start < now + SECOND / 3);
+    for (long k = 1; k <= 3_000_000; k++) {
+      long intended = schedule.next(now);
+      if (k % 3 == 0) {
+        // within a rounding of the double product, however many operations
+        assertEquals("op " + k, start + k / 3 * SECOND, intended, 1);
+      }
+    }
+  }
+
+  @Test
+  public void lateOperationsKeepTheirSlot() {
+    PerfJobSchedule schedule = new PerfJobSchedule(ArrivalDistribution.UNIFORM, 1000,
+        new Random(0));
+    long start = schedule.next(0);
+    // The provider stalled for a second: the next operations are all due already, and their
+    // latency will be measured from these times.
+    for (int k = 1; k <= 1000; k++) {
+      assertEquals(start + k * 1_000_000L, schedule.next(SECOND + k));
+    }
+  }
+
+  @Test
+  public void poissonGapsAreExponential() {
+    int rate = 1000;
+    PerfJobSchedule schedule = new PerfJobSchedule(ArrivalDistribution.POISSON, rate,
+        new Random(0));
+    int n = 200_000;
+    long first = schedule.next(0);
+    long previous = first;
+    double sum = 0;
+    double sumOfSquares = 0;
+    for (int i = 0; i < n; i++) {
+      long intended = schedule.next(0);
+      long gap = intended - previous;
+      assertTrue(gap >= 0);
+      sum += gap;
+      sumOfSquares += (double) gap * gap;
+      previous = intended;
+    }
+    double mean = sum / n;
+    double sd = Math.sqrt(sumOfSquares / n - mean * mean);
+    assertEquals(SECOND / rate, mean, SECOND / rate * 0.01);
+    // exponential: the standard deviation is the mean
+    assertEquals(1, sd / mean, 0.02);
+    // offsets are summed as doubles, the total doesn't drift from the gaps
+    assertEquals(sum, previous - first, 1);
+  }
+
+  @Test
+  public void phasesDiffer() {
+    Random random = new Random(0);
+    long[] starts = new long[10];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = new PerfJobSchedule(ArrivalDistribution.UNIFORM, 100, random).next(0);
+    }
+    assertEquals(starts.length, Arrays.stream(starts).distinct().count());
+  }
+}
@@ -0,0 +1,145 @@
+package chronostream.perf;
+
+import chronostream.common.core.GcMonitor;
+import chronostream.common.core.Histogram;
+import chronostream.common.crypto.BufferMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PerfJobSearchTest {
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+  private static final long MS = 1_000_000;
+
+  @Test
+  public void findsTheKneeAndTheSloCrossover() {
+    // saturates at 12 threads, p99 of 1ms per thread
+    FakeSteps steps = new FakeSteps(t -> 1000 * Math.min(t, 12), t -> t * MS);
+    PerfJobSearch search = new PerfJobSearch("test", 64, 1, 5, 20_000, steps);
+    search.run();
+
+    PerfJobSearch.Response r = search.getResponse();
+    assertTrue(r.done);
+    assertEquals(12, r.knee);
+    assertEquals(12000, r.kneeThroughput, 0);
+    assertEquals(21, r.sloCrossover);
+    // 1 to 32 by doubling, then log2 of the gaps: 3 steps between 8 and 16, 4 between 16 and 32
+    assertEquals(steps.runs.toString(), 6 + 3 + 4, steps.runs.size());
+    assertEquals(steps.runs.size(), r.steps.size());
+    for (int i = 1; i < r.steps.size(); i++) {
+      assertTrue(r.steps.get(i - 1).threads < r.steps.get(i).threads);
+    }
+  }
+
+  @Test
+  public void stopsWithinTheResolution() {
+    FakeSteps steps = new FakeSteps(t -> 1000 * Math.min(t, 37), t -> MS);
+    PerfJobSearch search = new PerfJobSearch("test", 128, 8, 5, 0, steps);
+    search.run();
+
+    PerfJobSearch.Response r = search.getResponse();
+    assertTrue(r.done);
+    // the knee is at 36 (within 5% of 37): the answer is at most 8 threads above it
+    assertTrue("knee " + r.knee, r.knee >= 36 && r.knee <= 36 + 8);
+    assertEquals(0, r.sloCrossover);
+  }
+
+  @Test
+  public void stopsAtMaxThreads() {
+    FakeSteps steps = new FakeSteps(t -> 1000 * t, t -> MS);
+    PerfJobSearch search = new PerfJobSearch("test", 20, 1, 5, 5_000, steps);
+    search.run();
+
+    PerfJobSearch.Response r = search.getResponse();
+    assertTrue(r.done);
+    // 1, 2, 4, 8, 16, 20, then the bisection between 16 and 20
+    assertTrue(steps.runs.toString(), steps.runs.keySet().stream().allMatch(t -> t <= 20));
+    assertEquals(19, r.knee);
+    assertEquals(0, r.sloCrossover); // never crossed
+  }
+
+  @Test
+  public void terminatesOnNoisyCurves() {
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      long seed = random.nextLong();
+      FakeSteps steps = new FakeSteps(t -> new Random(seed + t).nextInt(10_000),
+          t -> new Random(seed - t).nextInt(10) * MS);
+      int maxThreads = 1 + random.nextInt(200);
+      PerfJobSearch search = new PerfJobSearch("test", maxThreads, 1, 5, 5_000, steps);
+      search.run();
+
+      PerfJobSearch.Response r = search.getResponse();
+      assertTrue(r.done);
+      assertTrue(r.knee >= 1 && r.knee <= maxThreads);
+      for (int runs : steps.runs.values()) {
+        assertEquals("each thread count is measured once", 1, runs);
+      }
+    }
+  }
+
+  @Test
+  public void givesUpWhenInterrupted() {
+    FakeSteps steps = new FakeSteps(t -> 1000 * Math.min(t, 12), t -> MS);
+    PerfJobSearch search = new PerfJobSearch("test", 64, 1, 5, 0, threads ->
+        steps.runs.size() == 6 ? null : steps.run(threads));
+    search.run();
+
+    PerfJobSearch.Response r = search.getResponse();
+    assertFalse(r.done);
+    assertEquals(0, r.knee);
+    assertEquals(6, r.steps.size());
+  }
+
+  /**
+   * Steps which measure the given throughput and p99, without running anything.
+   */
+  private static class FakeSteps implements PerfJobSearch.Step {
+    final Map<Integer, Integer> runs = new HashMap<>();
+    private final IntToDoubleFunction throughput;
+    private final IntToLongFunction p99;
+
+    FakeSteps(IntToDoubleFunction throughput, IntToLongFunction p99) {
+      this.throughput = throughput;
+      this.p99 = p99;
+    }
+
+    @Override
+    public PerfJobResult run(int threads) {
+      runs.merge(threads, 1, Integer::sum);
+      return new FakeResult(threads, throughput.applyAsDouble(threads),
+          p99.applyAsLong(threads));
+    }
+  }
+
+  private static class FakeResult extends PerfJobResult {
+    private final double throughput;
+    private final long p99;
+
+    FakeResult(int threads, double throughput, long p99) {
+      super(threads, "test", threads, 0, 0, TestConfigs.perfTest("{}"), BufferMode.HEAP_ARRAY,
+          "test", GC_MONITOR);
+      this.throughput = throughput;
+      this.p99 = p99;
+    }
+
+    @Override
+    double getMeasuredThroughput() {
+      return throughput;
+    }
+
+    @Override
+    Histogram getLatency() {
+      Histogram h = newHistogram();
+      h.record(p99);
+      return h;
+    }
+  }
+}
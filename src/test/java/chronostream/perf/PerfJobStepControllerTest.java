@@ -0,0 +1,140 @@
+package chronostream.perf;
+
+import chronostream.common.core.GcMonitor;
+import chronostream.common.crypto.BufferMode;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntUnaryOperator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller with a fake clock, one tick every TICK_MS, recording the samples the
+ * workers would have.
+ */
+public class PerfJobStepControllerTest {
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void warmsUpThenMeasuresForTheStepDuration() {
+    Step step = new Step("{'warmupMs': 1000, 'stepDurationMs': 2000}");
+    step.run(9, 100, MS);
+    assertTrue(step.result.isWarmingUp());
+    step.run(1, 100, MS);
+    assertTrue(step.result.isMeasuring());
+    assertEquals(step.now, step.result.getMeasureStart());
+    step.run(19, 100, MS);
+    assertTrue(step.result.isMeasuring());
+    step.run(1, 100, MS);
+    assertTrue(step.result.isRampingDown());
+    assertEquals(20 * 100, step.result.getLatency().getTotalCount());
+    assertEquals(10 * 100, step.result.getWarmupLatency().getTotalCount());
+  }
+
+  @Test
+  public void timeBoxWithoutWarmupStartsAtRampUp() {
+    Step step = new Step("{'stepDurationMs': 500}");
+    assertTrue(step.result.isMeasuring());
+    step.run(4, 10, MS);
+    assertTrue(step.result.isMeasuring());
+    step.run(1, 10, MS);
+    assertTrue(step.result.isRampingDown());
+  }
+
+  @Test
+  public void measuresOnceSteadyUntilPreciseEnough() {
+    Step step = new Step("{'steadyState': true, 'stepDurationMs': 60000}");
+    // 3s of growing throughput and latency
+    for (int i = 0; i < 30; i++) {
+      step.run(1, 10 * (i + 1), (i + 1) * MS);
+      assertTrue("tick " + i, step.result.isWarmingUp());
+    }
+    // then steady: STEADY_WINDOWS windows of WINDOW_TICKS
+    int ticks = step.runUntil(() -> step.result.isMeasuring(), 100, 300, 10 * MS);
+    assertTrue("steady after " + ticks + " ticks", ticks >= 25 && ticks <= 35);
+
+    // constant throughput: done after MIN_MEASURED_WINDOWS
+    ticks = step.runUntil(() -> step.result.isRampingDown(), 100, 300, 10 * MS);
+    assertTrue("precise after " + ticks + " ticks", ticks >= 50 && ticks <= 55);
+  }
+
+  @Test
+  public void noisyStepsKeepMeasuringUntilTheStepDuration() {
+    Step step = new Step("{'steadyState': true, 'stepDurationMs': 3000}");
+    // throughput alternates between 100 and 1000 ops per tick, never steady
+    int ticks = step.runUntil(() -> step.result.isMeasuring(), 100,
+        tick -> tick % 10 < 5 ? 100 : 1000, 10 * MS);
+    assertEquals(30, ticks);
+    ticks = step.runUntil(() -> step.result.isRampingDown(), 100,
+        tick -> tick % 10 < 5 ? 100 : 1000, 10 * MS);
+    assertEquals(30, ticks);
+  }
+
+  @Test
+  public void doesNothingBeforeRampUp() {
+    PerfJobResult result = new PerfJobResult(1, "test", 1, 0, 0,
+        TestConfigs.perfTest("{'stepDurationMs': 100}"), BufferMode.HEAP_ARRAY, "test",
+        GC_MONITOR);
+    PerfJobStepController controller =
+        new PerfJobStepController(result, TestConfigs.perfTest("{'stepDurationMs': 100}"));
+    controller.tick(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+    assertFalse(result.isRampingDown());
+  }
+
+  private static class Step {
+    final PerfJobResult result;
+    final PerfJobStepController controller;
+    final PerfJobRecorder recorder;
+    long now;
+    int tick;
+
+    Step(String json) {
+      result = new PerfJobResult(1, "test", 1, 0, 0, TestConfigs.perfTest(json),
+          BufferMode.HEAP_ARRAY, "test", GC_MONITOR);
+      controller = new PerfJobStepController(result, TestConfigs.perfTest(json));
+      recorder = result.newRecorder();
+      result.startedUp();
+      now = result.getRampedUp();
+      controller.tick(now);
+    }
+
+    /**
+     * Records ops samples of the given latency per tick, for the given number of ticks.
+     */
+    void run(int ticks, int ops, long latency) {
+      for (int i = 0; i < ticks; i++) {
+        next(ops, latency);
+      }
+    }
+
+    /**
+     * Ticks until the condition holds, at most limit times. Returns the number of ticks.
+     */
+    int runUntil(BooleanSupplier condition, int ops, int limit, long latency) {
+      return runUntil(condition, limit, tick -> ops, latency);
+    }
+
+    int runUntil(BooleanSupplier condition, int limit, IntUnaryOperator ops, long latency) {
+      for (int i = 1; i <= limit; i++) {
+        next(ops.applyAsInt(tick), latency);
+        if (condition.getAsBoolean()) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void next(int ops, long latency) {
+      for (int i = 0; i < ops; i++) {
+        recorder.record(now, now + latency);
+      }
+      now += PerfJobStepController.TICK_MS * MS;
+      tick++;
+      controller.tick(now);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package chronostream.perf;
+
+import chronostream.Config;
+import chronostream.common.core.GcMonitor;
+import chronostream.common.crypto.BufferMode;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips through an in-memory H2 database.
+ */
+public class PerfJobStoreTest {
+  private static final GcMonitor GC_MONITOR = GcMonitor.start();
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+  private static final Config.Test AES = TestConfigs.test(
+      "{'name': 'AES', 'primitive': 'AES_CBC_ENC', 'keySize': 256, 'bufferMode': 'DIRECT_BUFFER'}");
+  private static final Config.Test HKDF = TestConfigs.test(
+      "{'name': 'Keywhiz', 'primitive': 'HKDF', 'keySize': 0}");
+
+  private Thread writer;
+
+  @After
+  public void stopWriter() throws InterruptedException {
+    writer.interrupt();
+    writer.join();
+  }
+
+  @Test
+  public void roundTripsRunsAndSteps() throws Exception {
+    PerfJobStore store = start(false);
+    long first = store.startRun("first", TestConfigs.perfTest("{}"));
+    long second = store.startRun("second",
+        TestConfigs.perfTest("{'targetRate': 500, 'arrival': 'POISSON', 'stepDurationMs': 1000}"));
+    assertTrue(second > first);
+
+    List<PerfJobStore.Run> runs = store.getRuns(10);
+    assertEquals(2, runs.size());
+    PerfJobStore.Run run = runs.get(0);
+    assertEquals(second, run.id);
+    assertEquals("second", run.name);
+    assertEquals("PLATFORM", run.executor);
+    assertEquals("LINEAR", run.sweep);
+    assertEquals(500, run.targetRate);
+    assertEquals("POISSON", run.arrival);
+    assertEquals(1000, run.stepDurationMs);
+    assertNull(runs.get(1).arrival);
+    assertEquals(1, store.getRuns(1).size());
+
+    PerfJobResult closed = step(1, "{}", 2, 100);
+    closed.recordException(new IllegalStateException("out of sessions"));
+    PerfJobResult open = step(2, "{'targetRate': 500}", 4, 100);
+    save(store, first, AES, "BC", closed);
+    save(store, second, HKDF, "BC", open);
+    save(store, second, HKDF, "JCE", step(3, "{}", 4, 100));
+
+    PerfJobStore.Step s = only(store.getSteps(first, null, null, null, null, 10));
+    PerfJobResult.Response r = closed.getResponse(0, 0);
+    assertEquals(first, s.runId);
+    assertEquals(1, s.id);
+    assertEquals("test", s.job);
+    assertEquals("AES", s.test);
+    assertEquals("BC", s.provider);
+    assertEquals("AES_CBC_ENC", s.primitive);
+    assertEquals(256, s.keySize);
+    assertEquals("DIRECT_BUFFER", s.bufferMode);
+    assertEquals(2, s.threads);
+    assertEquals(200, s.completed);
+    assertEquals(r.throughput, s.throughput, 0);
+    assertEquals(r.latency.min, s.latencyMin);
+    assertEquals(r.latency.mean, s.latencyMean, 0);
+    assertEquals(r.latency.p50, s.latencyP50);
+    assertEquals(r.latency.p99, s.latencyP99);
+    assertEquals(r.latency.max, s.latencyMax);
+    assertNull(s.correctedP99);
+    assertTrue(s.exception, s.exception.contains("out of sessions"));
+
+    s = only(store.getSteps(second, "BC", null, null, null, 10));
+    assertEquals(2, s.id);
+    assertEquals(open.getResponse(0, 0).correctedLatency.p99, (long) s.correctedP99);
+    assertEquals("HEAP_ARRAY", s.bufferMode);
+
+    // newest first, filters combine
+    List<PerfJobStore.Step> steps = store.getSteps(null, null, "HKDF", 0, 4, 10);
+    assertEquals(2, steps.size());
+    assertEquals(3, steps.get(0).id);
+    assertEquals(2, steps.get(1).id);
+    assertEquals(0, store.getSteps(null, "JCE", "AES_CBC_ENC", null, null, 10).size());
+  }
+
+  @Test
+  public void storesRawSamplesInBatches() throws Exception {
+    PerfJobStore store = start(true);
+    long runId = store.startRun("raw", TestConfigs.perfTest("{}"));
+    // more than BATCH_SIZE per thread
+    PerfJobResult result = step(1, "{'recordRawSamples': true}", 2, 1500);
+    save(store, runId, HKDF, "BC", result);
+
+    PerfJobStore.Samples samples = store.getSamples(runId, 1);
+    assertEquals(3000, samples.latencies.length);
+    long sum = 0;
+    for (int i = 0; i < samples.latencies.length; i++) {
+      // start i, end 2i + 100
+      assertEquals(2 * samples.latencies[i] - 100, samples.ends[i]);
+      sum += samples.latencies[i];
+    }
+    // latencies are 100 + i for i < 1500, for both threads
+    assertEquals(2 * (1500 * 100 + 1499 * 1500 / 2), sum);
+    assertEquals(0, store.getSamples(runId, 2).latencies.length);
+  }
+
+  @Test
+  public void skipsRawSamplesUnlessConfigured() throws Exception {
+    PerfJobStore store = start(false);
+    long runId = store.startRun("raw", TestConfigs.perfTest("{}"));
+    save(store, runId, HKDF, "BC", step(1, "{'recordRawSamples': true}", 1, 10));
+    assertEquals(1, store.getSteps(runId, null, null, null, null, 10).size());
+    assertEquals(0, store.getSamples(runId, 1).latencies.length);
+  }
+
+  @Test
+  public void runsDoneWhenStoringFails() throws Exception {
+    PerfJobStore store = start(false);
+    long runId = store.startRun("failing", TestConfigs.perfTest("{}"));
+    // provider is a VARCHAR(64)
+    save(store, runId, HKDF, new String(new char[100]).replace('\0', 'x'), step(1, "{}", 1, 10));
+    assertEquals(0, store.getSteps(runId, null, null, null, null, 10).size());
+
+    // the writer goes on
+    save(store, runId, HKDF, "BC", step(2, "{}", 1, 10));
+    assertEquals(2, only(store.getSteps(runId, null, null, null, null, 10)).id);
+  }
+
+  private PerfJobStore start(boolean rawSamples) throws Exception {
+    String url = "jdbc:h2:mem:perfJobStoreTest" + DATABASES.incrementAndGet()
+        + ";DB_CLOSE_DELAY=-1";
+    PerfJobStore store = new PerfJobStore(TestConfigs.storage(
+        String.format("{'url': '%s', 'rawSamples': %b}", url, rawSamples)));
+    writer = new Thread(store);
+    writer.start();
+    return store;
+  }
+
+  private static void save(PerfJobStore store, long runId, Config.Test test, String provider,
+      PerfJobResult result) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    store.saveStep(runId, test, provider, result, done::countDown);
+    done.await();
+  }
+
+  private static PerfJobStore.Step only(List<PerfJobStore.Step> steps) {
+    assertEquals(1, steps.size());
+    return steps.get(0);
+  }
+
+  /**
+   * A finished step, samples of 100 + i ns on every thread.
+   */
+  private static PerfJobResult step(int id, String config, int threads, int samples) {
+    PerfJobResult result = new PerfJobResult(id, "test", threads, 0, 0,
+        TestConfigs.perfTest(config), BufferMode.HEAP_ARRAY, "test", GC_MONITOR);
+    for (int t = 0; t < threads; t++) {
+      result.newRecorder();
+      result.startedUp();
+    }
+    for (PerfJobRecorder recorder : result.getRecorders()) {
+      for (int i = 0; i < samples; i++) {
+        recorder.record(i, i, i + 100 + i);
+      }
+    }
+    result.rampDown();
+    result.finish();
+    return result;
+  }
+}
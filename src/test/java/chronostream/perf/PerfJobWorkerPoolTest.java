@@ -0,0 +1,155 @@
+package chronostream.perf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PerfJobWorkerPoolTest {
+  private final List<Thread> threads = new ArrayList<>();
+  private PerfJobWorkerPool pool;
+
+  @After
+  public void shutdown() throws InterruptedException {
+    pool.shutdown();
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  @Test
+  public void releasesTheWorkersTogether() throws Exception {
+    // Worker 2 only picks up its task once the gate opens.
+    CountDownLatch gate = new CountDownLatch(1);
+    pool = new PerfJobWorkerPool(3, r -> {
+      boolean gated = threads.size() == 2;
+      return newThread(() -> {
+        if (gated) {
+          await(gate);
+        }
+        r.run();
+      });
+    });
+    AtomicInteger ran = new AtomicInteger();
+    List<Runnable> tasks = Collections.nCopies(3, ran::incrementAndGet);
+    Thread step = newThread(() -> {
+      try {
+        pool.runStep(tasks);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    step.start();
+
+    // Workers 0 and 1 park on the start barrier, nothing runs without worker 2.
+    awaitLatch(threads.get(0));
+    awaitLatch(threads.get(1));
+    awaitLatch(step);
+    assertEquals(0, ran.get());
+
+    gate.countDown();
+    step.join();
+    assertEquals(3, ran.get());
+  }
+
+  @Test
+  public void ticksUntilTheStepIsDone() throws Exception {
+    pool = new PerfJobWorkerPool(4, this::newThread);
+    CountDownLatch released = new CountDownLatch(1);
+    AtomicInteger finished = new AtomicInteger();
+    AtomicInteger ticks = new AtomicInteger();
+    AtomicReference<Thread> ticker = new AtomicReference<>();
+    List<Runnable> tasks = Collections.nCopies(4, () -> {
+      await(released);
+      finished.incrementAndGet();
+    });
+
+    // The tasks only finish once the caller has ticked 3 times.
+    pool.runStep(tasks, () -> {
+      ticker.set(Thread.currentThread());
+      if (ticks.incrementAndGet() == 3) {
+        released.countDown();
+      }
+    }, 1);
+    assertEquals(4, finished.get());
+    assertTrue(ticks.get() >= 3);
+    assertEquals(Thread.currentThread(), ticker.get());
+  }
+
+  @Test
+  public void reusesItsThreadsAcrossSteps() throws Exception {
+    pool = new PerfJobWorkerPool(8, this::newThread);
+    Set<Thread> used = ConcurrentHashMap.newKeySet();
+    for (int step = 1; step <= 50; step++) {
+      AtomicInteger ran = new AtomicInteger();
+      List<Runnable> tasks = Collections.nCopies(step % 8 + 1, () -> {
+        used.add(Thread.currentThread());
+        ran.incrementAndGet();
+      });
+      pool.runStep(tasks);
+      assertEquals(tasks.size(), ran.get());
+    }
+    assertEquals(8, used.size());
+    assertTrue(threads.containsAll(used));
+  }
+
+  @Test
+  public void rejectsStepsLargerThanThePool() throws Exception {
+    pool = new PerfJobWorkerPool(2, this::newThread);
+    try {
+      pool.runStep(Collections.nCopies(3, () -> { }));
+      throw new AssertionError("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    // the pool is still usable
+    pool.runStep(Collections.nCopies(2, () -> { }));
+  }
+
+  @Test
+  public void shutdownStopsTheWorkers() throws Exception {
+    pool = new PerfJobWorkerPool(3, this::newThread);
+    pool.runStep(Collections.nCopies(3, () -> { }));
+    pool.shutdown();
+    for (Thread t : threads) {
+      t.join();
+      assertFalse(t.isAlive());
+    }
+  }
+
+  private Thread newThread(Runnable r) {
+    Thread t = new Thread(r);
+    t.setDaemon(true);
+    threads.add(t);
+    return t;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits until t is parked on a CountDownLatch (and not, say, on its inbox).
+   */
+  private static void awaitLatch(Thread t) {
+    while (t.getState() != Thread.State.WAITING || Arrays.stream(t.getStackTrace())
+        .noneMatch(f -> f.getClassName().equals(CountDownLatch.class.getName()))) {
+      Thread.yield();
+    }
+  }
+}
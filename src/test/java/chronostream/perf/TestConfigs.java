@@ -0,0 +1,55 @@
+package chronostream.perf;
+
+import chronostream.Config;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Configs for tests, parsed like the yaml ones so the defaults apply.
+ */
+class TestConfigs {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private TestConfigs() {
+  }
+
+  /**
+   * @param json e.g. "{'targetRate': 1000}", single quotes are turned into double ones (as in the
+   *     other methods). tests defaults to an empty list.
+   */
+  static Config.PerfTest perfTest(String json) {
+    ObjectNode node = (ObjectNode) parse(json);
+    if (!node.has("tests")) {
+      node.putArray("tests");
+    }
+    return convert(node, Config.PerfTest.class);
+  }
+
+  static Config.Test test(String json) {
+    return convert(parse(json), Config.Test.class);
+  }
+
+  static Config.Storage storage(String json) {
+    return convert(parse(json), Config.Storage.class);
+  }
+
+  private static JsonNode parse(String json) {
+    try {
+      return MAPPER.readTree(json.replace('\'', '"'));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static <T> T convert(JsonNode node, Class<T> type) {
+    try {
+      return MAPPER.treeToValue(node, type);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}